@@ -0,0 +1,183 @@
+package com.example.app_central;
+
+import java.util.zip.CRC32;
+
+/**
+ * Frames of the bulk transfer protocol, carried on the body sensor location characteristic.
+ *
+ * The central writes the frames and the peripheral answers with notifications. All integers are
+ * little-endian. The same codec lives in the peripheral.
+ * <pre>
+ * START [0x10][id][length u32][crc32 u32][chunk size u16][window]
+ * DATA  [0x11][seq u16][payload]
+ * END   [0x13][id]
+ * ACK   [0x12][id][status][next seq u16][next offset u32]
+ * </pre>
+ * A START for a transfer the receiver already holds part of is answered with
+ * {@link #STATUS_RESUMED} and the offset to continue from. ACKs are cumulative. A gap in the
+ * sequence numbers is answered with {@link #STATUS_GAP}, and the sender goes back to the acked
+ * offset. The CRC-32 covers the whole payload and is checked after END.
+ */
+public final class BulkTransferCodec {
+
+    public static final byte TYPE_START = 0x10;
+    public static final byte TYPE_DATA = 0x11;
+    public static final byte TYPE_ACK = 0x12;
+    public static final byte TYPE_END = 0x13;
+
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_RESUMED = 1;
+    public static final int STATUS_GAP = 2;
+    public static final int STATUS_DONE = 3;
+    public static final int STATUS_CRC_ERROR = 4;
+    public static final int STATUS_TOO_LARGE = 5;
+    public static final int STATUS_UNKNOWN_TRANSFER = 6;
+
+    public static final int START_LENGTH = 13;
+    public static final int DATA_HEADER_LENGTH = 3;
+    public static final int END_LENGTH = 2;
+    public static final int ACK_LENGTH = 9;
+
+    // ATT header of a write or a notification.
+    private static final int ATT_HEADER_LENGTH = 3;
+
+    private BulkTransferCodec() {
+    }
+
+    /**
+     * @return The payload of a DATA frame for a given MTU.
+     */
+    public static int chunkSize(int mtu) {
+        return mtu - ATT_HEADER_LENGTH - DATA_HEADER_LENGTH;
+    }
+
+    public static int type(byte[] frame) {
+        return frame == null || frame.length == 0 ? -1 : frame[0];
+    }
+
+    public static boolean isFrame(byte[] frame) {
+        int type = type(frame);
+        return type >= TYPE_START && type <= TYPE_END;
+    }
+
+    public static long crc32(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return crc.getValue();
+    }
+
+    public static byte[] encodeStart(int id, int length, long crc, int chunkSize, int window) {
+        byte[] frame = new byte[START_LENGTH];
+        frame[0] = TYPE_START;
+        frame[1] = (byte) id;
+        putInt(frame, 2, length);
+        putInt(frame, 6, (int) crc);
+        putShort(frame, 10, chunkSize);
+        frame[12] = (byte) window;
+        return frame;
+    }
+
+    /**
+     * Each frame gets its own array: it waits in the operation queue until its write is issued.
+     */
+    public static byte[] encodeData(int seq, byte[] data, int offset, int length) {
+        byte[] frame = new byte[DATA_HEADER_LENGTH + length];
+        frame[0] = TYPE_DATA;
+        putShort(frame, 1, seq);
+        System.arraycopy(data, offset, frame, DATA_HEADER_LENGTH, length);
+        return frame;
+    }
+
+    public static byte[] encodeEnd(int id) {
+        return new byte[]{TYPE_END, (byte) id};
+    }
+
+    public static byte[] encodeAck(int id, int status, int nextSeq, int nextOffset) {
+        byte[] frame = new byte[ACK_LENGTH];
+        frame[0] = TYPE_ACK;
+        frame[1] = (byte) id;
+        frame[2] = (byte) status;
+        putShort(frame, 3, nextSeq);
+        putInt(frame, 5, nextOffset);
+        return frame;
+    }
+
+    public static int startId(byte[] frame) {
+        return frame[1] & 0xFF;
+    }
+
+    public static int startLength(byte[] frame) {
+        return getInt(frame, 2);
+    }
+
+    public static long startCrc(byte[] frame) {
+        return getInt(frame, 6) & 0xFFFFFFFFL;
+    }
+
+    public static int startChunkSize(byte[] frame) {
+        return getShort(frame, 10);
+    }
+
+    public static int startWindow(byte[] frame) {
+        return frame[12] & 0xFF;
+    }
+
+    public static int dataSeq(byte[] frame) {
+        return getShort(frame, 1);
+    }
+
+    public static int ackId(byte[] frame) {
+        return frame[1] & 0xFF;
+    }
+
+    public static int ackStatus(byte[] frame) {
+        return frame[2] & 0xFF;
+    }
+
+    public static int ackSeq(byte[] frame) {
+        return getShort(frame, 3);
+    }
+
+    public static int ackOffset(byte[] frame) {
+        return getInt(frame, 5);
+    }
+
+    /**
+     * @return false if the frame is shorter than its type requires.
+     */
+    public static boolean isWellFormed(byte[] frame) {
+        switch (type(frame)) {
+            case TYPE_START:
+                return frame.length == START_LENGTH;
+            case TYPE_DATA:
+                return frame.length >= DATA_HEADER_LENGTH;
+            case TYPE_END:
+                return frame.length == END_LENGTH;
+            case TYPE_ACK:
+                return frame.length == ACK_LENGTH;
+            default:
+                return false;
+        }
+    }
+
+    private static void putShort(byte[] frame, int offset, int value) {
+        frame[offset] = (byte) value;
+        frame[offset + 1] = (byte) (value >> 8);
+    }
+
+    private static void putInt(byte[] frame, int offset, int value) {
+        frame[offset] = (byte) value;
+        frame[offset + 1] = (byte) (value >> 8);
+        frame[offset + 2] = (byte) (value >> 16);
+        frame[offset + 3] = (byte) (value >> 24);
+    }
+
+    private static int getShort(byte[] frame, int offset) {
+        return (frame[offset] & 0xFF) | (frame[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int getInt(byte[] frame, int offset) {
+        return (frame[offset] & 0xFF) | (frame[offset + 1] & 0xFF) << 8
+                | (frame[offset + 2] & 0xFF) << 16 | (frame[offset + 3] & 0xFF) << 24;
+    }
+}
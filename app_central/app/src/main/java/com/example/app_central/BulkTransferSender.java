@@ -0,0 +1,208 @@
+package com.example.app_central;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends one payload with the {@link BulkTransferCodec} protocol.
+ *
+ * At most {@link #getWindow()} DATA frames are sent ahead of the last acknowledged one. When no
+ * acknowledgement arrives for {@link #DEFAULT_ACK_TIMEOUT_MS}, START is sent again and the
+ * receiver answers with the offset it holds, so a lost frame or a new connection only costs the
+ * unacknowledged part. A new sender with the same id and payload resumes the same way.
+ */
+public class BulkTransferSender {
+
+    public static final int DEFAULT_WINDOW = 16;
+    public static final long DEFAULT_ACK_TIMEOUT_MS = 2000;
+    public static final int DEFAULT_MAX_RESTARTS = 3;
+
+    /**
+     * Sends a frame to the receiver. Frames must be delivered in order.
+     */
+    public interface FrameSink {
+        void send(byte[] frame);
+    }
+
+    private final int mId;
+    private final byte[] mData;
+    private final long mCrc;
+    private final int mChunkSize;
+    private final int mWindow;
+    private final FrameSink mSink;
+    private final ScheduledExecutorService mScheduler;
+    private final long mAckTimeoutMs;
+    private final CompletableFuture<Void> mFuture = new CompletableFuture<>();
+
+    private boolean mStartAcked;
+    private boolean mEndSent;
+    private int mAckedOffset;
+    private int mAckedSeq;
+    private int mNextOffset;
+    private int mNextSeq;
+    private int mRestarts;
+    private long mLastProgressMs;
+    private long mSentBytes;
+    private ScheduledFuture<?> mTimeout;
+
+    public BulkTransferSender(int id, byte[] data, int chunkSize, FrameSink sink, ScheduledExecutorService scheduler) {
+        this(id, data, chunkSize, DEFAULT_WINDOW, DEFAULT_ACK_TIMEOUT_MS, sink, scheduler);
+    }
+
+    public BulkTransferSender(int id, byte[] data, int chunkSize, int window, long ackTimeoutMs,
+                              FrameSink sink, ScheduledExecutorService scheduler) {
+        if (chunkSize <= 0 || window <= 0 || window > 255) {
+            throw new IllegalArgumentException("Invalid chunk size or window");
+        }
+        mId = id & 0xFF;
+        mData = data;
+        mCrc = BulkTransferCodec.crc32(data, 0, data.length);
+        mChunkSize = chunkSize;
+        mWindow = window;
+        mAckTimeoutMs = ackTimeoutMs;
+        mSink = sink;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Starts, or resumes, the transfer.
+     *
+     * @return A future completed once the receiver checked the CRC of the whole payload.
+     */
+    public CompletableFuture<Void> start() {
+        synchronized (this) {
+            sendStart();
+            mTimeout = mScheduler.scheduleWithFixedDelay(this::checkTimeout, mAckTimeoutMs, mAckTimeoutMs, TimeUnit.MILLISECONDS);
+        }
+        return mFuture;
+    }
+
+    /**
+     * Handles an ACK frame notified by the receiver.
+     *
+     * @return false if the frame isn't an ACK of this transfer.
+     */
+    public boolean onAck(byte[] frame) {
+        if (BulkTransferCodec.type(frame) != BulkTransferCodec.TYPE_ACK || !BulkTransferCodec.isWellFormed(frame)
+                || BulkTransferCodec.ackId(frame) != mId) {
+            return false;
+        }
+
+        int status = BulkTransferCodec.ackStatus(frame);
+        int seq = BulkTransferCodec.ackSeq(frame);
+        int offset = BulkTransferCodec.ackOffset(frame);
+        synchronized (this) {
+            if (mFuture.isDone()) {
+                return true;
+            }
+            switch (status) {
+                case BulkTransferCodec.STATUS_OK:
+                case BulkTransferCodec.STATUS_RESUMED:
+                    if (!mStartAcked) {
+                        // Answer to START: continue from what the receiver holds.
+                        mStartAcked = true;
+                        mNextOffset = offset;
+                        mNextSeq = seq;
+                    }
+                    acknowledge(seq, offset);
+                    pump();
+                    return true;
+                case BulkTransferCodec.STATUS_GAP:
+                    // Go back to the first frame the receiver is missing.
+                    acknowledge(seq, offset);
+                    mNextOffset = offset;
+                    mNextSeq = seq;
+                    pump();
+                    return true;
+                case BulkTransferCodec.STATUS_DONE:
+                    finish(null);
+                    return true;
+                default:
+                    finish(new GattOperationException("Bulk transfer rejected", status));
+                    return true;
+            }
+        }
+    }
+
+    public synchronized int getAckedOffset() {
+        return mAckedOffset;
+    }
+
+    /**
+     * @return The payload bytes sent so far, retransmissions included.
+     */
+    public synchronized long getSentBytes() {
+        return mSentBytes;
+    }
+
+    public int getWindow() {
+        return mWindow;
+    }
+
+    public CompletableFuture<Void> getFuture() {
+        return mFuture;
+    }
+
+    /**
+     * Stops the transfer; it can be resumed later by a new sender.
+     */
+    public synchronized void cancel() {
+        finish(new GattOperationException("Bulk transfer cancelled", GattOperationException.STATUS_CANCELLED));
+    }
+
+    private void sendStart() {
+        mStartAcked = false;
+        mEndSent = false;
+        mLastProgressMs = System.currentTimeMillis();
+        mSink.send(BulkTransferCodec.encodeStart(mId, mData.length, mCrc, mChunkSize, mWindow));
+    }
+
+    private void acknowledge(int seq, int offset) {
+        // Any answer shows the link is alive; only new data resets the restart budget.
+        mLastProgressMs = System.currentTimeMillis();
+        if (offset > mAckedOffset) {
+            mRestarts = 0;
+        }
+        mAckedOffset = offset;
+        mAckedSeq = seq;
+    }
+
+    private void pump() {
+        while (mNextOffset < mData.length && ((mNextSeq - mAckedSeq) & 0xFFFF) < mWindow) {
+            int length = Math.min(mChunkSize, mData.length - mNextOffset);
+            mSink.send(BulkTransferCodec.encodeData(mNextSeq, mData, mNextOffset, length));
+            mNextOffset += length;
+            mNextSeq = (mNextSeq + 1) & 0xFFFF;
+            mSentBytes += length;
+        }
+        if (!mEndSent && mAckedOffset == mData.length) {
+            mEndSent = true;
+            mSink.send(BulkTransferCodec.encodeEnd(mId));
+        }
+    }
+
+    private synchronized void checkTimeout() {
+        if (mFuture.isDone() || System.currentTimeMillis() - mLastProgressMs < mAckTimeoutMs) {
+            return;
+        }
+        if (++mRestarts > DEFAULT_MAX_RESTARTS) {
+            finish(new GattOperationException("Bulk transfer timed out", GattOperationException.STATUS_TIMEOUT));
+            return;
+        }
+        sendStart();
+    }
+
+    private void finish(Throwable error) {
+        if (mTimeout != null) {
+            mTimeout.cancel(false);
+            mTimeout = null;
+        }
+        if (error == null) {
+            mFuture.complete(null);
+        } else {
+            mFuture.completeExceptionally(error);
+        }
+    }
+}
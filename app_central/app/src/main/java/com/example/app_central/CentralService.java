@@ -6,72 +6,104 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class CentralService  extends Service {
 
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
-
-    public final static String ACTION_GATT_CONNECTED = "ACTION_GATT_CONNECTED";
-    public final static String ACTION_GATT_DISCONNECTED = "ACTION_GATT_DISCONNECTED";
-    public final static String ACTION_GATT_SERVICES_DISCOVERED = "ACTION_GATT_SERVICES_DISCOVERED";
-    public final static String ACTION_DATA_AVAILABLE = "ACTION_DATA_AVAILABLE";
-    public final static String EXTRA_DATA = "EXTRA_DATA";
+    public static final UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-
-    UUID BODY_SENSOR_LOCATION_CHARACTERISTIC_UUID = UUID.fromString("00002A38-0000-1000-8000-00805f9b34fb");
 
     private final IBinder mBinder = new LocalBinder();
-    private int mConnectionState = STATE_DISCONNECTED;
+    private final GattEventBus mEventBus = new GattEventBus();
+
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+    private final GattAttributeCache<BluetoothGattCharacteristic> mAttributeCache = new GattAttributeCache<>();
+    private volatile GattCallbackThreads mCallbackThreads = new GattCallbackThreads(GattCallbackThreads.MODE_SHARED);
+    private final GattConnectionPool mConnectionPool = new GattConnectionPool(
+            GattConnectionPool.DEFAULT_MAX_CONNECTIONS, session -> {
+                Log.i(MainActivity.TAG, "Evicting idle connection " + session.getAddress());
+                release(session);
+                // Releasing the state machine reports nothing, the screens of the device are told here.
+                LatencyTracer.getInstance().cancel(session.getAddress());
+                mEventBus.dispatchDisconnected(session.getAddress());
+            });
 
     /*
     Implements callback methods for GATT events that the app cares about.  For example,
-    connection change and services discovered.
+    connection change and services discovered.  They run on the thread mCallbackThreads gives the
+    connection, never on a binder thread, so the callbacks of a connection never overlap.
     */
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
 
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
 
-            String intentAction;
-
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(MainActivity.TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(MainActivity.TAG, "Attempting to start service discovery:" + mBluetoothGatt.discoverServices());
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(MainActivity.TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
+            String address = gatt.getDevice().getAddress();
+            GattSession session = mConnectionPool.get(address);
+            ConnectionStateMachine stateMachine = session == null ? null : session.getStateMachine();
+            if (stateMachine == null) {
+                return;
+            }
+            Log.i(MainActivity.TAG, "Connection state of " + address + ": " + newState + ", status " + status);
+            // The machine opens new handles under its lock, so holding it makes sure the session
+            // already has the handle of this report. Reports of a handle closed since are stale.
+            synchronized (stateMachine) {
+                if (session.getGatt() != gatt) {
+                    Log.d(MainActivity.TAG, "Ignoring state of a released connection to " + address);
+                    return;
+                }
+                stateMachine.onConnectionStateChange(status, newState);
             }
         }
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
+                String address = gatt.getDevice().getAddress();
+                GattSession session = mConnectionPool.get(address);
+                if (session == null) {
+                    return;
+                }
+
+                List<BluetoothGattCharacteristic> characteristics = new ArrayList<>();
+                for (BluetoothGattService service : gatt.getServices()) {
+                    characteristics.addAll(service.getCharacteristics());
+                }
+                GattAttributeCache.Attributes<BluetoothGattCharacteristic> attributes =
+                        mAttributeCache.put(address, characteristics, BluetoothGattCharacteristic::getUuid);
+                onServicesReady(session, gatt);
+
+                // Lets the next connection on this handle check the attributes instead of
+                // discovering them again.
+                BluetoothGattCharacteristic databaseHash = attributes.get(GattAttributeCache.DATABASE_HASH_UUID);
+                if (databaseHash != null) {
+                    CompletableFuture<byte[]> read = readCharacteristic(address, databaseHash);
+                    if (read != null) {
+                        read.thenAccept(value -> mAttributeCache.setDatabaseHash(address, value));
+                    }
+                }
             } else {
                 Log.w(MainActivity.TAG, "onServicesDiscovered received: " + status);
             }
@@ -79,51 +111,171 @@ public class CentralService  extends Service {
 
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+            GattSession session = mConnectionPool.get(gatt.getDevice().getAddress());
+            if (session != null) {
+                session.getOperationQueue().onComplete(GattOperationQueue.TYPE_READ, characteristic.getUuid(), status, characteristic.getValue());
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS && session != null) {
+                dispatchData(session, characteristic);
             } else {
                 Log.w(MainActivity.TAG, "onCharacteristicRead GATT_FAILURE");
             }
         }
 
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            GattSession session = mConnectionPool.get(gatt.getDevice().getAddress());
+            if (session != null) {
+                session.getOperationQueue().onComplete(GattOperationQueue.TYPE_WRITE, characteristic.getUuid(), status, null);
+            }
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(MainActivity.TAG, "onCharacteristicWrite received: " + status);
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            GattSession session = mConnectionPool.get(gatt.getDevice().getAddress());
+            if (session != null) {
+                session.getOperationQueue().onComplete(GattOperationQueue.TYPE_DESCRIPTOR_WRITE,
+                        descriptor.getCharacteristic().getUuid(), status, null);
+            }
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(MainActivity.TAG, "onDescriptorWrite received: " + status);
+            }
+        }
+
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+            GattSession session = mConnectionPool.get(gatt.getDevice().getAddress());
+            if (session != null) {
+                byte[] value = characteristic.getValue();
+                session.onValuePushed();
+                LinkOptimizer linkOptimizer = session.getLinkOptimizer();
+                if (linkOptimizer != null) {
+                    linkOptimizer.onTraffic(value == null ? 0 : value.length);
+                }
+                BulkTransferSender bulkTransfer = session.getBulkTransfer();
+                if (bulkTransfer != null && bulkTransfer.onAck(value)) {
+                    return;
+                }
+                dispatchData(session, characteristic);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            GattSession session = mConnectionPool.get(gatt.getDevice().getAddress());
+            LinkOptimizer linkOptimizer = session == null ? null : session.getLinkOptimizer();
+            if (linkOptimizer != null) {
+                linkOptimizer.onMtuChanged(mtu, status);
+            }
+            Log.i(MainActivity.TAG, "MTU " + mtu + " on " + gatt.getDevice().getAddress() + ", status " + status);
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            GattSession session = mConnectionPool.get(gatt.getDevice().getAddress());
+            LinkOptimizer linkOptimizer = session == null ? null : session.getLinkOptimizer();
+            if (linkOptimizer != null) {
+                linkOptimizer.onPhyUpdate(txPhy, rxPhy, status);
+            }
+            Log.i(MainActivity.TAG, "PHY tx " + txPhy + " rx " + rxPhy + " on " + gatt.getDevice().getAddress());
         }
     };
 
 
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
+    private void onServicesReady(GattSession session, BluetoothGatt gatt) {
+        LatencyTracer.getInstance().mark(session.getAddress(), LatencyTracer.PHASE_SERVICES_DISCOVERED,
+                SystemClock.elapsedRealtimeNanos());
+        // Queued first, so the requests of the listeners run on the tuned link.
+        optimizeLink(session, gatt);
+        mEventBus.dispatchServicesDiscovered(session.getAddress());
+    }
+
+    /*
+    Discovers the services of a new connection. When the link came back on a handle whose
+    attributes carry a Database Hash, the hash is read instead and discovery only runs if it changed.
+    */
+    private void setUpServices(GattSession session, BluetoothGatt gatt) {
+
+        final String address = session.getAddress();
+        GattAttributeCache.Attributes<BluetoothGattCharacteristic> cached = mAttributeCache.peek(address);
+        BluetoothGattCharacteristic databaseHash = cached == null || cached.getDatabaseHash() == null
+                ? null : cached.get(GattAttributeCache.DATABASE_HASH_UUID);
+        CompletableFuture<byte[]> read = databaseHash == null ? null : readCharacteristic(address, databaseHash);
+        if (read == null) {
+            // Attempts to discover services after successful connection.
+            Log.i(MainActivity.TAG, "Attempting to start service discovery:" + gatt.discoverServices());
+            return;
+        }
+
+        final long start = System.nanoTime();
+        read.whenComplete((value, error) -> {
+            if (value != null && mAttributeCache.get(address, value) != null) {
+                Log.i(MainActivity.TAG, "Attributes of " + address + " unchanged, discovery skipped in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+                onServicesReady(session, gatt);
+            } else {
+                Log.i(MainActivity.TAG, "Attributes of " + address + " changed, discovering services:" + gatt.discoverServices());
+            }
+        });
     }
 
+    private void optimizeLink(GattSession session, BluetoothGatt gatt) {
+        LinkOptimizer linkOptimizer = new LinkOptimizer(new LinkOptimizer.Link() {
+            @Override
+            public boolean requestMtu(int mtu) {
+                return gatt.requestMtu(mtu);
+            }
+
+            @Override
+            public void setPreferredPhy2M() {
+                gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK,
+                        BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+            }
+
+            @Override
+            public boolean requestConnectionPriority(int priority) {
+                return gatt.requestConnectionPriority(priority);
+            }
+        }, session.getOperationQueue(), mScheduler, mBluetoothAdapter.isLe2MPhySupported());
+        session.setLinkOptimizer(linkOptimizer);
+        linkOptimizer.start();
+    }
 
-    private void broadcastUpdate(final String action, final BluetoothGattCharacteristic characteristic) {
+    private void dispatchData(final GattSession session, final BluetoothGattCharacteristic characteristic) {
 
-        Intent intent = new Intent(action);
+        // Only read to validate the attribute cache, it is no data for the listeners.
+        if (GattAttributeCache.DATABASE_HASH_UUID.equals(characteristic.getUuid())) {
+            return;
+        }
+        LatencyTracer.getInstance().mark(session.getAddress(), LatencyTracer.PHASE_FIRST_DATA,
+                SystemClock.elapsedRealtimeNanos());
+
+        // Decode from the session's own buffer rather than through getIntValue(), which boxes.
+        NotificationDecoder decoder = session.getDecoder();
+        decoder.copy(characteristic.getValue());
 
         /*
-            This is special handling for the Heart Rate Measurement profile.  Data parsing is
-            carried out as per profile specifications:
-            http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
+            This is special handling for the Heart Rate profile, see HeartRateParser.  The
+            measurement is decoded into the session's reusable record and its RR intervals are
+            queued in the session's ring buffer, listeners drain them through the binder.
          */
-        if (BODY_SENSOR_LOCATION_CHARACTERISTIC_UUID.equals(characteristic.getUuid())) {
-
-            int flag = characteristic.getProperties();
-            int format = -1;
+        if (HeartRateParser.HEART_RATE_MEASUREMENT_UUID.equals(characteristic.getUuid())) {
 
-            if ((flag & 0x01) != 0) {
-                format = BluetoothGattCharacteristic.FORMAT_UINT16;
-                Log.d(MainActivity.TAG, "data format UINT16.");
+            HeartRateParser.Measurement measurement = session.getMeasurement();
+            if (HeartRateParser.parseMeasurement(decoder, measurement, session.getRrIntervals())) {
+                mEventBus.dispatchHeartRateMeasurement(session.getAddress(), measurement.heartRate,
+                        measurement.energyExpended, measurement.rrIntervalCount);
             } else {
-                format = BluetoothGattCharacteristic.FORMAT_UINT8;
-                Log.d(MainActivity.TAG, "data format UINT16.");
+                Log.w(MainActivity.TAG, "Truncated heart rate measurement");
             }
 
-            int msg = characteristic.getIntValue(format, 0);
-            Log.d(MainActivity.TAG, String.format("message: %d", msg));
-            intent.putExtra(EXTRA_DATA, msg);
+        } else if (HeartRateParser.BODY_SENSOR_LOCATION_UUID.equals(characteristic.getUuid())) {
+
+            mEventBus.dispatchDataAvailable(session.getAddress(), characteristic.getUuid(),
+                    HeartRateParser.parseBodySensorLocation(decoder));
 
         } else {
 
@@ -131,27 +283,55 @@ public class CentralService  extends Service {
             for all other profiles, writes the data formatted in HEX.
             this code isn't relevant for this project.
             */
-            final byte[] data = characteristic.getValue();
-
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for (byte byteChar : data) {
-                    stringBuilder.append(String.format("%02X ", byteChar));
+            if (decoder.length() > 0) {
+                // Only pay for the hex dump when someone is going to read it.
+                if (Log.isLoggable(MainActivity.TAG, Log.VERBOSE)) {
+                    Log.v(MainActivity.TAG, new String(decoder.getHexChars(), 0, decoder.formatHex()));
                 }
-
-                Log.w(MainActivity.TAG, "broadcastUpdate. general profile");
-                intent.putExtra(EXTRA_DATA, -1);
-                //intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
+                mEventBus.dispatchDataAvailable(session.getAddress(), characteristic.getUuid(), -1);
             }
         }
-
-        sendBroadcast(intent);
     }
 
     public class LocalBinder extends Binder {
         CentralService getService() {
             return CentralService.this;
         }
+
+        /**
+         * Registers a listener for the GATT events of the service.
+         *
+         * @param listener The listener to call.
+         * @param executor The executor the listener is called on, e.g. the main executor.
+         * @param address Only deliver the events of this device, or null for every device.
+         */
+        public void subscribe(GattEventListener listener, Executor executor, String address) {
+            mEventBus.subscribe(listener, executor, address);
+        }
+
+        public void unsubscribe(GattEventListener listener) {
+            mEventBus.unsubscribe(listener);
+        }
+
+        /**
+         * Moves the RR intervals received from a device, in 1/1024 second units, into the given
+         * array.
+         *
+         * @return The number of intervals copied.
+         */
+        public int drainRrIntervals(String address, int[] destination) {
+            GattSession session = mConnectionPool.get(address);
+            return session == null ? 0 : session.getRrIntervals().drain(destination);
+        }
+    }
+
+    /**
+     * Prints the scan to first data latencies, with
+     * {@code adb shell dumpsys activity service com.example.app_central/.CentralService}.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        LatencyTracer.getInstance().dump(writer);
     }
 
     @Override
@@ -168,6 +348,32 @@ public class CentralService  extends Service {
         return super.onUnbind(intent);
     }
 
+    @Override
+    public void onDestroy() {
+        close();
+        mScheduler.shutdownNow();
+        mCallbackThreads.quit();
+        super.onDestroy();
+    }
+
+
+    /**
+     * Chooses the threads the GATT callbacks run on, see {@link GattCallbackThreads}. Only
+     * possible while no connection is open.
+     *
+     * @param mode {@link GattCallbackThreads#MODE_SHARED} or {@link GattCallbackThreads#MODE_PER_CONNECTION}.
+     * @return false if connections are open.
+     */
+    public synchronized boolean setCallbackThreading(int mode) {
+        if (mConnectionPool.size() > 0) {
+            return false;
+        }
+        if (mCallbackThreads.getMode() != mode) {
+            mCallbackThreads.quit();
+            mCallbackThreads = new GattCallbackThreads(mode);
+        }
+        return true;
+    }
 
     /**
      * Initializes a reference to the local Bluetooth adapter.
@@ -198,7 +404,16 @@ public class CentralService  extends Service {
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Sets how many peripherals may be connected at once. Idle connections beyond the cap are
+     * closed, least recently used first.
+     */
+    public void setMaxConnections(int maxConnections) {
+        mConnectionPool.setMaxConnections(maxConnections);
+    }
+
+    /**
+     * Connects to the GATT server hosted on the Bluetooth LE device. Several devices can be
+     * connected at the same time, each one with its own session.
      *
      * @param address The device address of the destination device.
      *
@@ -213,16 +428,13 @@ public class CentralService  extends Service {
             Log.w(MainActivity.TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
+        LatencyTracer.getInstance().mark(address, LatencyTracer.PHASE_CONNECT, SystemClock.elapsedRealtimeNanos());
 
         // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress) && mBluetoothGatt != null) {
-            Log.d(MainActivity.TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
-            }
+        GattSession session = mConnectionPool.get(address);
+        if (session != null && session.getStateMachine() != null) {
+            Log.d(MainActivity.TAG, "Trying to use an existing BluetoothGatt for connection.");
+            return session.getStateMachine().connect();
         }
 
         BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
@@ -231,91 +443,329 @@ public class CentralService  extends Service {
             return false;
         }
 
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
+        session = new GattSession(address, mScheduler);
+        session.setWriteFlow(new WriteFlowController<>((characteristic, value) -> writeCharacteristic(address, characteristic, value),
+                WriteFlowController.DEFAULT_CREDITS, () -> mEventBus.dispatchWritable(address)));
+        session.setStateMachine(createStateMachine(session, device));
+        session.setState(GattSession.STATE_CONNECTING);
+        if (!mConnectionPool.put(session)) {
+            Log.w(MainActivity.TAG, "Too many busy connections.  Unable to connect.");
+            return false;
+        }
 
         Log.d(MainActivity.TAG, "Trying to create a new connection.");
 
-        return true;
+        return session.getStateMachine().connect();
+    }
+
+    private ConnectionStateMachine createStateMachine(GattSession session, BluetoothDevice device) {
+
+        final String address = session.getAddress();
+
+        ConnectionStateMachine.Link link = new ConnectionStateMachine.Link() {
+            @Override
+            public boolean connect(boolean reuseHandle) {
+                BluetoothGatt gatt = session.getGatt();
+                if (reuseHandle && gatt != null) {
+                    return gatt.connect();
+                }
+                if (gatt != null) {
+                    gatt.close();
+                }
+                // A new handle discovers its own attributes.
+                mAttributeCache.remove(address);
+                // We want to directly connect to the device, so we are setting the autoConnect
+                // parameter to false.
+                gatt = device.connectGatt(CentralService.this, false, mGattCallback, BluetoothDevice.TRANSPORT_LE,
+                        BluetoothDevice.PHY_LE_1M_MASK, mCallbackThreads.acquire(address));
+                session.setGatt(gatt);
+                return gatt != null;
+            }
+
+            @Override
+            public void disconnect() {
+                BluetoothGatt gatt = session.getGatt();
+                if (gatt != null) {
+                    gatt.disconnect();
+                }
+            }
+
+            @Override
+            public void close() {
+                BluetoothGatt gatt = session.getGatt();
+                session.setGatt(null);
+                mAttributeCache.remove(address);
+                if (gatt != null) {
+                    gatt.close();
+                }
+            }
+        };
+
+        ConnectionStateMachine.Listener listener = new ConnectionStateMachine.Listener() {
+            @Override
+            public void onConnected(long reconnectMs) {
+                LatencyTracer.getInstance().mark(address, LatencyTracer.PHASE_CONNECTED, SystemClock.elapsedRealtimeNanos());
+                session.setState(GattSession.STATE_CONNECTED);
+                ConnectionCoordinator.getInstance().setState(address, ConnectionCoordinator.STATE_CONNECTED);
+                mEventBus.dispatchConnected(address);
+                if (reconnectMs >= 0) {
+                    Log.i(MainActivity.TAG, "Reconnected to GATT server " + address + " in " + reconnectMs + " ms");
+                } else {
+                    Log.i(MainActivity.TAG, "Connected to GATT server " + address);
+                }
+                BluetoothGatt gatt = session.getGatt();
+                if (gatt != null) {
+                    setUpServices(session, gatt);
+                }
+            }
+
+            @Override
+            public void onReconnecting(int attempt, long delayMs, int status) {
+                session.setState(GattSession.STATE_CONNECTING);
+                ConnectionCoordinator.getInstance().setState(address, ConnectionCoordinator.STATE_CONNECTING);
+                Log.i(MainActivity.TAG, "Link to " + address + " down (status " + status + "), attempt "
+                        + attempt + " in " + delayMs + " ms");
+                mEventBus.dispatchReconnecting(address, attempt, delayMs);
+            }
+
+            @Override
+            public void onDisconnected(int status) {
+                LatencyTracer.getInstance().cancel(address);
+                session.setState(GattSession.STATE_DISCONNECTED);
+                ConnectionCoordinator.getInstance().setState(address, ConnectionCoordinator.STATE_IDLE);
+                Log.i(MainActivity.TAG, "Disconnected from GATT server " + address + ", status " + status
+                        + ", " + session.getPushedCount() + " values pushed instead of read");
+                mEventBus.dispatchDisconnected(address);
+            }
+        };
+
+        return new ConnectionStateMachine(link, listener, mScheduler);
     }
 
 
-    // TODO bluetooth - call this method when needed
     /**
      * Disconnects an existing connection or cancel a pending connection. The disconnection result
      * is reported asynchronously through the
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      * callback.
      */
-    public void disconnect() {
+    public void disconnect(String address) {
 
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        GattSession session = mConnectionPool.get(address);
+        if (mBluetoothAdapter == null || session == null || session.getStateMachine() == null) {
             Log.w(MainActivity.TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        session.getStateMachine().disconnect();
     }
 
     /**
      * After using a given BLE device, the app must call this method to ensure resources are
      * released properly.
      */
-    public void close() {
+    public void close(String address) {
 
-        if (mBluetoothGatt == null) {
-            return;
+        GattSession session = mConnectionPool.remove(address);
+        if (session != null) {
+            release(session);
+        }
+    }
+
+    /**
+     * Releases every connection held by the service.
+     */
+    public void close() {
+        mAttributeCache.clear();
+        for (GattSession session : mConnectionPool.removeAll()) {
+            release(session);
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+    }
+
+    /**
+     * Closes a session already taken out of the pool and forgets everything kept for its device.
+     */
+    private void release(GattSession session) {
+        String address = session.getAddress();
+        mAttributeCache.remove(address);
+        session.close();
+        mCallbackThreads.release(address);
+        ConnectionCoordinator.getInstance().setState(address, ConnectionCoordinator.STATE_IDLE);
     }
 
     /**
      * Request a read on a given {@code BluetoothGattCharacteristic}. The read result is reported
      * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-     * callback.
+     * callback. The request is queued behind any GATT operation already in flight.
      *
+     * @param address The device the characteristic belongs to.
      * @param characteristic The characteristic to read from.
+     *
+     * @return A future completed with the value read, or null if the device is not connected.
      */
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
+    public CompletableFuture<byte[]> readCharacteristic(String address, BluetoothGattCharacteristic characteristic) {
 
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(MainActivity.TAG, "BluetoothAdapter not initialized");
-            return;
+        GattSession session = getSession(address);
+        if (session == null) {
+            return null;
         }
 
-        mBluetoothGatt.readCharacteristic(characteristic);
+        final BluetoothGatt gatt = session.getGatt();
+        return session.getOperationQueue().enqueue(new GattOperationQueue.Operation(GattOperationQueue.TYPE_READ,
+                characteristic.getUuid(), true, () -> gatt.readCharacteristic(characteristic)));
+    }
+
+    /**
+     * Queues a write of the given value on a {@code BluetoothGattCharacteristic}.
+     *
+     * @return A future completed once the stack reports the write, or null if the device is not
+     *         connected.
+     */
+    public CompletableFuture<byte[]> writeCharacteristic(String address, BluetoothGattCharacteristic characteristic, String value) {
+        return writeCharacteristic(address, characteristic, value.getBytes(StandardCharsets.UTF_8));
     }
 
-    public void writeCharacteristic(BluetoothGattCharacteristic characteristic, String value) {
+    /**
+     * Queues a write of the given bytes on a {@code BluetoothGattCharacteristic}. The array must
+     * not be modified until the write completes.
+     *
+     * @return A future completed once the stack reports the write, or null if the device is not
+     *         connected.
+     */
+    public CompletableFuture<byte[]> writeCharacteristic(String address, BluetoothGattCharacteristic characteristic, byte[] bytes) {
 
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(MainActivity.TAG, "BluetoothAdapter not initialized");
-            return;
+        GattSession session = getSession(address);
+        if (session == null) {
+            return null;
         }
 
-        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-        characteristic.setValue(value.getBytes(StandardCharsets.UTF_8));
+        final BluetoothGatt gatt = session.getGatt();
+        return session.getOperationQueue().enqueue(new GattOperationQueue.Operation(GattOperationQueue.TYPE_WRITE,
+                characteristic.getUuid(), true, () -> {
+                    // The characteristic is shared, so its value is only set once it is our turn.
+                    characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                    characteristic.setValue(bytes);
+                    LinkOptimizer linkOptimizer = session.getLinkOptimizer();
+                    if (linkOptimizer != null) {
+                        linkOptimizer.onTraffic(bytes.length);
+                    }
+                    return gatt.writeCharacteristic(characteristic);
+                }));
+    }
 
-        mBluetoothGatt.writeCharacteristic(characteristic);
+    /**
+     * Writes without response as fast as the link allows. Nothing is queued beyond the credits of
+     * the connection: when they are used up the write is refused, and listeners get
+     * {@link GattEventListener#onWritable} once it can be tried again.
+     *
+     * @return true if the write was issued.
+     */
+    public boolean writeWithoutResponse(String address, BluetoothGattCharacteristic characteristic, byte[] value) {
+        GattSession session = getSession(address);
+        WriteFlowController<BluetoothGattCharacteristic> writeFlow = session == null ? null : session.getWriteFlow();
+        return writeFlow != null && writeFlow.tryWrite(characteristic, value);
     }
 
     /**
-     * Enables or disables notification on a give characteristic.
+     * @return The writes without response completed during the last second, or -1 if the device
+     *         is not connected.
+     */
+    public long getWritesPerSecond(String address) {
+        GattSession session = address == null ? null : mConnectionPool.get(address);
+        WriteFlowController<BluetoothGattCharacteristic> writeFlow = session == null ? null : session.getWriteFlow();
+        return writeFlow == null ? -1 : writeFlow.getWritesPerSecond();
+    }
+
+    /**
+     * Sends a payload of any size over a characteristic with the {@link BulkTransferCodec}
+     * protocol. The peripheral acknowledges with notifications, so they must be enabled on the
+     * characteristic. Calling it again with the same id and data after a failure or a
+     * reconnection resumes from what the peripheral already holds.
+     *
+     * @return A future completed once the peripheral verified the payload, or null if the device
+     *         is not connected or already sending.
+     */
+    public CompletableFuture<Void> sendBulk(String address, BluetoothGattCharacteristic characteristic, int id, byte[] data) {
+
+        GattSession session = getSession(address);
+        if (session == null || session.getBulkTransfer() != null) {
+            return null;
+        }
+
+        LinkOptimizer linkOptimizer = session.getLinkOptimizer();
+        int mtu = linkOptimizer == null ? LinkOptimizer.DEFAULT_MTU : linkOptimizer.getMtu();
+        BulkTransferSender sender = new BulkTransferSender(id, data, BulkTransferCodec.chunkSize(mtu),
+                frame -> writeCharacteristic(address, characteristic, frame), mScheduler);
+        session.setBulkTransfer(sender);
+        return sender.start().whenComplete((result, error) -> {
+            if (session.getBulkTransfer() == sender) {
+                session.setBulkTransfer(null);
+            }
+        });
+    }
+
+    /**
+     * Enables or disables notification on a give characteristic. Besides routing the values to
+     * {@code onCharacteristicChanged}, the Client Characteristic Configuration descriptor of the
+     * characteristic is written so the peripheral starts pushing them. Characteristics that
+     * can't notify are subscribed to with indications.
      *
+     * @param address The device the characteristic belongs to.
      * @param characteristic Characteristic to act on.
      * @param enabled If true, enable notification.  False otherwise.
+     *
+     * @return A future completed once the peripheral acknowledged the descriptor write, or null if
+     *         the device is not connected.
      */
-    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enabled) {
+    public CompletableFuture<byte[]> setCharacteristicNotification(String address, BluetoothGattCharacteristic characteristic, boolean enabled) {
 
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(MainActivity.TAG, "BluetoothAdapter not initialized");
-            return;
+        GattSession session = getSession(address);
+        if (session == null) {
+            return null;
         }
 
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+        final BluetoothGatt gatt = session.getGatt();
+        CompletableFuture<byte[]> local = session.getOperationQueue().enqueue(new GattOperationQueue.Operation(GattOperationQueue.TYPE_NOTIFY,
+                characteristic.getUuid(), false, () -> gatt.setCharacteristicNotification(characteristic, enabled)));
+
+        final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIGURATION_UUID);
+        if (descriptor == null) {
+            Log.w(MainActivity.TAG, "No client configuration on " + characteristic.getUuid() + ", nothing will be pushed");
+            return local;
+        }
+
+        final byte[] value;
+        if (!enabled) {
+            value = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        } else if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+            value = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        } else {
+            value = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+        }
+        return session.getOperationQueue().enqueue(new GattOperationQueue.Operation(GattOperationQueue.TYPE_DESCRIPTOR_WRITE,
+                characteristic.getUuid(), true, () -> {
+                    descriptor.setValue(value);
+                    return gatt.writeDescriptor(descriptor);
+                }));
+    }
+
+    /**
+     * @return The values the device pushed since it was connected, each one a read round trip
+     *         saved, or -1 if it is not connected.
+     */
+    public long getPushedCount(String address) {
+        GattSession session = address == null ? null : mConnectionPool.get(address);
+        return session == null ? -1 : session.getPushedCount();
+    }
+
+    /**
+     * Looks a characteristic of the device up by UUID, without walking its services. This should
+     * be invoked only after {@link GattEventListener#onServicesDiscovered} was received.
+     *
+     * @return The characteristic, or null if the device doesn't have it.
+     */
+    public BluetoothGattCharacteristic getCharacteristic(String address, UUID uuid) {
+        GattAttributeCache.Attributes<BluetoothGattCharacteristic> attributes = mAttributeCache.peek(address);
+        return attributes == null ? null : attributes.get(uuid);
     }
 
     /**
@@ -324,12 +774,46 @@ public class CentralService  extends Service {
      *
      * @return A {@code List} of supported services.
      */
-    public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) {
+    public List<BluetoothGattService> getSupportedGattServices(String address) {
+        BluetoothGatt gatt = getGatt(address);
+        if (gatt == null) {
             return null;
         }
 
-        return mBluetoothGatt.getServices();
+        return gatt.getServices();
+    }
+
+    /**
+     * @return The bytes per second moved over the connection during the last second, or -1 if the
+     *         link is not set up yet.
+     */
+    public long getThroughput(String address) {
+        GattSession session = address == null ? null : mConnectionPool.get(address);
+        LinkOptimizer linkOptimizer = session == null ? null : session.getLinkOptimizer();
+        return linkOptimizer == null ? -1 : linkOptimizer.getBytesPerSecond();
+    }
+
+    /**
+     * @return The negotiated MTU of the connection.
+     */
+    public int getMtu(String address) {
+        GattSession session = address == null ? null : mConnectionPool.get(address);
+        LinkOptimizer linkOptimizer = session == null ? null : session.getLinkOptimizer();
+        return linkOptimizer == null ? LinkOptimizer.DEFAULT_MTU : linkOptimizer.getMtu();
+    }
+
+    private BluetoothGatt getGatt(String address) {
+        GattSession session = address == null ? null : mConnectionPool.get(address);
+        return session == null ? null : session.getGatt();
+    }
+
+    private GattSession getSession(String address) {
+        GattSession session = address == null ? null : mConnectionPool.get(address);
+        if (mBluetoothAdapter == null || session == null || session.getGatt() == null) {
+            Log.w(MainActivity.TAG, "BluetoothAdapter not initialized");
+            return null;
+        }
+        return session;
     }
 
 }
@@ -0,0 +1,118 @@
+package com.example.app_central;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Owns which devices are being connected, in memory.
+ *
+ * Every state change is a compare-and-set, so the scan callback, the UI and the GATT callbacks can
+ * race without locks and without two of them starting the same connection. Only one device at a
+ * time is shown in {@link DeviceConnectionActivity}: the foreground device. Nothing here touches
+ * disk; {@link MainActivity} persists the foreground device on lifecycle boundaries.
+ */
+public class ConnectionCoordinator {
+
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+
+    private static class Holder {
+        static final ConnectionCoordinator INSTANCE = new ConnectionCoordinator();
+    }
+
+    public static ConnectionCoordinator getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private final ConcurrentHashMap<String, AtomicInteger> mStates = new ConcurrentHashMap<>();
+    private final AtomicReference<String> mForegroundDevice = new AtomicReference<>();
+
+    /**
+     * Claims the connection screen for a device. Only the first caller wins until
+     * {@link #releaseForeground()} is called.
+     *
+     * @return true if the caller should launch the connection for this device.
+     */
+    public boolean tryClaimForeground(String address) {
+        if (mForegroundDevice.get() != null || !mForegroundDevice.compareAndSet(null, address)) {
+            return false;
+        }
+        if (!transition(address, STATE_IDLE, STATE_CONNECTING)) {
+            // Already connecting or connected through another path.
+            mForegroundDevice.compareAndSet(address, null);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gives the connection screen back. A foreground device that never got connected goes back to
+     * idle so it can be claimed again.
+     */
+    public void releaseForeground() {
+        String address = mForegroundDevice.getAndSet(null);
+        if (address != null) {
+            transition(address, STATE_CONNECTING, STATE_IDLE);
+        }
+    }
+
+    public String getForegroundDevice() {
+        return mForegroundDevice.get();
+    }
+
+    /**
+     * Moves a device from one state to another.
+     *
+     * @return false if the device wasn't in the expected state.
+     */
+    public boolean transition(String address, int from, int to) {
+        return stateOf(address).compareAndSet(from, to);
+    }
+
+    /**
+     * Sets the state of a device unconditionally, e.g. from a GATT callback reporting what the
+     * link actually did.
+     */
+    public void setState(String address, int state) {
+        stateOf(address).set(state);
+    }
+
+    public int getState(String address) {
+        AtomicInteger state = mStates.get(address);
+        return state == null ? STATE_IDLE : state.get();
+    }
+
+    public List<String> getDevices(int state) {
+        List<String> devices = new ArrayList<>();
+        for (Map.Entry<String, AtomicInteger> entry : mStates.entrySet()) {
+            if (entry.getValue().get() == state) {
+                devices.add(entry.getKey());
+            }
+        }
+        return devices;
+    }
+
+    /**
+     * Restores the foreground device persisted by a previous activity, if its connection is still
+     * up. After the process died nothing is connected, and a stale claim would block every
+     * connection for good.
+     */
+    public void restoreForeground(String address) {
+        if (address != null && getState(address) == STATE_CONNECTED) {
+            mForegroundDevice.compareAndSet(null, address);
+        }
+    }
+
+    private AtomicInteger stateOf(String address) {
+        AtomicInteger state = mStates.get(address);
+        if (state == null) {
+            state = mStates.computeIfAbsent(address, key -> new AtomicInteger(STATE_IDLE));
+        }
+        return state;
+    }
+}
@@ -0,0 +1,364 @@
+package com.example.app_central;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The connection life cycle of one device, driven by {@code onConnectionStateChange}.
+ *
+ * Every event is handled under the lock of the machine, so binder callbacks, timers and user
+ * requests see one state at a time. A link lost while connected is reconnected right away on the
+ * cached {@code BluetoothGatt}. Failed attempts are retried with exponential backoff; after
+ * GATT_ERROR (133) or a connection attempt that timed out, the handle is closed and the next
+ * attempt opens a fresh one, since the stack rarely recovers on the same handle. After
+ * {@link #getMaxAttempts()} failures the machine gives up, so a reconnection never takes longer
+ * than {@link #getMaxReconnectTimeMs()}. Only {@link #disconnect()} ends a connection for good.
+ */
+public class ConnectionStateMachine {
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+    public static final int STATE_DISCONNECTING = 3;
+    public static final int STATE_WAITING_TO_RECONNECT = 4;
+
+    // Values of BluetoothProfile.STATE_*.
+    public static final int PROFILE_STATE_DISCONNECTED = 0;
+    public static final int PROFILE_STATE_CONNECTED = 2;
+
+    public static final int GATT_SUCCESS = 0;
+    // GATT_ERROR, reported for most failed connection attempts.
+    public static final int GATT_ERROR = 133;
+
+    public static final long DEFAULT_INITIAL_BACKOFF_MS = 250;
+    public static final long DEFAULT_MAX_BACKOFF_MS = 4000;
+    public static final long DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+    /**
+     * The connection requests, issued on {@code BluetoothGatt}. Called with the lock of the
+     * machine held, implementations must not call back into it synchronously.
+     */
+    public interface Link {
+        /**
+         * @param reuseHandle Connect the cached handle again instead of opening a new one.
+         * @return false if the request could not be issued.
+         */
+        boolean connect(boolean reuseHandle);
+
+        void disconnect();
+
+        /**
+         * Releases the handle, the next {@link #connect} opens a new one.
+         */
+        void close();
+    }
+
+    /**
+     * Called with the lock of the machine held, in the order of the transitions.
+     */
+    public interface Listener {
+        /**
+         * @param reconnectMs Time since the link was lost, or -1 for a first connection.
+         */
+        void onConnected(long reconnectMs);
+
+        /**
+         * The link is down and attempt {@code attempt} starts in {@code delayMs}.
+         */
+        void onReconnecting(int attempt, long delayMs, int status);
+
+        /**
+         * Disconnected for good, on request or after the last attempt failed.
+         */
+        void onDisconnected(int status);
+    }
+
+    private final Link mLink;
+    private final Listener mListener;
+    private final ScheduledExecutorService mScheduler;
+    private final long mInitialBackoffMs;
+    private final long mMaxBackoffMs;
+    private final long mConnectTimeoutMs;
+    private final int mMaxAttempts;
+
+    private int mState = STATE_DISCONNECTED;
+    private int mAttempt;
+    private boolean mHasHandle;
+    // Incremented on every transition, so timers armed in an earlier state do nothing.
+    private int mGeneration;
+    private ScheduledFuture<?> mTimer;
+    private long mLinkLostNs;
+
+    private int mReconnectCount;
+    private int mGiveUpCount;
+    private long mLastReconnectMs = -1;
+    private long mMaxReconnectMs = -1;
+    private long mTotalReconnectMs;
+
+    public ConnectionStateMachine(Link link, Listener listener, ScheduledExecutorService scheduler) {
+        this(link, listener, scheduler, DEFAULT_INITIAL_BACKOFF_MS, DEFAULT_MAX_BACKOFF_MS,
+                DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * @param initialBackoffMs Delay before the second attempt, doubled for every further attempt.
+     * @param maxBackoffMs Cap of the delay between two attempts.
+     * @param connectTimeoutMs Time an attempt may take before it counts as failed.
+     * @param maxAttempts Failed attempts in a row before giving up.
+     */
+    public ConnectionStateMachine(Link link, Listener listener, ScheduledExecutorService scheduler,
+                                  long initialBackoffMs, long maxBackoffMs, long connectTimeoutMs, int maxAttempts) {
+        mLink = link;
+        mListener = listener;
+        mScheduler = scheduler;
+        mInitialBackoffMs = initialBackoffMs;
+        mMaxBackoffMs = maxBackoffMs;
+        mConnectTimeoutMs = connectTimeoutMs;
+        mMaxAttempts = maxAttempts;
+    }
+
+    public synchronized int getState() {
+        return mState;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * Delay before attempt {@code attempt}, counting from 1. The first attempt after a link loss
+     * starts immediately.
+     */
+    public long getBackoffMs(int attempt) {
+        if (attempt <= 1) {
+            return 0;
+        }
+        long backoff = mInitialBackoffMs << Math.min(attempt - 2, 30);
+        return Math.min(backoff, mMaxBackoffMs);
+    }
+
+    /**
+     * Upper bound of the time between a link loss and the machine reconnecting or giving up.
+     */
+    public long getMaxReconnectTimeMs() {
+        long total = 0;
+        for (int attempt = 1; attempt <= mMaxAttempts; attempt++) {
+            total += getBackoffMs(attempt) + mConnectTimeoutMs;
+        }
+        return total;
+    }
+
+    /**
+     * Starts connecting, unless a connection is already up or being set up.
+     *
+     * @return false if the connection request could not be issued.
+     */
+    public synchronized boolean connect() {
+        if (mState != STATE_DISCONNECTED) {
+            return mState != STATE_DISCONNECTING;
+        }
+        mAttempt = 0;
+        mLinkLostNs = 0;
+        return attempt();
+    }
+
+    /**
+     * Ends the connection, or stops reconnecting. The machine won't reconnect on its own until
+     * {@link #connect()} is called again.
+     */
+    public synchronized void disconnect() {
+        switch (mState) {
+            case STATE_CONNECTING:
+            case STATE_CONNECTED:
+                enter(STATE_DISCONNECTING);
+                mLink.disconnect();
+                // Cancelling a connection in progress is not always reported.
+                arm(mConnectTimeoutMs);
+                break;
+            case STATE_WAITING_TO_RECONNECT:
+                enter(STATE_DISCONNECTED);
+                mListener.onDisconnected(GATT_SUCCESS);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Stops the machine without any callback, when the handle is being released anyway.
+     */
+    public synchronized void release() {
+        enter(STATE_DISCONNECTED);
+        mHasHandle = false;
+    }
+
+    /**
+     * To be called from {@code BluetoothGattCallback#onConnectionStateChange}.
+     */
+    public synchronized void onConnectionStateChange(int status, int newState) {
+        if (newState == PROFILE_STATE_CONNECTED && status == GATT_SUCCESS) {
+            onLinkUp();
+        } else if (newState == PROFILE_STATE_DISCONNECTED || status != GATT_SUCCESS) {
+            onLinkDown(status);
+        }
+    }
+
+    private void onLinkUp() {
+        switch (mState) {
+            case STATE_CONNECTING:
+            case STATE_WAITING_TO_RECONNECT:
+                enter(STATE_CONNECTED);
+                mAttempt = 0;
+                long reconnectMs = -1;
+                if (mLinkLostNs != 0) {
+                    reconnectMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mLinkLostNs);
+                    mLinkLostNs = 0;
+                    recordReconnect(reconnectMs);
+                }
+                mListener.onConnected(reconnectMs);
+                break;
+            case STATE_DISCONNECTING:
+                // Connected before the cancellation took effect, finish the job.
+                mLink.disconnect();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onLinkDown(int status) {
+        switch (mState) {
+            case STATE_CONNECTED:
+                mLinkLostNs = System.nanoTime();
+                retry(status);
+                break;
+            case STATE_CONNECTING:
+                retry(status);
+                break;
+            case STATE_DISCONNECTING:
+                enter(STATE_DISCONNECTED);
+                mListener.onDisconnected(status);
+                break;
+            default:
+                // A late report from an attempt already given up on.
+                break;
+        }
+    }
+
+    private void onTimeout(int generation) {
+        synchronized (this) {
+            if (generation != mGeneration) {
+                return;
+            }
+            if (mState == STATE_CONNECTING) {
+                mLink.disconnect();
+                retry(GATT_ERROR);
+            } else if (mState == STATE_DISCONNECTING) {
+                enter(STATE_DISCONNECTED);
+                mListener.onDisconnected(GATT_SUCCESS);
+            }
+        }
+    }
+
+    private void onBackoffElapsed(int generation) {
+        synchronized (this) {
+            if (generation == mGeneration && mState == STATE_WAITING_TO_RECONNECT) {
+                attempt();
+            }
+        }
+    }
+
+    private boolean attempt() {
+        enter(STATE_CONNECTING);
+        if (!mLink.connect(mHasHandle)) {
+            mHasHandle = false;
+            retry(GATT_ERROR);
+            return false;
+        }
+        mHasHandle = true;
+        arm(mConnectTimeoutMs);
+        return true;
+    }
+
+    private void retry(int status) {
+        mAttempt++;
+        if (status == GATT_ERROR) {
+            mLink.close();
+            mHasHandle = false;
+        }
+        if (mAttempt > mMaxAttempts) {
+            mGiveUpCount++;
+            mLinkLostNs = 0;
+            if (mHasHandle) {
+                mLink.close();
+                mHasHandle = false;
+            }
+            enter(STATE_DISCONNECTED);
+            mListener.onDisconnected(status);
+            return;
+        }
+
+        // A first connection that failed has no cached link to get back quickly.
+        long delayMs = getBackoffMs(mLinkLostNs == 0 ? mAttempt + 1 : mAttempt);
+        enter(STATE_WAITING_TO_RECONNECT);
+        mListener.onReconnecting(mAttempt, delayMs, status);
+        if (delayMs == 0) {
+            attempt();
+        } else {
+            int generation = mGeneration;
+            mTimer = mScheduler.schedule(() -> onBackoffElapsed(generation), delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void enter(int state) {
+        mState = state;
+        mGeneration++;
+        if (mTimer != null) {
+            mTimer.cancel(false);
+            mTimer = null;
+        }
+    }
+
+    private void arm(long timeoutMs) {
+        int generation = mGeneration;
+        mTimer = mScheduler.schedule(() -> onTimeout(generation), timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void recordReconnect(long reconnectMs) {
+        mReconnectCount++;
+        mLastReconnectMs = reconnectMs;
+        mMaxReconnectMs = Math.max(mMaxReconnectMs, reconnectMs);
+        mTotalReconnectMs += reconnectMs;
+    }
+
+    /**
+     * Links lost and got back.
+     */
+    public synchronized int getReconnectCount() {
+        return mReconnectCount;
+    }
+
+    /**
+     * Times the machine gave up after {@link #getMaxAttempts()} failed attempts.
+     */
+    public synchronized int getGiveUpCount() {
+        return mGiveUpCount;
+    }
+
+    /**
+     * Time the last reconnection took, or -1 if there was none.
+     */
+    public synchronized long getLastReconnectMs() {
+        return mLastReconnectMs;
+    }
+
+    public synchronized long getMaxReconnectMs() {
+        return mMaxReconnectMs;
+    }
+
+    public synchronized long getAverageReconnectMs() {
+        return mReconnectCount == 0 ? -1 : mTotalReconnectMs / mReconnectCount;
+    }
+}
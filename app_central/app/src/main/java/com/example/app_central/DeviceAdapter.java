@@ -1,5 +1,6 @@
 package com.example.app_central;
 
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.content.Context;
 import android.text.TextUtils;
@@ -10,7 +11,6 @@ import android.widget.TextView;
 
 import androidx.recyclerview.widget.RecyclerView;
 
-import java.util.ArrayList;
 import java.util.List;
 
 public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.ViewHolder>  {
@@ -28,12 +28,25 @@ public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.ViewHolder
         }
     }
 
-    private final ArrayList<ScanResult> mArrayList;
+    /**
+     * The row of one device. Rows are updated in place, so a new advertisement doesn't allocate.
+     */
+    static class DeviceRow {
+        ScanResult mScanResult;
+        int mRssi;
+
+        DeviceRow(ScanResult scanResult, int rssi) {
+            mScanResult = scanResult;
+            mRssi = rssi;
+        }
+    }
+
+    private final DeviceListIndex<DeviceRow> mDevices;
     private final Context mContext;
 
 
     public DeviceAdapter(Context context) {
-        mArrayList = new ArrayList<>();
+        mDevices = new DeviceListIndex<>();
         mContext = context;
     }
 
@@ -45,10 +58,11 @@ public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.ViewHolder
     @Override
     public void onBindViewHolder(ViewHolder holder, int position) {
 
-        ScanResult scanResult = mArrayList.get(position);
+        DeviceRow row = mDevices.get(position);
+        ScanResult scanResult = row.mScanResult;
         final String deviceName = scanResult.getDevice().getName();
         final String deviceAddress = scanResult.getDevice().getAddress();
-         final String deviceSignal = Integer.toString(scanResult.getRssi());
+        final String deviceSignal = Integer.toString(row.mRssi);
 
         /*
         Temp scanResult = mArrayList.get(position);
@@ -68,13 +82,23 @@ public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.ViewHolder
             holder.mDeviceNameAddressView.setText(deviceAddress);
         }
 
-        holder.mDeviceSignal.setText(String.format("%s dBm", deviceSignal));
+        byte[] broadcast = getBroadcast(scanResult);
+        if (broadcast != null) {
+            // The value advertised by a peripheral in broadcast mode, no connection needed.
+            char[] hex = new char[SensorBroadcastCodec.valueLength(broadcast) * 3];
+            int length = NotificationDecoder.formatHex(broadcast, SensorBroadcastCodec.HEADER_LENGTH,
+                    SensorBroadcastCodec.valueLength(broadcast), hex, 0);
+            holder.mDeviceSignal.setText(String.format("%s dBm  #%d: %s", deviceSignal,
+                    SensorBroadcastCodec.sequence(broadcast), new String(hex, 0, length).trim()));
+        } else {
+            holder.mDeviceSignal.setText(String.format("%s dBm", deviceSignal));
+        }
 
     }
 
     @Override
     public int getItemCount() {
-        return mArrayList.size();
+        return mDevices.size();
     }
 
     public void add(ScanResult scanResult) {
@@ -83,54 +107,79 @@ public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.ViewHolder
 
     /**
      * Add a ScanResult item to the adapter if a result from that device isn't already present.
-     * Otherwise updates the existing position with the new ScanResult.
+     * Otherwise updates the existing position with the new ScanResult. Only the affected row is
+     * rebound.
      */
     public void add(ScanResult scanResult, boolean notify) {
-
-        if (scanResult == null) {
-            return;
-        }
-
-        int existingPosition = getPosition(scanResult.getDevice().getAddress());
-
-        if (existingPosition >= 0) {
-            // Device is already in list, update its record.
-            mArrayList.set(existingPosition, scanResult);
-        } else {
-            // Add new Device's ScanResult to list.
-            mArrayList.add(scanResult);
+        if (scanResult != null) {
+            add(scanResult, scanResult.getRssi(), notify);
         }
+    }
 
+    /**
+     * Same as {@link #add(ScanResult, boolean)}, showing the given RSSI instead of the one of the
+     * scan result, e.g. a smoothed value.
+     */
+    public void add(ScanResult scanResult, int rssi, boolean notify) {
+        int position = update(scanResult, rssi);
         if (notify) {
-            notifyDataSetChanged();
+            if (position >= 0) {
+                // Device is already in list, its record was updated.
+                notifyItemChanged(position);
+            } else {
+                notifyItemInserted(mDevices.size() - 1);
+            }
         }
-
     }
 
     public void add(List<ScanResult> scanResults) {
         if (scanResults != null) {
+            int firstNewPosition = mDevices.size();
             for (ScanResult scanResult : scanResults) {
-                add(scanResult, false);
+                if (scanResult == null) {
+                    continue;
+                }
+                int position = update(scanResult, scanResult.getRssi());
+                if (position >= 0 && position < firstNewPosition) {
+                    notifyItemChanged(position);
+                }
+            }
+            if (mDevices.size() > firstNewPosition) {
+                notifyItemRangeInserted(firstNewPosition, mDevices.size() - firstNewPosition);
             }
-            notifyDataSetChanged();
         }
     }
 
     public void clearArrayList() {
-        mArrayList.clear();
+        mDevices.clear();
         notifyDataSetChanged();
     }
 
     /**
-     * Search the adapter for an existing device address and return it, otherwise return -1.
+     * @return The sensor broadcast in the service data of the result, or null if it has none.
      */
-    private int getPosition(String address) {
-        int position = -1;
-        for (int i = 0; i < mArrayList.size(); i++) {
-            if (mArrayList.get(i).getDevice().getAddress().equals(address)) {
-                position = i;
-                break;
-            }
+    private static byte[] getBroadcast(ScanResult scanResult) {
+        ScanRecord scanRecord = scanResult.getScanRecord();
+        byte[] payload = scanRecord == null ? null : scanRecord.getServiceData(MainActivity.HEART_RATE_SERVICE_PARCEL_UUID);
+        return SensorBroadcastCodec.isBroadcast(payload) ? payload : null;
+    }
+
+    /**
+     * Stores the result in the row of its device, adding a row for a new device.
+     *
+     * @return The position of the updated row, or -1 if a row was added at the end.
+     */
+    private int update(ScanResult scanResult, int rssi) {
+        String address = scanResult.getDevice().getAddress();
+        int position = mDevices.indexOf(address);
+
+        if (position >= 0) {
+            DeviceRow row = mDevices.get(position);
+            row.mScanResult = scanResult;
+            row.mRssi = rssi;
+        } else {
+            // Add new Device's ScanResult to list.
+            mDevices.append(address, new DeviceRow(scanResult, rssi));
         }
         return position;
     }
@@ -3,34 +3,33 @@ package com.example.app_central;
 import androidx.appcompat.app.AppCompatActivity;
 
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.widget.TextView;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 public class DeviceConnectionActivity extends AppCompatActivity {
 
-    public static final UUID HEART_RATE_SERVICE_UUID = UUID.fromString("0000180D-0000-1000-8000-00805f9b34fb");
     public static final UUID BODY_SENSOR_LOCATION_CHARACTERISTIC_UUID = UUID.fromString("00002A38-0000-1000-8000-00805f9b34fb");
 
+    // One byte light commands understood by the peripheral.
+    private static final byte[] LIGHT_RED = {0x01};
+    private static final byte[] LIGHT_GREEN = {0x02};
+    private static final int DEMO_WRITE_COUNT = 200;
+
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
 
     private CentralService mBluetoothLeService;
-    private ArrayList<ArrayList<BluetoothGattCharacteristic>> mDeviceServices;
+    private CentralService.LocalBinder mServiceBinder;
     private BluetoothGattCharacteristic mCharacteristic;
 
     private String mDeviceName;
@@ -38,18 +37,20 @@ public class DeviceConnectionActivity extends AppCompatActivity {
     private TextView mConnectionStatus;
 
     private boolean mIsConnected;
+    private int mWriteCount;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_device_connection);
-        mDeviceServices = new ArrayList<>();
         mCharacteristic = null;
         Intent intent = getIntent();
         if (intent != null) {
             mDeviceName = intent.getStringExtra(EXTRAS_DEVICE_NAME);
             mDeviceAddress = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);
         }
+        LatencyTracer.getInstance().mark(mDeviceAddress, LatencyTracer.PHASE_ACTIVITY_CREATED,
+                SystemClock.elapsedRealtimeNanos());
 
 
         mConnectionStatus = findViewById(R.id.connection_status);
@@ -66,32 +67,17 @@ public class DeviceConnectionActivity extends AppCompatActivity {
         bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
     }
 
-    @Override
-    protected void onResume() {
-        super.onResume();
-        registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
-    }
-
-    @Override
-    protected void onPause() {
-        super.onPause();
-        unregisterReceiver(mGattUpdateReceiver);
-    }
-
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mServiceBinder != null) {
+            mServiceBinder.unsubscribe(mGattEventListener);
+            mServiceBinder = null;
+        }
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
     }
 
-    private void requestWriteCharacteristic(String value) {
-        if (mBluetoothLeService != null && mCharacteristic != null) {
-            mBluetoothLeService.writeCharacteristic(mCharacteristic, value);
-        } else {
-            Log.e("Connection", "requestWriteCharacteristic failure");
-        }
-    }
 
     // Code to manage Service lifecycle.
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
@@ -99,7 +85,11 @@ public class DeviceConnectionActivity extends AppCompatActivity {
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder service) {
 
-            mBluetoothLeService = ((CentralService.LocalBinder) service).getService();
+            LatencyTracer.getInstance().mark(mDeviceAddress, LatencyTracer.PHASE_SERVICE_BOUND,
+                    SystemClock.elapsedRealtimeNanos());
+            mServiceBinder = (CentralService.LocalBinder) service;
+            mBluetoothLeService = mServiceBinder.getService();
+            mServiceBinder.subscribe(mGattEventListener, getMainExecutor(), mDeviceAddress);
 
             if (!mBluetoothLeService.initialize()) {
                 Log.e(MainActivity.TAG, "Unable to initialize Bluetooth");
@@ -113,64 +103,86 @@ public class DeviceConnectionActivity extends AppCompatActivity {
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
             mBluetoothLeService = null;
+            mServiceBinder = null;
         }
     };
 
     /*
-     Handles various events fired by the Service.
-     ACTION_GATT_CONNECTED: connected to a GATT server.
-     ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
-     ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-     ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read or notification operations.
+     Handles the events of our device fired by the Service, on the main thread.
+     onConnected: connected to a GATT server.
+     onReconnecting: lost the link, the service is getting it back.
+     onDisconnected: disconnected from a GATT server for good.
+     onServicesDiscovered: discovered GATT services.
+     onDataAvailable: received data from the device.  This can be a result of read or notification operations.
     */
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
+    private final GattEventListener mGattEventListener = new GattEventListener() {
 
-            String action = intent.getAction();
+        @Override
+        public void onConnected(String address) {
+            updateConnectionState("Connected");
+            mIsConnected = true;
+        }
 
-            if (action == null) {
-                return;
-            }
+        @Override
+        public void onReconnecting(String address, int attempt, long delayMs) {
+            updateConnectionState("Reconnecting (attempt " + attempt + ")");
+            mIsConnected = false;
+        }
 
-            switch (intent.getAction()) {
+        @Override
+        public void onDisconnected(String address) {
+            updateConnectionState("Disconnected");
+            finish();
+            mIsConnected = false;
+        }
 
-                case CentralService.ACTION_GATT_CONNECTED:
-                    updateConnectionState("Connected");
-                    mIsConnected = true;
-                    startWriteCharacteristics();
-                    break;
+        @Override
+        public void onServicesDiscovered(String address) {
+            registerCharacteristic();
+            writeCharacteristics();
+        }
 
-                case CentralService.ACTION_GATT_DISCONNECTED:
-                    updateConnectionState("Disconnected");
-                    finish();
-                    mIsConnected = false;
-                    break;
+        @Override
+        public void onWritable(String address) {
+            writeCharacteristics();
+        }
+    };
 
-                case CentralService.ACTION_GATT_SERVICES_DISCOVERED:
-                    // set all the supported services and characteristics on the user interface.
-                    setGattServices(mBluetoothLeService.getSupportedGattServices());
-                    registerCharacteristic();
-                    break;
+    /*
+     Alternates the light as fast as the link takes the writes, then disconnects. Called again by
+     onWritable whenever the service ran out of write credits.
+    */
+    private void writeCharacteristics() {
 
-                case CentralService.ACTION_DATA_AVAILABLE:
-                    break;
+        if (!mIsConnected || mBluetoothLeService == null || mCharacteristic == null) {
+            return;
+        }
 
+        while (mWriteCount < DEMO_WRITE_COUNT - 1) {
+            byte[] command = (mWriteCount & 1) == 0 ? LIGHT_RED : LIGHT_GREEN;
+            if (!mBluetoothLeService.writeWithoutResponse(mDeviceAddress, mCharacteristic, command)) {
+                return;
             }
+            mWriteCount++;
         }
-    };
-
-    private void startWriteCharacteristics() {
 
-        Handler handler = new Handler();
-        if (mIsConnected) {
-            handler.postDelayed(() -> requestWriteCharacteristic("RED"), 1000);
-            handler.postDelayed(() -> requestWriteCharacteristic("GREEN"), 2000);
-            handler.postDelayed(() -> {
+        if (mWriteCount == DEMO_WRITE_COUNT - 1) {
+            mWriteCount++;
+            // Queued behind the others, so it completes last.
+            CompletableFuture<byte[]> lastWrite = mBluetoothLeService.writeCharacteristic(mDeviceAddress, mCharacteristic, LIGHT_GREEN);
+            if (lastWrite == null) {
+                return;
+            }
+            lastWrite.whenCompleteAsync((value, error) -> {
+                if (mBluetoothLeService == null) {
+                    return;
+                }
+                Log.i(MainActivity.TAG, DEMO_WRITE_COUNT + " writes, "
+                        + mBluetoothLeService.getWritesPerSecond(mDeviceAddress) + " writes/s");
                 if (mIsConnected) {
-                    mBluetoothLeService.disconnect();
+                    mBluetoothLeService.disconnect(mDeviceAddress);
                 }
-            }, 3000);
+            }, getMainExecutor());
         }
     }
 
@@ -181,66 +193,18 @@ public class DeviceConnectionActivity extends AppCompatActivity {
     */
     private void registerCharacteristic() {
 
-        BluetoothGattCharacteristic characteristic = null;
-
-        if (mDeviceServices != null) {
-
-            /* iterate all the Services the connected device offer.
-            a Service is a collection of Characteristic.
-             */
-            for (ArrayList<BluetoothGattCharacteristic> service : mDeviceServices) {
-
-                // iterate all the Characteristic of the Service
-                for (BluetoothGattCharacteristic serviceCharacteristic : service) {
-
-                    /* check this characteristic belongs to the Service defined in
-                    PeripheralAdvertiseService.buildAdvertiseData() method
-                     */
-                    if (serviceCharacteristic.getService().getUuid().equals(HEART_RATE_SERVICE_UUID)) {
-
-                        if (serviceCharacteristic.getUuid().equals(BODY_SENSOR_LOCATION_CHARACTERISTIC_UUID)) {
-                            characteristic = serviceCharacteristic;
-                            mCharacteristic = characteristic;
-                        }
-                    }
-                }
-            }
+        // The service indexes the characteristics of the device by UUID once they are discovered.
+        BluetoothGattCharacteristic characteristic = mBluetoothLeService.getCharacteristic(mDeviceAddress,
+                BODY_SENSOR_LOCATION_CHARACTERISTIC_UUID);
 
-            if (characteristic != null) {
-                mBluetoothLeService.readCharacteristic(characteristic);
-                mBluetoothLeService.setCharacteristicNotification(characteristic, true);
-            }
-        }
-    }
-
-    /*
-    Demonstrates how to iterate through the supported GATT Services/Characteristics.
-    */
-    private void setGattServices(List<BluetoothGattService> gattServices) {
-
-        if (gattServices == null) {
-            return;
-        }
-
-        mDeviceServices = new ArrayList<>();
-
-        // Loops through available GATT Services from the connected device
-        for (BluetoothGattService gattService : gattServices) {
-            ArrayList<BluetoothGattCharacteristic> characteristic = new ArrayList<>(gattService.getCharacteristics()); // each GATT Service can have multiple characteristic
-            mDeviceServices.add(characteristic);
+        if (characteristic != null) {
+            mCharacteristic = characteristic;
+            mBluetoothLeService.readCharacteristic(mDeviceAddress, characteristic);
+            mBluetoothLeService.setCharacteristicNotification(mDeviceAddress, characteristic, true);
         }
     }
 
     private void updateConnectionState(final String msg) {
         runOnUiThread(() -> mConnectionStatus.setText(msg));
     }
-
-    private static IntentFilter makeGattUpdateIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(CentralService.ACTION_GATT_CONNECTED);
-        intentFilter.addAction(CentralService.ACTION_GATT_DISCONNECTED);
-        intentFilter.addAction(CentralService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(CentralService.ACTION_DATA_AVAILABLE);
-        return intentFilter;
-    }
 }
\ No newline at end of file
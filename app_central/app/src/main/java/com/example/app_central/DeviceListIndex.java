@@ -0,0 +1,60 @@
+package com.example.app_central;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Ordered list of items keyed by device address, with an address to position index so that
+ * finding the row of a device doesn't scan the list.
+ */
+public class DeviceListIndex<T> {
+
+    private final ArrayList<T> mItems = new ArrayList<>();
+    private final HashMap<String, Integer> mPositions = new HashMap<>();
+
+    /**
+     * @return The position of the device, or -1 if it isn't in the list.
+     */
+    public int indexOf(String address) {
+        Integer position = mPositions.get(address);
+        return position == null ? -1 : position;
+    }
+
+    /**
+     * Replaces the item of a device already in the list.
+     *
+     * @return The position of the updated item, or -1 if the device isn't in the list.
+     */
+    public int update(String address, T item) {
+        int position = indexOf(address);
+        if (position >= 0) {
+            mItems.set(position, item);
+        }
+        return position;
+    }
+
+    /**
+     * Adds the item of a new device at the end of the list.
+     *
+     * @return The position of the added item.
+     */
+    public int append(String address, T item) {
+        int position = mItems.size();
+        mItems.add(item);
+        mPositions.put(address, position);
+        return position;
+    }
+
+    public T get(int position) {
+        return mItems.get(position);
+    }
+
+    public int size() {
+        return mItems.size();
+    }
+
+    public void clear() {
+        mItems.clear();
+        mPositions.clear();
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.app_central;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * The discovered attributes of every device, kept across connections and keyed by device address
+ * and GATT database hash.
+ *
+ * Characteristics are indexed by UUID once per discovery, so looking one up doesn't walk the
+ * services. When the link comes back on the same {@code BluetoothGatt}, the handle still holds
+ * the attributes it discovered; reading the Database Hash characteristic (0x2B2A) tells whether
+ * they are still valid, which spares a full service discovery. Devices without a Database Hash
+ * are discovered again on every connection.
+ */
+public class GattAttributeCache<C> {
+
+    public static final UUID GENERIC_ATTRIBUTE_SERVICE_UUID = UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
+    public static final UUID DATABASE_HASH_UUID = UUID.fromString("00002B2A-0000-1000-8000-00805f9b34fb");
+
+    /**
+     * The attributes of one GATT database.
+     */
+    public static class Attributes<C> {
+        // Indexed by characteristic UUID; the first one found wins if a UUID is repeated.
+        private final HashMap<UUID, C> mCharacteristics;
+        private volatile byte[] mDatabaseHash;
+
+        Attributes(HashMap<UUID, C> characteristics) {
+            mCharacteristics = characteristics;
+        }
+
+        /**
+         * @return The characteristic, or null if the device doesn't have it.
+         */
+        public C get(UUID uuid) {
+            return mCharacteristics.get(uuid);
+        }
+
+        public int size() {
+            return mCharacteristics.size();
+        }
+
+        /**
+         * The Database Hash read from the device, or null if it has none or it is not read yet.
+         */
+        public byte[] getDatabaseHash() {
+            return mDatabaseHash;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Attributes<C>> mEntries = new ConcurrentHashMap<>();
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+
+    /**
+     * Indexes the characteristics found by a discovery, replacing what was known of the device.
+     */
+    public Attributes<C> put(String address, Iterable<C> characteristics, Function<C, UUID> uuidOf) {
+        HashMap<UUID, C> index = new HashMap<>();
+        for (C characteristic : characteristics) {
+            index.putIfAbsent(uuidOf.apply(characteristic), characteristic);
+        }
+        Attributes<C> attributes = new Attributes<>(index);
+        mEntries.put(address, attributes);
+        return attributes;
+    }
+
+    /**
+     * Records the Database Hash the attributes of the device were discovered with.
+     */
+    public void setDatabaseHash(String address, byte[] databaseHash) {
+        Attributes<C> attributes = mEntries.get(address);
+        if (attributes != null) {
+            attributes.mDatabaseHash = databaseHash == null ? null : databaseHash.clone();
+        }
+    }
+
+    /**
+     * The attributes of the device whatever its database hash, or null if it was never discovered.
+     */
+    public Attributes<C> peek(String address) {
+        return mEntries.get(address);
+    }
+
+    /**
+     * @param databaseHash The Database Hash the device reports now.
+     * @return The cached attributes if the device database didn't change since they were
+     *         discovered, null if it must be discovered again.
+     */
+    public Attributes<C> get(String address, byte[] databaseHash) {
+        Attributes<C> attributes = mEntries.get(address);
+        if (attributes != null && databaseHash != null && Arrays.equals(attributes.mDatabaseHash, databaseHash)) {
+            mHitCount.incrementAndGet();
+            return attributes;
+        }
+        mMissCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Forgets the device, when the handle the attributes belong to is released.
+     */
+    public void remove(String address) {
+        mEntries.remove(address);
+    }
+
+    public void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Connections that reused the cached attributes.
+     */
+    public int getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * Connections that had to discover the attributes again.
+     */
+    public int getMissCount() {
+        return mMissCount.get();
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.app_central;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.util.HashMap;
+
+/**
+ * The threads {@code BluetoothGattCallback} methods run on, handed to {@code connectGatt}.
+ *
+ * Without a handler the stack calls back on whichever binder thread delivers the event, so two
+ * callbacks of the same connection can run at once. Here every connection is bound to one
+ * looper: with {@link #MODE_SHARED} a single thread serializes the callbacks of all connections,
+ * with {@link #MODE_PER_CONNECTION} each connection gets its own thread, so a busy device doesn't
+ * delay the callbacks of the others. Work that may block never runs on these threads; it is
+ * handed to the event bus executors or to the service scheduler.
+ */
+public class GattCallbackThreads {
+
+    public static final int MODE_SHARED = 0;
+    public static final int MODE_PER_CONNECTION = 1;
+
+    private final int mMode;
+    private final HashMap<String, HandlerThread> mThreads = new HashMap<>();
+    private final HashMap<String, Handler> mHandlers = new HashMap<>();
+
+    public GattCallbackThreads(int mode) {
+        mMode = mode;
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    /**
+     * @return The handler the callbacks of the device must be delivered on, started on first use.
+     */
+    public synchronized Handler acquire(String address) {
+        String key = mMode == MODE_SHARED ? "" : address;
+        Handler handler = mHandlers.get(key);
+        if (handler == null) {
+            HandlerThread thread = new HandlerThread(mMode == MODE_SHARED ? "GattCallbacks" : "GattCallbacks-" + address);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+            mThreads.put(key, thread);
+            mHandlers.put(key, handler);
+        }
+        return handler;
+    }
+
+    /**
+     * Stops the thread of a connection that was closed. The shared thread lives until
+     * {@link #quit()}.
+     */
+    public synchronized void release(String address) {
+        if (mMode == MODE_SHARED) {
+            return;
+        }
+        HandlerThread thread = mThreads.remove(address);
+        mHandlers.remove(address);
+        if (thread != null) {
+            // Lets the callbacks already queued, such as the final disconnection, run.
+            thread.quitSafely();
+        }
+    }
+
+    public synchronized void quit() {
+        for (HandlerThread thread : mThreads.values()) {
+            thread.quitSafely();
+        }
+        mThreads.clear();
+        mHandlers.clear();
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.app_central;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the {@link GattSession}s of every connected peripheral, keyed by device address.
+ *
+ * The pool is capped: once {@link #getMaxConnections()} sessions are open, adding a new one evicts
+ * the least recently used idle session. Sessions that are connecting or have operations queued are
+ * never evicted; if none can be evicted the new session is refused.
+ */
+public class GattConnectionPool {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+    public interface EvictionListener {
+        void onEvicted(GattSession session);
+    }
+
+    // Access ordered, so iteration starts from the least recently used session.
+    private final LinkedHashMap<String, GattSession> mSessions = new LinkedHashMap<>(16, 0.75f, true);
+    private final EvictionListener mEvictionListener;
+    private int mMaxConnections;
+
+    public GattConnectionPool(int maxConnections, EvictionListener evictionListener) {
+        mMaxConnections = maxConnections;
+        mEvictionListener = evictionListener;
+    }
+
+    public synchronized int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    /**
+     * Changes the connection cap. Lowering it evicts idle sessions right away.
+     */
+    public void setMaxConnections(int maxConnections) {
+        List<GattSession> evicted;
+        synchronized (this) {
+            mMaxConnections = maxConnections;
+            evicted = evictIdle(mMaxConnections);
+        }
+        notifyEvicted(evicted);
+    }
+
+    /**
+     * Returns the session for the given address and marks it as recently used.
+     */
+    public synchronized GattSession get(String address) {
+        return mSessions.get(address);
+    }
+
+    /**
+     * Adds a session, evicting idle sessions if the pool is full.
+     *
+     * @return false if the pool is full of busy sessions and the session was not added.
+     */
+    public boolean put(GattSession session) {
+        List<GattSession> evicted;
+        boolean added;
+        synchronized (this) {
+            if (mSessions.containsKey(session.getAddress())) {
+                mSessions.put(session.getAddress(), session);
+                return true;
+            }
+            evicted = evictIdle(mMaxConnections - 1);
+            added = mSessions.size() < mMaxConnections;
+            if (added) {
+                mSessions.put(session.getAddress(), session);
+            }
+        }
+        notifyEvicted(evicted);
+        return added;
+    }
+
+    public synchronized GattSession remove(String address) {
+        return mSessions.remove(address);
+    }
+
+    public synchronized List<GattSession> removeAll() {
+        List<GattSession> sessions = new ArrayList<>(mSessions.values());
+        mSessions.clear();
+        return sessions;
+    }
+
+    public synchronized int size() {
+        return mSessions.size();
+    }
+
+    private List<GattSession> evictIdle(int targetSize) {
+        List<GattSession> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, GattSession>> iterator = mSessions.entrySet().iterator();
+        while (mSessions.size() > targetSize && iterator.hasNext()) {
+            GattSession session = iterator.next().getValue();
+            if (session.isIdle()) {
+                iterator.remove();
+                evicted.add(session);
+            }
+        }
+        return evicted;
+    }
+
+    private void notifyEvicted(List<GattSession> evicted) {
+        for (GattSession session : evicted) {
+            mEvictionListener.onEvicted(session);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.app_central;
+
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process fan-out of GATT events to {@link GattEventListener}s.
+ *
+ * Subscribers live in a copy-on-write list, so dispatching never takes a lock. Each subscriber has
+ * its own executor and a bound on the events waiting for it: connection and discovery events are
+ * always delivered, data events are dropped for a subscriber that falls too far behind instead of
+ * piling up.
+ */
+public class GattEventBus {
+
+    public static final int DEFAULT_MAX_PENDING = 64;
+
+    private static class Subscriber {
+        final GattEventListener mListener;
+        final Executor mExecutor;
+        final String mAddress;
+        final int mMaxPending;
+        final AtomicInteger mPending = new AtomicInteger();
+        final AtomicInteger mDropped = new AtomicInteger();
+
+        Subscriber(GattEventListener listener, Executor executor, String address, int maxPending) {
+            mListener = listener;
+            mExecutor = executor;
+            mAddress = address;
+            mMaxPending = maxPending;
+        }
+
+        boolean accepts(String address) {
+            return mAddress == null || mAddress.equals(address);
+        }
+
+        void deliver(Runnable event) {
+            mPending.incrementAndGet();
+            mExecutor.execute(() -> {
+                mPending.decrementAndGet();
+                event.run();
+            });
+        }
+    }
+
+    private final CopyOnWriteArrayList<Subscriber> mSubscribers = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param address Only deliver the events of this device, or null for every device.
+     */
+    public void subscribe(GattEventListener listener, Executor executor, String address) {
+        subscribe(listener, executor, address, DEFAULT_MAX_PENDING);
+    }
+
+    public void subscribe(GattEventListener listener, Executor executor, String address, int maxPending) {
+        mSubscribers.add(new Subscriber(listener, executor, address, maxPending));
+    }
+
+    public void unsubscribe(GattEventListener listener) {
+        for (Subscriber subscriber : mSubscribers) {
+            if (subscriber.mListener == listener) {
+                mSubscribers.remove(subscriber);
+            }
+        }
+    }
+
+    /**
+     * @return How many data events were dropped for the listener because it was behind.
+     */
+    public int getDroppedCount(GattEventListener listener) {
+        for (Subscriber subscriber : mSubscribers) {
+            if (subscriber.mListener == listener) {
+                return subscriber.mDropped.get();
+            }
+        }
+        return 0;
+    }
+
+    public void dispatchConnected(String address) {
+        for (Subscriber subscriber : mSubscribers) {
+            if (subscriber.accepts(address)) {
+                subscriber.deliver(() -> subscriber.mListener.onConnected(address));
+            }
+        }
+    }
+
+    public void dispatchDisconnected(String address) {
+        for (Subscriber subscriber : mSubscribers) {
+            if (subscriber.accepts(address)) {
+                subscriber.deliver(() -> subscriber.mListener.onDisconnected(address));
+            }
+        }
+    }
+
+    public void dispatchReconnecting(String address, int attempt, long delayMs) {
+        for (Subscriber subscriber : mSubscribers) {
+            if (subscriber.accepts(address)) {
+                subscriber.deliver(() -> subscriber.mListener.onReconnecting(address, attempt, delayMs));
+            }
+        }
+    }
+
+    public void dispatchServicesDiscovered(String address) {
+        for (Subscriber subscriber : mSubscribers) {
+            if (subscriber.accepts(address)) {
+                subscriber.deliver(() -> subscriber.mListener.onServicesDiscovered(address));
+            }
+        }
+    }
+
+    public void dispatchWritable(String address) {
+        for (Subscriber subscriber : mSubscribers) {
+            if (subscriber.accepts(address)) {
+                subscriber.deliver(() -> subscriber.mListener.onWritable(address));
+            }
+        }
+    }
+
+    public void dispatchDataAvailable(String address, UUID characteristicUuid, int value) {
+        for (Subscriber subscriber : mSubscribers) {
+            if (!subscriber.accepts(address)) {
+                continue;
+            }
+            if (subscriber.mPending.get() >= subscriber.mMaxPending) {
+                subscriber.mDropped.incrementAndGet();
+                continue;
+            }
+            subscriber.deliver(() -> subscriber.mListener.onDataAvailable(address, characteristicUuid, value));
+        }
+    }
+
+    public void dispatchHeartRateMeasurement(String address, int heartRate, int energyExpended, int rrIntervalCount) {
+        for (Subscriber subscriber : mSubscribers) {
+            if (!subscriber.accepts(address)) {
+                continue;
+            }
+            if (subscriber.mPending.get() >= subscriber.mMaxPending) {
+                subscriber.mDropped.incrementAndGet();
+                continue;
+            }
+            subscriber.deliver(() -> subscriber.mListener.onHeartRateMeasurement(address, heartRate,
+                    energyExpended, rrIntervalCount));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.app_central;
+
+import java.util.UUID;
+
+/**
+ * Receives the GATT events of {@link CentralService}. Subscribe through
+ * {@link CentralService.LocalBinder#subscribe}; methods are called on the executor given at
+ * subscription time.
+ */
+public interface GattEventListener {
+
+    /**
+     * Connected to a GATT server.
+     */
+    default void onConnected(String address) {
+    }
+
+    /**
+     * Disconnected from a GATT server for good, on request or after reconnecting failed.
+     */
+    default void onDisconnected(String address) {
+    }
+
+    /**
+     * Lost the link to a GATT server, attempt {@code attempt} to get it back starts in
+     * {@code delayMs}. {@link #onDisconnected} follows if every attempt fails.
+     */
+    default void onReconnecting(String address, int attempt, long delayMs) {
+    }
+
+    /**
+     * Discovered the GATT services of the device.
+     */
+    default void onServicesDiscovered(String address) {
+    }
+
+    /**
+     * Received data from the device. This can be a result of read or notification operations.
+     */
+    default void onDataAvailable(String address, UUID characteristicUuid, int value) {
+    }
+
+    /**
+     * A write without response refused for lack of credit can be tried again, see
+     * {@link CentralService#writeWithoutResponse}.
+     */
+    default void onWritable(String address) {
+    }
+
+    /**
+     * Received a Heart Rate Measurement.
+     *
+     * @param energyExpended Accumulated energy in kilojoules, or -1 if not reported.
+     * @param rrIntervalCount Number of RR intervals the measurement added, drain them with
+     *                        {@link CentralService.LocalBinder#drainRrIntervals}.
+     */
+    default void onHeartRateMeasurement(String address, int heartRate, int energyExpended, int rrIntervalCount) {
+    }
+}
@@ -0,0 +1,27 @@
+package com.example.app_central;
+
+/**
+ * Completes the future of a {@link GattOperationQueue.Operation} that could not be carried out.
+ * The status is the GATT status reported by the stack, or one of the local codes below when the
+ * operation never reached the remote device.
+ */
+public class GattOperationException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int STATUS_QUEUE_FULL = -1;
+    public static final int STATUS_NOT_ISSUED = -2;
+    public static final int STATUS_TIMEOUT = -3;
+    public static final int STATUS_CANCELLED = -4;
+
+    private final int mStatus;
+
+    public GattOperationException(String message, int status) {
+        super(message + " (status " + status + ")");
+        mStatus = status;
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+}
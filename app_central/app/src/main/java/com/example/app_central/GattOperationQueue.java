@@ -0,0 +1,255 @@
+package com.example.app_central;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes the GATT operations of one connection.
+ *
+ * Android only allows a single GATT operation in flight per {@code BluetoothGatt}; anything issued
+ * while another operation is pending is silently dropped. Operations are queued here and the next
+ * one is started from the {@code BluetoothGattCallback} completion of the previous one, so the link
+ * stays busy without any fixed delays. Each operation gets a future, a timeout and a bounded number
+ * of retries.
+ *
+ * The queue knows nothing about {@code BluetoothGatt} itself: every operation carries a
+ * {@link Starter} that issues the call, which keeps the class testable on the JVM.
+ */
+public class GattOperationQueue {
+
+    public static final int TYPE_READ = 0;
+    public static final int TYPE_WRITE = 1;
+    public static final int TYPE_NOTIFY = 2;
+    public static final int TYPE_MTU = 3;
+    public static final int TYPE_PHY = 4;
+    public static final int TYPE_PRIORITY = 5;
+    // Keyed by the UUID of the characteristic the descriptor belongs to.
+    public static final int TYPE_DESCRIPTOR_WRITE = 6;
+
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+    public static final int DEFAULT_MAX_RETRIES = 2;
+    public static final long RETRY_DELAY_MS = 20;
+
+    private static final int GATT_SUCCESS = 0;
+
+    /**
+     * Issues the operation on the underlying GATT handle.
+     */
+    public interface Starter {
+        /**
+         * @return true if the stack accepted the request, false if it has to be retried.
+         */
+        boolean start();
+    }
+
+    public static class Operation {
+        final int mType;
+        final UUID mUuid;
+        final Starter mStarter;
+        final boolean mAwaitsCallback;
+        final CompletableFuture<byte[]> mFuture = new CompletableFuture<>();
+        int mAttempts;
+        ScheduledFuture<?> mTimeout;
+
+        /**
+         * @param awaitsCallback false for operations the stack completes synchronously, such as
+         *                       {@code BluetoothGatt#setCharacteristicNotification}.
+         */
+        public Operation(int type, UUID uuid, boolean awaitsCallback, Starter starter) {
+            mType = type;
+            mUuid = uuid;
+            mAwaitsCallback = awaitsCallback;
+            mStarter = starter;
+        }
+
+        public CompletableFuture<byte[]> getFuture() {
+            return mFuture;
+        }
+
+        boolean matches(int type, UUID uuid) {
+            return mType == type && (mUuid == null || mUuid.equals(uuid));
+        }
+    }
+
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<>();
+    private final ScheduledExecutorService mScheduler;
+    private final int mCapacity;
+    private final long mTimeoutMs;
+    private final int mMaxRetries;
+
+    private Operation mCurrent;
+    private long mCompletedCount;
+
+    public GattOperationQueue(ScheduledExecutorService scheduler) {
+        this(scheduler, DEFAULT_CAPACITY, DEFAULT_TIMEOUT_MS, DEFAULT_MAX_RETRIES);
+    }
+
+    public GattOperationQueue(ScheduledExecutorService scheduler, int capacity, long timeoutMs, int maxRetries) {
+        mScheduler = scheduler;
+        mCapacity = capacity;
+        mTimeoutMs = timeoutMs;
+        mMaxRetries = maxRetries;
+    }
+
+    /**
+     * Queues an operation and starts it right away if the link is idle.
+     *
+     * @return The future of the operation. It completes with the value delivered by the callback,
+     *         or exceptionally with a {@link GattOperationException}.
+     */
+    public CompletableFuture<byte[]> enqueue(Operation operation) {
+        synchronized (this) {
+            if (mPending.size() >= mCapacity) {
+                operation.mFuture.completeExceptionally(
+                        new GattOperationException("GATT queue full", GattOperationException.STATUS_QUEUE_FULL));
+                return operation.mFuture;
+            }
+            mPending.add(operation);
+        }
+        issueNext();
+        return operation.mFuture;
+    }
+
+    /**
+     * Reports the completion of the operation in flight. Call this from the matching
+     * {@code BluetoothGattCallback} method.
+     *
+     * @return true if the completion matched the operation in flight.
+     */
+    public boolean onComplete(int type, UUID uuid, int status, byte[] value) {
+        Operation operation;
+        synchronized (this) {
+            operation = mCurrent;
+            if (operation == null || !operation.matches(type, uuid)) {
+                return false;
+            }
+            finishCurrent(operation);
+        }
+
+        if (status == GATT_SUCCESS) {
+            operation.mFuture.complete(value);
+        } else {
+            operation.mFuture.completeExceptionally(new GattOperationException("GATT operation failed", status));
+        }
+        issueNext();
+        return true;
+    }
+
+    /**
+     * Fails the operation in flight and every pending one, e.g. after a disconnection.
+     */
+    public void clear() {
+        Operation[] dropped;
+        synchronized (this) {
+            if (mCurrent != null) {
+                mPending.addFirst(mCurrent);
+                finishCurrent(mCurrent);
+            }
+            dropped = mPending.toArray(new Operation[0]);
+            mPending.clear();
+        }
+        for (Operation operation : dropped) {
+            operation.mFuture.completeExceptionally(
+                    new GattOperationException("GATT queue cleared", GattOperationException.STATUS_CANCELLED));
+        }
+    }
+
+    public synchronized boolean isIdle() {
+        return mCurrent == null && mPending.isEmpty();
+    }
+
+    public synchronized int size() {
+        return mPending.size() + (mCurrent == null ? 0 : 1);
+    }
+
+    public synchronized long getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    private void finishCurrent(Operation operation) {
+        if (operation.mTimeout != null) {
+            operation.mTimeout.cancel(false);
+            operation.mTimeout = null;
+        }
+        mCurrent = null;
+        mCompletedCount++;
+    }
+
+    private void issueNext() {
+        Operation operation;
+        synchronized (this) {
+            if (mCurrent != null || mPending.isEmpty()) {
+                return;
+            }
+            operation = mPending.poll();
+            mCurrent = operation;
+        }
+        start(operation);
+    }
+
+    private void start(Operation operation) {
+        boolean issued;
+        operation.mAttempts++;
+        try {
+            issued = operation.mStarter.start();
+        } catch (RuntimeException e) {
+            issued = false;
+        }
+
+        if (!issued) {
+            retryOrFail(operation, GattOperationException.STATUS_NOT_ISSUED, RETRY_DELAY_MS);
+        } else if (!operation.mAwaitsCallback) {
+            onComplete(operation.mType, operation.mUuid, GATT_SUCCESS, null);
+        } else {
+            synchronized (this) {
+                if (mCurrent == operation) {
+                    operation.mTimeout = mScheduler.schedule(() -> onTimeout(operation), mTimeoutMs, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    private void onTimeout(Operation operation) {
+        synchronized (this) {
+            if (mCurrent != operation) {
+                return;
+            }
+            operation.mTimeout = null;
+        }
+        retryOrFail(operation, GattOperationException.STATUS_TIMEOUT, 0);
+    }
+
+    private void retryOrFail(Operation operation, int status, long delayMs) {
+        if (operation.mAttempts <= mMaxRetries) {
+            if (delayMs > 0) {
+                mScheduler.schedule(() -> retry(operation), delayMs, TimeUnit.MILLISECONDS);
+            } else {
+                retry(operation);
+            }
+            return;
+        }
+
+        synchronized (this) {
+            if (mCurrent != operation) {
+                return;
+            }
+            finishCurrent(operation);
+        }
+        operation.mFuture.completeExceptionally(new GattOperationException("GATT operation gave up", status));
+        issueNext();
+    }
+
+    private void retry(Operation operation) {
+        synchronized (this) {
+            if (mCurrent != operation) {
+                return;
+            }
+        }
+        start(operation);
+    }
+}
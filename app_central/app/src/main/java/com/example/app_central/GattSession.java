@@ -0,0 +1,196 @@
+package com.example.app_central;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One GATT connection managed by {@link GattConnectionPool}: the {@code BluetoothGatt} handle, its
+ * connection state and the operation queue serializing its requests.
+ */
+public class GattSession {
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+
+    private final String mAddress;
+    private final GattOperationQueue mOperationQueue;
+    private final NotificationDecoder mDecoder = new NotificationDecoder();
+    private final HeartRateParser.Measurement mMeasurement = new HeartRateParser.Measurement();
+    private final RrIntervalBuffer mRrIntervals = new RrIntervalBuffer();
+    private final AtomicLong mPushedCount = new AtomicLong();
+    private volatile LinkOptimizer mLinkOptimizer;
+    private volatile BulkTransferSender mBulkTransfer;
+    private volatile WriteFlowController<BluetoothGattCharacteristic> mWriteFlow;
+    private volatile ConnectionStateMachine mStateMachine;
+    private BluetoothGatt mGatt;
+    private int mState = STATE_DISCONNECTED;
+
+    public GattSession(String address, ScheduledExecutorService scheduler) {
+        mAddress = address;
+        mOperationQueue = new GattOperationQueue(scheduler);
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public GattOperationQueue getOperationQueue() {
+        return mOperationQueue;
+    }
+
+    /**
+     * The decoder used for the values received on this connection. Only use it from the GATT
+     * callback thread.
+     */
+    public NotificationDecoder getDecoder() {
+        return mDecoder;
+    }
+
+    /**
+     * The record the heart rate measurements of this connection are parsed into. Only use it from
+     * the GATT callback thread.
+     */
+    public HeartRateParser.Measurement getMeasurement() {
+        return mMeasurement;
+    }
+
+    public RrIntervalBuffer getRrIntervals() {
+        return mRrIntervals;
+    }
+
+    /**
+     * Counts a value pushed by the peripheral with a notification or an indication.
+     */
+    public void onValuePushed() {
+        mPushedCount.incrementAndGet();
+    }
+
+    /**
+     * Values pushed by the peripheral since the session was created. Each one is a read round
+     * trip that didn't have to be made.
+     */
+    public long getPushedCount() {
+        return mPushedCount.get();
+    }
+
+    /**
+     * The optimizer of the link, set once services are discovered; null before.
+     */
+    public LinkOptimizer getLinkOptimizer() {
+        return mLinkOptimizer;
+    }
+
+    /**
+     * Closes the optimizer it replaces, set up for the previous connection.
+     */
+    public void setLinkOptimizer(LinkOptimizer linkOptimizer) {
+        LinkOptimizer previous;
+        synchronized (this) {
+            previous = mLinkOptimizer;
+            mLinkOptimizer = linkOptimizer;
+        }
+        if (previous != null && previous != linkOptimizer) {
+            previous.close();
+        }
+    }
+
+    /**
+     * The bulk transfer in progress on this connection, or null.
+     */
+    public BulkTransferSender getBulkTransfer() {
+        return mBulkTransfer;
+    }
+
+    public void setBulkTransfer(BulkTransferSender bulkTransfer) {
+        mBulkTransfer = bulkTransfer;
+    }
+
+    /**
+     * The flow control of the writes without response of this connection.
+     */
+    public WriteFlowController<BluetoothGattCharacteristic> getWriteFlow() {
+        return mWriteFlow;
+    }
+
+    public void setWriteFlow(WriteFlowController<BluetoothGattCharacteristic> writeFlow) {
+        mWriteFlow = writeFlow;
+    }
+
+    /**
+     * The connection life cycle of this session, reconnecting it when the link is lost.
+     */
+    public ConnectionStateMachine getStateMachine() {
+        return mStateMachine;
+    }
+
+    public void setStateMachine(ConnectionStateMachine stateMachine) {
+        mStateMachine = stateMachine;
+    }
+
+    public synchronized BluetoothGatt getGatt() {
+        return mGatt;
+    }
+
+    public synchronized void setGatt(BluetoothGatt gatt) {
+        mGatt = gatt;
+    }
+
+    public synchronized int getState() {
+        return mState;
+    }
+
+    /**
+     * Moves the session to a new state. Pending operations are failed whenever the link is down,
+     * including while it is being reconnected.
+     */
+    public void setState(int state) {
+        synchronized (this) {
+            mState = state;
+        }
+        if (state != STATE_CONNECTED) {
+            // Kept for its MTU, but it must not touch the priority of a link that is down. Closed
+            // first so that the clear below drops a priority request it just queued.
+            LinkOptimizer linkOptimizer = mLinkOptimizer;
+            if (linkOptimizer != null) {
+                linkOptimizer.close();
+            }
+            mOperationQueue.clear();
+            // The peripheral keeps what it received, sendBulk resumes from there.
+            BulkTransferSender bulkTransfer = mBulkTransfer;
+            if (bulkTransfer != null) {
+                bulkTransfer.cancel();
+            }
+        }
+    }
+
+    /**
+     * A session is idle, and may be evicted, when it is not setting up a connection and has no
+     * GATT operation queued or in flight.
+     */
+    public boolean isIdle() {
+        return getState() != STATE_CONNECTING && mOperationQueue.isIdle();
+    }
+
+    /**
+     * Releases the GATT handle. The session can't be used afterwards.
+     */
+    public void close() {
+        BluetoothGatt gatt;
+        synchronized (this) {
+            gatt = mGatt;
+            mGatt = null;
+        }
+        ConnectionStateMachine stateMachine = mStateMachine;
+        if (stateMachine != null) {
+            stateMachine.release();
+        }
+        setState(STATE_DISCONNECTED);
+        if (gatt != null) {
+            gatt.close();
+        }
+    }
+}
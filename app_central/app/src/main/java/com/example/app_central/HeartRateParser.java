@@ -0,0 +1,110 @@
+package com.example.app_central;
+
+import java.util.UUID;
+
+/**
+ * Parses the characteristics of the Heart Rate service as per profile specifications:
+ * https://www.bluetooth.com/specifications/specs/heart-rate-service-1-0/
+ *
+ * Every field of a Heart Rate Measurement (0x2A37) is decoded in a single pass into a reusable
+ * {@link Measurement}; RR intervals are appended to a {@link RrIntervalBuffer}.
+ */
+public class HeartRateParser {
+
+    public static final UUID HEART_RATE_MEASUREMENT_UUID = UUID.fromString("00002A37-0000-1000-8000-00805f9b34fb");
+    public static final UUID BODY_SENSOR_LOCATION_UUID = UUID.fromString("00002A38-0000-1000-8000-00805f9b34fb");
+
+    private static final int FLAG_HEART_RATE_UINT16 = 0x01;
+    private static final int FLAG_SENSOR_CONTACT_DETECTED = 0x02;
+    private static final int FLAG_SENSOR_CONTACT_SUPPORTED = 0x04;
+    private static final int FLAG_ENERGY_EXPENDED_PRESENT = 0x08;
+    private static final int FLAG_RR_INTERVALS_PRESENT = 0x10;
+
+    public static final int BODY_SENSOR_LOCATION_OTHER = 0;
+    public static final int BODY_SENSOR_LOCATION_CHEST = 1;
+    public static final int BODY_SENSOR_LOCATION_WRIST = 2;
+    public static final int BODY_SENSOR_LOCATION_FINGER = 3;
+    public static final int BODY_SENSOR_LOCATION_HAND = 4;
+    public static final int BODY_SENSOR_LOCATION_EAR_LOBE = 5;
+    public static final int BODY_SENSOR_LOCATION_FOOT = 6;
+
+    /**
+     * The fields of one Heart Rate Measurement. Instances are reused from packet to packet.
+     */
+    public static class Measurement {
+        public int heartRate;
+        public boolean sensorContactSupported;
+        public boolean sensorContactDetected;
+        /**
+         * Accumulated energy in kilojoules, or -1 when the packet doesn't carry it.
+         */
+        public int energyExpended;
+        /**
+         * Number of RR intervals the packet added to the buffer.
+         */
+        public int rrIntervalCount;
+    }
+
+    private HeartRateParser() {
+    }
+
+    /**
+     * Parses the Heart Rate Measurement held by the decoder.
+     *
+     * @param rrIntervals Receives the RR intervals of the packet, may be null to skip them.
+     *
+     * @return false if the packet is truncated. The measurement is left in an undefined state.
+     */
+    public static boolean parseMeasurement(NotificationDecoder decoder, Measurement measurement, RrIntervalBuffer rrIntervals) {
+        int flags = decoder.uint8(0);
+        if (flags < 0) {
+            return false;
+        }
+        int offset = 1;
+
+        if ((flags & FLAG_HEART_RATE_UINT16) != 0) {
+            measurement.heartRate = decoder.uint16(offset);
+            offset += 2;
+        } else {
+            measurement.heartRate = decoder.uint8(offset);
+            offset += 1;
+        }
+        if (measurement.heartRate < 0) {
+            return false;
+        }
+
+        measurement.sensorContactSupported = (flags & FLAG_SENSOR_CONTACT_SUPPORTED) != 0;
+        measurement.sensorContactDetected = measurement.sensorContactSupported
+                && (flags & FLAG_SENSOR_CONTACT_DETECTED) != 0;
+
+        measurement.energyExpended = -1;
+        if ((flags & FLAG_ENERGY_EXPENDED_PRESENT) != 0) {
+            measurement.energyExpended = decoder.uint16(offset);
+            if (measurement.energyExpended < 0) {
+                return false;
+            }
+            offset += 2;
+        }
+
+        measurement.rrIntervalCount = 0;
+        if ((flags & FLAG_RR_INTERVALS_PRESENT) != 0) {
+            // RR intervals fill the rest of the packet, two bytes each.
+            for (; offset + 1 < decoder.length(); offset += 2) {
+                if (rrIntervals != null) {
+                    rrIntervals.add(decoder.uint16(offset));
+                }
+                measurement.rrIntervalCount++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a Body Sensor Location (0x2A38) value.
+     *
+     * @return One of the BODY_SENSOR_LOCATION constants, or -1 if the value is empty.
+     */
+    public static int parseBodySensorLocation(NotificationDecoder decoder) {
+        return decoder.uint8(0);
+    }
+}
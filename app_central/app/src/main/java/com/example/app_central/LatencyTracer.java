@@ -0,0 +1,221 @@
+package com.example.app_central;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Traces where the time goes between an advertisement and the first data of the connection it
+ * leads to.
+ *
+ * Every step of the path marks the trace of its device with a monotonic timestamp, in the
+ * {@code SystemClock.elapsedRealtimeNanos()} time base of {@code ScanResult.getTimestampNanos()}.
+ * The time since the previous mark is stored as a sample of the phase in a ring of primitive
+ * arrays, so marking allocates nothing. Percentiles are computed over the samples still in the
+ * ring when asked for, see {@link #dump(PrintWriter)}.
+ */
+public class LatencyTracer {
+
+    public static final int PHASE_ADVERTISED = 0;
+    public static final int PHASE_SCAN_CALLBACK = 1;
+    public static final int PHASE_ACTIVITY_CREATED = 2;
+    public static final int PHASE_SERVICE_BOUND = 3;
+    public static final int PHASE_CONNECT = 4;
+    public static final int PHASE_CONNECTED = 5;
+    public static final int PHASE_SERVICES_DISCOVERED = 6;
+    public static final int PHASE_FIRST_DATA = 7;
+    public static final int PHASE_COUNT = 8;
+
+    // The advertisement starts a trace and has no duration of its own, its samples are the time
+    // from the advertisement to the first data.
+    public static final int TOTAL = PHASE_ADVERTISED;
+
+    private static final String[] PHASE_NAMES = {"total", "scan callback", "activity created",
+            "service bound", "connect", "connected", "services discovered", "first data"};
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int MAX_TRACES = 8;
+
+    private static class Holder {
+        static final LatencyTracer INSTANCE = new LatencyTracer();
+    }
+
+    public static LatencyTracer getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    // Traces in progress, at most one per device.
+    private final String[] mAddresses = new String[MAX_TRACES];
+    private final long[] mStartNs = new long[MAX_TRACES];
+    private final long[] mLastNs = new long[MAX_TRACES];
+    private final int[] mLastPhases = new int[MAX_TRACES];
+    private volatile int mActiveCount;
+
+    private final byte[] mPhases;
+    private final long[] mDurationsNs;
+    private final long[] mScratch;
+    private int mNext;
+    private int mSize;
+    private long mDroppedCount;
+
+    public LatencyTracer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Samples kept, across all phases.
+     */
+    public LatencyTracer(int capacity) {
+        mPhases = new byte[capacity];
+        mDurationsNs = new long[capacity];
+        mScratch = new long[capacity];
+    }
+
+    public static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    /**
+     * Starts the trace of a device, replacing any trace of it still in progress.
+     *
+     * @param advertisedNs When the advertisement was received.
+     */
+    public synchronized void begin(String address, long advertisedNs) {
+        int slot = find(address);
+        if (slot < 0) {
+            slot = find(null);
+        }
+        if (slot < 0) {
+            // Evict the oldest trace, it will probably never complete.
+            slot = 0;
+            for (int i = 1; i < MAX_TRACES; i++) {
+                if (mStartNs[i] < mStartNs[slot]) {
+                    slot = i;
+                }
+            }
+            mDroppedCount++;
+        } else if (mAddresses[slot] == null) {
+            mActiveCount++;
+        }
+        mAddresses[slot] = address;
+        mStartNs[slot] = advertisedNs;
+        mLastNs[slot] = advertisedNs;
+        mLastPhases[slot] = PHASE_ADVERTISED;
+    }
+
+    /**
+     * Marks the end of a phase for the device. Ignored if the device has no trace in progress or
+     * the trace is already past the phase, so it can be called on every event.
+     * {@link #PHASE_FIRST_DATA} ends the trace.
+     */
+    public void mark(String address, int phase, long nowNs) {
+        if (mActiveCount == 0 || address == null) {
+            return;
+        }
+        synchronized (this) {
+            int slot = find(address);
+            if (slot < 0 || phase <= mLastPhases[slot]) {
+                return;
+            }
+            record(phase, nowNs - mLastNs[slot]);
+            mLastNs[slot] = nowNs;
+            mLastPhases[slot] = phase;
+            if (phase == PHASE_FIRST_DATA) {
+                record(TOTAL, nowNs - mStartNs[slot]);
+                mAddresses[slot] = null;
+                mActiveCount--;
+            }
+        }
+    }
+
+    /**
+     * Drops the trace of the device, when the connection won't complete.
+     */
+    public synchronized void cancel(String address) {
+        int slot = address == null ? -1 : find(address);
+        if (slot >= 0) {
+            mAddresses[slot] = null;
+            mActiveCount--;
+        }
+    }
+
+    private int find(String address) {
+        for (int i = 0; i < MAX_TRACES; i++) {
+            String slotAddress = mAddresses[i];
+            if (address == null ? slotAddress == null : address.equals(slotAddress)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void record(int phase, long durationNs) {
+        mPhases[mNext] = (byte) phase;
+        mDurationsNs[mNext] = durationNs;
+        mNext = (mNext + 1) % mPhases.length;
+        if (mSize < mPhases.length) {
+            mSize++;
+        }
+    }
+
+    /**
+     * @return The samples of the phase still in the ring.
+     */
+    public synchronized int getSampleCount(int phase) {
+        int count = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (mPhases[i] == phase) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     * @return The duration of the phase below which this percentage of its samples fall, or -1
+     *         without samples.
+     */
+    public synchronized long getPercentileNs(int phase, int percentile) {
+        int count = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (mPhases[i] == phase) {
+                mScratch[count++] = mDurationsNs[i];
+            }
+        }
+        if (count == 0) {
+            return -1;
+        }
+        Arrays.sort(mScratch, 0, count);
+        int rank = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return mScratch[Math.max(0, Math.min(rank, count - 1))];
+    }
+
+    /**
+     * Traces evicted before they completed because more than {@link #MAX_TRACES} were open.
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(mAddresses, null);
+        mActiveCount = 0;
+        mNext = 0;
+        mSize = 0;
+        mDroppedCount = 0;
+    }
+
+    /**
+     * Writes the sample count, p50 and p99 of every phase, in milliseconds.
+     */
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Scan to first data latency (ms):");
+        for (int phase = PHASE_SCAN_CALLBACK; phase <= PHASE_COUNT; phase++) {
+            // The total goes last.
+            int p = phase % PHASE_COUNT;
+            writer.printf("  %-20s n=%-5d p50=%-8.1f p99=%.1f%n", getPhaseName(p), getSampleCount(p),
+                    getPercentileNs(p, 50) / 1e6, getPercentileNs(p, 99) / 1e6);
+        }
+        writer.println("  dropped traces: " + mDroppedCount);
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.app_central;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tunes a connection for throughput once its services are discovered.
+ *
+ * The largest MTU is negotiated first, then LE 2M PHY is requested when this phone supports it;
+ * the peripheral answers with the PHY both sides support. Both go through the operation queue so
+ * they don't collide with other requests. Traffic switches the link to high connection priority,
+ * and it falls back to balanced priority once idle for {@link #getIdleTimeoutMs()}. An optimizer
+ * serves one connection: {@link #close()} it when the link goes down or the handle is replaced.
+ */
+public class LinkOptimizer {
+
+    public static final int DEFAULT_MTU = 23;
+    public static final int MAX_MTU = 517;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 2000;
+
+    // Values of BluetoothGatt.CONNECTION_PRIORITY_*.
+    public static final int PRIORITY_BALANCED = 0;
+    public static final int PRIORITY_HIGH = 1;
+
+    // Values of BluetoothDevice.PHY_LE_*.
+    public static final int PHY_LE_1M = 1;
+    public static final int PHY_LE_2M = 2;
+
+    private static final int ATT_HEADER_LENGTH = 3;
+
+    /**
+     * The link requests, issued on {@code BluetoothGatt}.
+     */
+    public interface Link {
+        boolean requestMtu(int mtu);
+
+        void setPreferredPhy2M();
+
+        boolean requestConnectionPriority(int priority);
+    }
+
+    private final Link mLink;
+    private final GattOperationQueue mOperationQueue;
+    private final ScheduledExecutorService mScheduler;
+    private final boolean mLe2MSupported;
+    private final long mIdleTimeoutMs;
+    private final ThroughputMeter mThroughput = new ThroughputMeter();
+
+    private volatile int mMtu = DEFAULT_MTU;
+    private volatile int mTxPhy = PHY_LE_1M;
+    private volatile int mPriority = PRIORITY_BALANCED;
+    private volatile long mLastTrafficNs;
+    // The pending idle check, or null.
+    private ScheduledFuture<?> mIdleCheckFuture;
+    private boolean mClosed;
+
+    private final Runnable mIdleCheck = this::checkIdle;
+
+    public LinkOptimizer(Link link, GattOperationQueue operationQueue, ScheduledExecutorService scheduler, boolean le2MSupported) {
+        this(link, operationQueue, scheduler, le2MSupported, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    public LinkOptimizer(Link link, GattOperationQueue operationQueue, ScheduledExecutorService scheduler,
+                         boolean le2MSupported, long idleTimeoutMs) {
+        mLink = link;
+        mOperationQueue = operationQueue;
+        mScheduler = scheduler;
+        mLe2MSupported = le2MSupported;
+        mIdleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Queues the MTU and PHY requests.
+     *
+     * @return A future completed once both were handled, whatever the peripheral accepted.
+     */
+    public CompletableFuture<Void> start() {
+        CompletableFuture<byte[]> mtu = mOperationQueue.enqueue(new GattOperationQueue.Operation(
+                GattOperationQueue.TYPE_MTU, null, true, () -> mLink.requestMtu(MAX_MTU)));
+        if (!mLe2MSupported) {
+            return mtu.handle((value, error) -> null);
+        }
+        // There's no callback when the PHY doesn't change, onPhyUpdate only records the result.
+        CompletableFuture<byte[]> phy = mOperationQueue.enqueue(new GattOperationQueue.Operation(
+                GattOperationQueue.TYPE_PHY, null, false, () -> {
+                    mLink.setPreferredPhy2M();
+                    return true;
+                }));
+        return CompletableFuture.allOf(mtu.handle((value, error) -> null), phy.handle((value, error) -> null));
+    }
+
+    /**
+     * To be called from {@code BluetoothGattCallback#onMtuChanged}.
+     */
+    public void onMtuChanged(int mtu, int status) {
+        if (status == 0) {
+            mMtu = mtu;
+        }
+        mOperationQueue.onComplete(GattOperationQueue.TYPE_MTU, null, status, null);
+    }
+
+    /**
+     * To be called from {@code BluetoothGattCallback#onPhyUpdate}.
+     */
+    public void onPhyUpdate(int txPhy, int rxPhy, int status) {
+        if (status == 0) {
+            mTxPhy = txPhy;
+        }
+    }
+
+    /**
+     * Records bytes sent or received. The first traffic after an idle period raises the
+     * connection priority.
+     */
+    public void onTraffic(int bytes) {
+        long now = System.nanoTime();
+        mLastTrafficNs = now;
+        mThroughput.record(bytes, now);
+        if (mPriority == PRIORITY_HIGH) {
+            return;
+        }
+        synchronized (this) {
+            if (mPriority == PRIORITY_HIGH || mClosed) {
+                return;
+            }
+            mPriority = PRIORITY_HIGH;
+            scheduleIdleCheck(mIdleTimeoutMs);
+        }
+        requestPriority(PRIORITY_HIGH);
+    }
+
+    /**
+     * Cancels the pending idle check. The connection priority isn't changed anymore, the handle
+     * may already be closed or used by another optimizer.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        if (mIdleCheckFuture != null) {
+            mIdleCheckFuture.cancel(false);
+            mIdleCheckFuture = null;
+        }
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * The largest value that fits in one notification or write without response.
+     */
+    public int getMaxPayload() {
+        return mMtu - ATT_HEADER_LENGTH;
+    }
+
+    public int getTxPhy() {
+        return mTxPhy;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public long getIdleTimeoutMs() {
+        return mIdleTimeoutMs;
+    }
+
+    public long getBytesPerSecond() {
+        return mThroughput.getBytesPerSecond(System.nanoTime());
+    }
+
+    public long getTotalBytes() {
+        return mThroughput.getTotalBytes();
+    }
+
+    private void checkIdle() {
+        long idleNs = System.nanoTime() - mLastTrafficNs;
+        long timeoutNs = TimeUnit.MILLISECONDS.toNanos(mIdleTimeoutMs);
+        synchronized (this) {
+            mIdleCheckFuture = null;
+            if (mClosed) {
+                return;
+            }
+            if (idleNs < timeoutNs) {
+                // Traffic since the check was scheduled, look again when it may have stopped.
+                scheduleIdleCheck(TimeUnit.NANOSECONDS.toMillis(timeoutNs - idleNs) + 1);
+                return;
+            }
+            mPriority = PRIORITY_BALANCED;
+        }
+        requestPriority(PRIORITY_BALANCED);
+    }
+
+    private void scheduleIdleCheck(long delayMs) {
+        if (mIdleCheckFuture == null) {
+            mIdleCheckFuture = mScheduler.schedule(mIdleCheck, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void requestPriority(int priority) {
+        mOperationQueue.enqueue(new GattOperationQueue.Operation(
+                GattOperationQueue.TYPE_PRIORITY, null, false, () -> mLink.requestConnectionPriority(priority)));
+    }
+}
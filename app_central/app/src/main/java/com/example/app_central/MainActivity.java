@@ -14,18 +14,21 @@ import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
-import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.os.ParcelUuid;
 import android.util.Log;
 import android.widget.Button;
+import android.widget.Switch;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
@@ -33,20 +36,56 @@ public class MainActivity extends AppCompatActivity {
     public static final String TAG = "BluetoothLE";
 
     private static final UUID HEART_RATE_SERVICE_UUID = UUID.fromString("0000180D-0000-1000-8000-00805f9b34fb");
+    // The key of the sensor broadcast in the service data of the scan record.
+    static final ParcelUuid HEART_RATE_SERVICE_PARCEL_UUID = new ParcelUuid(HEART_RATE_SERVICE_UUID);
     private static final int PERMISSION_REQUEST_CODE = 2;
-    private static final String IS_NEED_START_SCAN_KEY = "IS_NEED_START_SCAN_KEY";
+    private static final String FOREGROUND_DEVICE_KEY = "FOREGROUND_DEVICE_KEY";
+    private static final String BROADCAST_MODE_KEY = "BROADCAST_MODE_KEY";
+    private static final String BATCH_SCAN_KEY = "BATCH_SCAN_KEY";
 
     private ScanCallback mScanCallback;
     private BluetoothLeScanner mBluetoothLeScanner;
     private Boolean mIsScanning = false;
     private Button mButtonScanAction;
     private DeviceAdapter mDevicesAdapter;
+    // Immediate results by default: a batched scan delays the auto-connect by up to the report
+    // delay. Batching is opted into on the scan screen.
+    private ScanProfile mScanProfile = ScanProfile.INTERACTIVE;
+    private final ScanStatistics mScanStatistics = new ScanStatistics();
+    // In broadcast mode the value advertised by the peripherals is read from the scan records and
+    // shown in the list, and no device is connected to.
+    private volatile boolean mBroadcastMode;
+    private final SensorBroadcastTracker mBroadcasts = new SensorBroadcastTracker();
+
+    private final ScanResultCoalescer<ScanResult> mScanResults = new ScanResultCoalescer<>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ScanResultCoalescer.Publisher<ScanResult> mScanResultPublisher =
+            (address, result, rssi) -> mDevicesAdapter.add(result, rssi, true);
+
+    /*
+    Publishes the devices updated since the last frame to the list, at most once per publish
+    interval, for as long as the scan runs.
+    */
+    private final Runnable mPublishScanResults = new Runnable() {
+        @Override
+        public void run() {
+            mScanResults.publish(mScanResultPublisher);
+            if (mIsScanning) {
+                mHandler.postDelayed(this, mScanResults.getPublishIntervalMs());
+            }
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        // Only read back on creation, and only kept if the device is still connected; the scan path
+        // never touches the preferences.
+        ConnectionCoordinator.getInstance().restoreForeground(
+                ManagePreference.getInstance(this).getDataString(FOREGROUND_DEVICE_KEY));
+
         RecyclerView mDeviceRecyclerView = findViewById(R.id.devices_recycler_view);
         mDeviceRecyclerView.setHasFixedSize(true);
         mDeviceRecyclerView.setLayoutManager(new LinearLayoutManager(this));
@@ -65,6 +104,24 @@ public class MainActivity extends AppCompatActivity {
                 startBLEScan();
             }
         });
+
+        // Applies to the next scan result, the scan keeps running.
+        mBroadcastMode = ManagePreference.getInstance(this).getDataBoolean(BROADCAST_MODE_KEY);
+        Switch broadcastSwitch = findViewById(R.id.broadcast_switch);
+        broadcastSwitch.setChecked(mBroadcastMode);
+        broadcastSwitch.setOnClickListener(view -> {
+            mBroadcastMode = broadcastSwitch.isChecked();
+            ManagePreference.getInstance(this).saveDataBoolean(BROADCAST_MODE_KEY, mBroadcastMode);
+        });
+
+        boolean batched = ManagePreference.getInstance(this).getDataBoolean(BATCH_SCAN_KEY);
+        mScanProfile = batched ? ScanProfile.BATCHED : ScanProfile.INTERACTIVE;
+        Switch batchScanSwitch = findViewById(R.id.batch_scan_switch);
+        batchScanSwitch.setChecked(batched);
+        batchScanSwitch.setOnClickListener(view -> {
+            ManagePreference.getInstance(this).saveDataBoolean(BATCH_SCAN_KEY, batchScanSwitch.isChecked());
+            setScanProfile(batchScanSwitch.isChecked() ? ScanProfile.BATCHED : ScanProfile.INTERACTIVE);
+        });
     }
 
 
@@ -94,18 +151,45 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onRestart() {
         super.onRestart();
-        ManagePreference managePreference = ManagePreference.getInstance(getBaseContext());
-        Boolean isNeedStartScan = managePreference.getDataBoolean(IS_NEED_START_SCAN_KEY);
+        // Back from the connection screen, another device may be launched.
+        ConnectionCoordinator.getInstance().releaseForeground();
+    }
 
-        if (isNeedStartScan) {
-            managePreference.saveDataBoolean(IS_NEED_START_SCAN_KEY, false);
+    @Override
+    protected void onStop() {
+        super.onStop();
+        ManagePreference.getInstance(this).saveDataString(FOREGROUND_DEVICE_KEY,
+                ConnectionCoordinator.getInstance().getForegroundDevice());
+    }
+
+    /**
+     * Sets the scan parameters, restarting a running scan with them.
+     */
+    private void setScanProfile(ScanProfile scanProfile) {
+        mScanProfile = scanProfile;
+        if (mIsScanning) {
+            stopBLEScan();
+            startBLEScan();
         }
     }
 
     private void stopBLEScan() {
         if (null != mBluetoothLeScanner) {
+            if (mScanProfile.isBatched()) {
+                // Deliver what the controller still holds before stopping.
+                mBluetoothLeScanner.flushPendingScanResults(mScanCallback);
+            }
             mBluetoothLeScanner.stopScan(mScanCallback);
             mIsScanning = false;
+            long now = SystemClock.elapsedRealtime();
+            Log.i(TAG, "Scan callbacks/min: " + mScanStatistics.getCallbacksPerMinute(now)
+                    + ", saved by batching: " + mScanStatistics.getSavedCallbacksPerMinute(now));
+            if (mBroadcastMode) {
+                Log.i(TAG, "Broadcast readings: " + mBroadcasts.getReadingCount()
+                        + ", repeated: " + mBroadcasts.getDuplicateCount() + ", missed: " + mBroadcasts.getMissedCount());
+            }
+            mHandler.removeCallbacks(mPublishScanResults);
+            mScanResults.publish(mScanResultPublisher);
             mButtonScanAction.setText(R.string.StartScan);
         }
     }
@@ -118,6 +202,8 @@ public class MainActivity extends AppCompatActivity {
             if (null != mDevicesAdapter) {
                 mDevicesAdapter.clearArrayList();
             }
+            mScanResults.clear();
+            mBroadcasts.clear();
 
             BluetoothAdapter bluetoothAdapter = getBluetoothAdapter();
             if (null != bluetoothAdapter) {
@@ -128,9 +214,11 @@ public class MainActivity extends AppCompatActivity {
                         mScanCallback = null;
                     }
                     mScanCallback = new CustomScanCallBack();
-                    mBluetoothLeScanner.startScan(buildScanFilters(), buildScanSettings(), mScanCallback);
+                    mScanStatistics.start(SystemClock.elapsedRealtime());
+                    mBluetoothLeScanner.startScan(buildScanFilters(), mScanProfile.toScanSettings(bluetoothAdapter), mScanCallback);
                     mIsScanning = true;
                     mButtonScanAction.setText(R.string.StopScan);
+                    mHandler.postDelayed(mPublishScanResults, mScanResults.getPublishIntervalMs());
                 }
             }
         }
@@ -155,66 +243,105 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * Return a List of {@link ScanFilter} objects to filter by Service UUID.
+     * Return a List of {@link ScanFilter} objects to filter by Service UUID. The controller
+     * drops every other advertisement.
      */
     private List<ScanFilter> buildScanFilters() {
-
-        List<ScanFilter> scanFilters = new ArrayList<>();
-
-        ScanFilter.Builder builder = new ScanFilter.Builder();
-        scanFilters.add(builder.build());
-
-        return scanFilters;
+        return new ScanFilterBuilder()
+                .addServiceUuid(HEART_RATE_SERVICE_UUID)
+                .build();
     }
 
     /**
-     * Return a {@link ScanSettings} object set to use low power (to preserve battery life).
-     */
-    private ScanSettings buildScanSettings() {
-        ScanSettings.Builder builder = new ScanSettings.Builder();
-        builder.setScanMode(ScanSettings.SCAN_MODE_BALANCED);
-        return builder.build();
-    }
-
-    /**
-     * Custom ScanCallback object - adds to adapter on success, displays error on failure.
+     * Custom ScanCallback object - hands results to the coalescer on success, displays error on
+     * failure. The list itself is only touched by {@link #mPublishScanResults}.
      */
     private class CustomScanCallBack extends ScanCallback {
 
         @Override
         public void onBatchScanResults(List<ScanResult> results) {
             super.onBatchScanResults(results);
-            mDevicesAdapter.add(results);
+            if (results != null) {
+                mScanStatistics.onCallback(results.size());
+                for (ScanResult result : results) {
+                    handleResult(result);
+                }
+            }
             logResults(results);
         }
 
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
             super.onScanResult(callbackType, result);
-            mDevicesAdapter.add(result);
+            mScanStatistics.onCallback(1);
+            handleResult(result);
+            logResults(result);
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            super.onScanFailed(errorCode);
+            Log.e(TAG, "Scan failed with error:" + errorCode);
+
+            // Some controllers reject batching even though they claim to support it.
+            if (errorCode == ScanCallback.SCAN_FAILED_FEATURE_UNSUPPORTED && mScanProfile != ScanProfile.INTERACTIVE) {
+                mHandler.post(() -> {
+                    stopBLEScan();
+                    mScanProfile = ScanProfile.INTERACTIVE;
+                    startBLEScan();
+                });
+            }
+        }
+
+        private void handleResult(ScanResult result) {
+            offer(result);
 
-            if (null != result) {
+            if (mBroadcastMode) {
+                readBroadcast(result);
+                return;
+            }
+
+            if (null != result && null != result.getScanRecord()) {
                 List<ParcelUuid> serviceUuid = result.getScanRecord().getServiceUuids();
                 if (null != serviceUuid) {
                     for (ParcelUuid uuid : serviceUuid) {
-                        if (uuid.toString().equals(HEART_RATE_SERVICE_UUID.toString())) {
-                            ManagePreference managePreference = ManagePreference.getInstance(getBaseContext());
-                            if (!managePreference.getDataBoolean(IS_NEED_START_SCAN_KEY)) {
-                                managePreference.saveDataBoolean(IS_NEED_START_SCAN_KEY, true);
-                                startConnectionActivity(result.getDevice().getName(), result.getDevice().getAddress());
+                        // UUID.equals compares the two parsed longs, no string is built.
+                        if (HEART_RATE_SERVICE_UUID.equals(uuid.getUuid())) {
+                            String address = result.getDevice().getAddress();
+                            if (ConnectionCoordinator.getInstance().tryClaimForeground(address)) {
+                                LatencyTracer tracer = LatencyTracer.getInstance();
+                                tracer.begin(address, result.getTimestampNanos());
+                                tracer.mark(address, LatencyTracer.PHASE_SCAN_CALLBACK, SystemClock.elapsedRealtimeNanos());
+                                startConnectionActivity(result.getDevice().getName(), address);
                             }
                             break;
                         }
                     }
                 }
             }
-            logResults(result);
         }
 
-        @Override
-        public void onScanFailed(int errorCode) {
-            super.onScanFailed(errorCode);
-            Log.e(TAG, "Scan failed with error:" + errorCode);
+        /**
+         * The list shows the value of the latest result; only a new sequence number is logged.
+         */
+        private void readBroadcast(ScanResult result) {
+            ScanRecord scanRecord = result == null ? null : result.getScanRecord();
+            if (scanRecord == null || result.getDevice() == null) {
+                return;
+            }
+            byte[] payload = scanRecord.getServiceData(HEART_RATE_SERVICE_PARCEL_UUID);
+            if (SensorBroadcastCodec.isBroadcast(payload)
+                    && mBroadcasts.offer(result.getDevice().getAddress(), payload)
+                    && Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, result.getDevice().getAddress() + " broadcast #" + SensorBroadcastCodec.sequence(payload)
+                        + ": " + SensorBroadcastCodec.valueLength(payload) + " bytes");
+            }
+        }
+
+        private void offer(ScanResult result) {
+            if (result != null && result.getDevice() != null) {
+                mScanResults.offer(result.getDevice().getAddress(), result, result.getRssi());
+            }
         }
 
         private void logResults(List<ScanResult> results) {
@@ -229,7 +356,10 @@ public class MainActivity extends AppCompatActivity {
             if (result != null) {
                 BluetoothDevice device = result.getDevice();
                 if (device != null) {
-                    Log.v(MainActivity.TAG, device.getName() + " " + device.getAddress());
+                    // Skip building the message at scan rate unless verbose logging is on.
+                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                        Log.v(MainActivity.TAG, device.getName() + " " + device.getAddress());
+                    }
                     return;
                 }
             }
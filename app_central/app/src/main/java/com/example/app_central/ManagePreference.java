@@ -8,9 +8,10 @@ public class ManagePreference {
     private static ManagePreference managePreference;
     private final SharedPreferences sharedPreferences;
 
-    public static ManagePreference getInstance(Context context) {
+    public static synchronized ManagePreference getInstance(Context context) {
         if (managePreference == null) {
-            managePreference = new ManagePreference(context);
+            // Keep the application context, the singleton outlives any activity.
+            managePreference = new ManagePreference(context.getApplicationContext());
         }
         return managePreference;
     }
@@ -19,6 +20,23 @@ public class ManagePreference {
         sharedPreferences = context.getSharedPreferences("YourCustomNamedPreference", Context.MODE_PRIVATE);
     }
 
+    public void saveDataString(String key, String value) {
+        SharedPreferences.Editor prefsEditor = sharedPreferences.edit();
+        if (value == null) {
+            prefsEditor.remove(key);
+        } else {
+            prefsEditor.putString(key, value);
+        }
+        prefsEditor.apply();
+    }
+
+    public String getDataString(String key) {
+        if (sharedPreferences != null) {
+            return sharedPreferences.getString(key, null);
+        }
+        return null;
+    }
+
     public void saveDataBoolean(String key, Boolean value) {
         SharedPreferences.Editor prefsEditor = sharedPreferences.edit();
         prefsEditor.putBoolean(key, value);
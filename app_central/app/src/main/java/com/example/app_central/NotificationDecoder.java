@@ -0,0 +1,92 @@
+package com.example.app_central;
+
+/**
+ * Decodes characteristic values without allocating.
+ *
+ * Every value is copied into a buffer owned by the decoder and read back with primitive accessors,
+ * so nothing is boxed or allocated per notification. A decoder is not thread safe; each
+ * {@link GattSession} owns one, and the callbacks of a connection are delivered one at a time.
+ */
+public class NotificationDecoder {
+
+    /**
+     * Largest attribute value allowed by the ATT protocol.
+     */
+    public static final int MAX_ATTRIBUTE_LENGTH = 512;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final byte[] mBuffer = new byte[MAX_ATTRIBUTE_LENGTH];
+    private final char[] mHexBuffer = new char[MAX_ATTRIBUTE_LENGTH * 3];
+    private int mLength;
+
+    /**
+     * Copies a characteristic value into the decoder, truncating it to
+     * {@link #MAX_ATTRIBUTE_LENGTH}.
+     *
+     * @return The number of bytes available for decoding.
+     */
+    public int copy(byte[] value) {
+        if (value == null) {
+            mLength = 0;
+        } else {
+            mLength = Math.min(value.length, MAX_ATTRIBUTE_LENGTH);
+            System.arraycopy(value, 0, mBuffer, 0, mLength);
+        }
+        return mLength;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    /**
+     * @return The unsigned byte at the given offset, or -1 if the value is too short.
+     */
+    public int uint8(int offset) {
+        if (offset < 0 || offset >= mLength) {
+            return -1;
+        }
+        return mBuffer[offset] & 0xFF;
+    }
+
+    /**
+     * @return The little-endian unsigned 16-bit value at the given offset, or -1 if the value is
+     *         too short.
+     */
+    public int uint16(int offset) {
+        if (offset < 0 || offset + 1 >= mLength) {
+            return -1;
+        }
+        return (mBuffer[offset] & 0xFF) | ((mBuffer[offset + 1] & 0xFF) << 8);
+    }
+
+    /**
+     * Formats the current value as "0A 1B 2C " into the decoder's character buffer.
+     *
+     * @return The number of characters written to {@link #getHexChars()}.
+     */
+    public int formatHex() {
+        return formatHex(mBuffer, 0, mLength, mHexBuffer, 0);
+    }
+
+    public char[] getHexChars() {
+        return mHexBuffer;
+    }
+
+    /**
+     * Writes three characters per byte, two hex digits and a space, using a lookup table.
+     *
+     * @return The number of characters written.
+     */
+    public static int formatHex(byte[] src, int offset, int length, char[] dst, int dstOffset) {
+        int position = dstOffset;
+        for (int i = offset; i < offset + length; i++) {
+            int value = src[i] & 0xFF;
+            dst[position++] = HEX_DIGITS[value >>> 4];
+            dst[position++] = HEX_DIGITS[value & 0x0F];
+            dst[position++] = ' ';
+        }
+        return position - dstOffset;
+    }
+}
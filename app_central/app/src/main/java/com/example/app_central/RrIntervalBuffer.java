@@ -0,0 +1,74 @@
+package com.example.app_central;
+
+/**
+ * Ring buffer of RR intervals, stored as primitives in the 1/1024 second resolution of the Heart
+ * Rate Measurement. When full, the oldest intervals are overwritten.
+ *
+ * The GATT callback thread adds intervals and any other thread drains them.
+ */
+public class RrIntervalBuffer {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final int[] mIntervals;
+    private int mHead;
+    private int mSize;
+    private long mOverwritten;
+
+    public RrIntervalBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RrIntervalBuffer(int capacity) {
+        mIntervals = new int[capacity];
+    }
+
+    public synchronized void add(int interval) {
+        int tail = (mHead + mSize) % mIntervals.length;
+        mIntervals[tail] = interval;
+        if (mSize == mIntervals.length) {
+            mHead = (mHead + 1) % mIntervals.length;
+            mOverwritten++;
+        } else {
+            mSize++;
+        }
+    }
+
+    /**
+     * Moves the oldest intervals into the destination array.
+     *
+     * @return The number of intervals copied.
+     */
+    public synchronized int drain(int[] destination) {
+        int count = Math.min(mSize, destination.length);
+        for (int i = 0; i < count; i++) {
+            destination[i] = mIntervals[(mHead + i) % mIntervals.length];
+        }
+        mHead = (mHead + count) % mIntervals.length;
+        mSize -= count;
+        return count;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @return How many intervals were lost because nobody drained the buffer in time.
+     */
+    public synchronized long getOverwrittenCount() {
+        return mOverwritten;
+    }
+
+    public synchronized void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Converts an interval from 1/1024 second units to milliseconds.
+     */
+    public static int toMillis(int interval) {
+        return (int) ((interval * 1000L) >> 10);
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.app_central;
+
+import android.bluetooth.le.ScanFilter;
+import android.os.ParcelUuid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Builds the {@link ScanFilter}s handed to the controller, so that advertisements we don't care
+ * about are dropped in hardware instead of waking the app up. A result is delivered when it
+ * matches any of the added filters.
+ */
+public class ScanFilterBuilder {
+
+    private final List<ScanFilter> mFilters = new ArrayList<>();
+
+    /**
+     * Matches devices advertising the given service UUID.
+     */
+    public ScanFilterBuilder addServiceUuid(UUID serviceUuid) {
+        mFilters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(serviceUuid)).build());
+        return this;
+    }
+
+    /**
+     * Matches the device with the given address.
+     */
+    public ScanFilterBuilder addDeviceAddress(String address) {
+        mFilters.add(new ScanFilter.Builder().setDeviceAddress(address).build());
+        return this;
+    }
+
+    /**
+     * Matches manufacturer specific data. Only the bits set in the mask are compared.
+     *
+     * @param mask Same length as data, or null to compare every bit.
+     */
+    public ScanFilterBuilder addManufacturerData(int manufacturerId, byte[] data, byte[] mask) {
+        checkMask(data, mask);
+        mFilters.add(new ScanFilter.Builder().setManufacturerData(manufacturerId, data, mask).build());
+        return this;
+    }
+
+    /**
+     * Matches the service data of the given service. Only the bits set in the mask are compared.
+     *
+     * @param mask Same length as data, or null to compare every bit.
+     */
+    public ScanFilterBuilder addServiceData(UUID serviceUuid, byte[] data, byte[] mask) {
+        checkMask(data, mask);
+        mFilters.add(new ScanFilter.Builder().setServiceData(new ParcelUuid(serviceUuid), data, mask).build());
+        return this;
+    }
+
+    /**
+     * @return The filters added, or a single empty filter matching everything if none was added.
+     */
+    public List<ScanFilter> build() {
+        List<ScanFilter> filters = new ArrayList<>(mFilters);
+        if (filters.isEmpty()) {
+            filters.add(new ScanFilter.Builder().build());
+        }
+        return filters;
+    }
+
+    private static void checkMask(byte[] data, byte[] mask) {
+        if (data == null) {
+            throw new IllegalArgumentException("data is null");
+        }
+        if (mask != null && mask.length != data.length) {
+            throw new IllegalArgumentException("mask length " + mask.length + " != data length " + data.length);
+        }
+    }
+}
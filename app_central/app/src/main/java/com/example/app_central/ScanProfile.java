@@ -0,0 +1,159 @@
+package com.example.app_central;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanSettings;
+
+/**
+ * The scan parameters used by {@link MainActivity}: scan mode, report delay, match mode, number
+ * of matches and callback type.
+ *
+ * A report delay above zero asks the controller to batch results and deliver them through
+ * {@code ScanCallback#onBatchScanResults}, which saves a wakeup per advertisement. Features the
+ * controller doesn't support are dropped by {@link #resolve(boolean, boolean)} rather than making
+ * the scan fail.
+ */
+public class ScanProfile {
+
+    /**
+     * Immediate results, one callback per advertisement.
+     */
+    public static final ScanProfile INTERACTIVE = new Builder()
+            .setScanMode(ScanSettings.SCAN_MODE_BALANCED)
+            .build();
+
+    /**
+     * Results batched by the controller and delivered once a second.
+     */
+    public static final ScanProfile BATCHED = new Builder()
+            .setScanMode(ScanSettings.SCAN_MODE_BALANCED)
+            .setReportDelayMs(1000)
+            .build();
+
+    private final int mScanMode;
+    private final long mReportDelayMs;
+    private final int mMatchMode;
+    private final int mNumOfMatches;
+    private final int mCallbackType;
+
+    private ScanProfile(Builder builder) {
+        mScanMode = builder.mScanMode;
+        mReportDelayMs = builder.mReportDelayMs;
+        mMatchMode = builder.mMatchMode;
+        mNumOfMatches = builder.mNumOfMatches;
+        mCallbackType = builder.mCallbackType;
+    }
+
+    public int getScanMode() {
+        return mScanMode;
+    }
+
+    public long getReportDelayMs() {
+        return mReportDelayMs;
+    }
+
+    public int getMatchMode() {
+        return mMatchMode;
+    }
+
+    public int getNumOfMatches() {
+        return mNumOfMatches;
+    }
+
+    public int getCallbackType() {
+        return mCallbackType;
+    }
+
+    public boolean isBatched() {
+        return mReportDelayMs > 0;
+    }
+
+    /**
+     * Returns the profile the controller can actually run: batching falls back to immediate
+     * reports, and first-match/match-lost callbacks fall back to all matches, when the hardware
+     * doesn't offload them.
+     */
+    public ScanProfile resolve(boolean batchingSupported, boolean filteringSupported) {
+        boolean dropBatching = isBatched() && !batchingSupported;
+        boolean dropCallbackType = mCallbackType != ScanSettings.CALLBACK_TYPE_ALL_MATCHES && !filteringSupported;
+        if (!dropBatching && !dropCallbackType) {
+            return this;
+        }
+
+        Builder builder = new Builder(this);
+        if (dropBatching) {
+            builder.setReportDelayMs(0);
+        }
+        if (dropCallbackType) {
+            builder.setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Builds the {@link ScanSettings} of this profile, resolved against what the adapter supports.
+     * Extended advertisements, which carry long sensor broadcasts, are only reported by an
+     * unbatched scan: controllers batch legacy advertisements only.
+     */
+    public ScanSettings toScanSettings(BluetoothAdapter adapter) {
+        ScanProfile profile = resolve(adapter.isOffloadedScanBatchingSupported(), adapter.isOffloadedFilteringSupported());
+
+        ScanSettings.Builder builder = new ScanSettings.Builder();
+        builder.setScanMode(profile.mScanMode);
+        builder.setReportDelay(profile.mReportDelayMs);
+        builder.setMatchMode(profile.mMatchMode);
+        builder.setNumOfMatches(profile.mNumOfMatches);
+        builder.setCallbackType(profile.mCallbackType);
+        if (!profile.isBatched() && adapter.isLeExtendedAdvertisingSupported()) {
+            builder.setLegacy(false);
+        }
+        return builder.build();
+    }
+
+    public static class Builder {
+        private int mScanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+        private long mReportDelayMs = 0;
+        private int mMatchMode = ScanSettings.MATCH_MODE_AGGRESSIVE;
+        private int mNumOfMatches = ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT;
+        private int mCallbackType = ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
+
+        public Builder() {
+        }
+
+        public Builder(ScanProfile profile) {
+            mScanMode = profile.mScanMode;
+            mReportDelayMs = profile.mReportDelayMs;
+            mMatchMode = profile.mMatchMode;
+            mNumOfMatches = profile.mNumOfMatches;
+            mCallbackType = profile.mCallbackType;
+        }
+
+        public Builder setScanMode(int scanMode) {
+            mScanMode = scanMode;
+            return this;
+        }
+
+        public Builder setReportDelayMs(long reportDelayMs) {
+            mReportDelayMs = reportDelayMs;
+            return this;
+        }
+
+        public Builder setMatchMode(int matchMode) {
+            mMatchMode = matchMode;
+            return this;
+        }
+
+        public Builder setNumOfMatches(int numOfMatches) {
+            mNumOfMatches = numOfMatches;
+            return this;
+        }
+
+        public Builder setCallbackType(int callbackType) {
+            mCallbackType = callbackType;
+            return this;
+        }
+
+        public ScanProfile build() {
+            return new ScanProfile(this);
+        }
+    }
+}
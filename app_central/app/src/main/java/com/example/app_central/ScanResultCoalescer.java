@@ -0,0 +1,112 @@
+package com.example.app_central;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Ingestion stage between the scan callback and the device list.
+ *
+ * Scan results are coalesced per device address: only the latest result of each device is kept,
+ * together with an exponentially smoothed RSSI. The UI publishes the devices that changed since
+ * the previous frame, at most once per {@link #getPublishIntervalMs()}, so the work done on the
+ * main thread depends on the number of devices and not on the advertisement rate.
+ */
+public class ScanResultCoalescer<T> {
+
+    public static final long DEFAULT_PUBLISH_INTERVAL_MS = 100;
+    public static final float DEFAULT_RSSI_SMOOTHING = 0.25f;
+
+    public interface Publisher<T> {
+        void publish(String address, T result, int smoothedRssi);
+    }
+
+    private static class Device<T> {
+        final String mAddress;
+        final AtomicBoolean mDirty = new AtomicBoolean();
+        T mResult;
+        float mRssi;
+        long mResultCount;
+
+        Device(String address) {
+            mAddress = address;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Device<T>> mDevices = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Device<T>> mDirtyDevices = new ConcurrentLinkedQueue<>();
+    private final long mPublishIntervalMs;
+    private final float mRssiSmoothing;
+
+    public ScanResultCoalescer() {
+        this(DEFAULT_PUBLISH_INTERVAL_MS, DEFAULT_RSSI_SMOOTHING);
+    }
+
+    /**
+     * @param publishIntervalMs Minimum time between two publications to the UI.
+     * @param rssiSmoothing Weight of a new RSSI sample, between 0 and 1. 1 disables smoothing.
+     */
+    public ScanResultCoalescer(long publishIntervalMs, float rssiSmoothing) {
+        mPublishIntervalMs = publishIntervalMs;
+        mRssiSmoothing = rssiSmoothing;
+    }
+
+    public long getPublishIntervalMs() {
+        return mPublishIntervalMs;
+    }
+
+    /**
+     * Records a scan result. Safe to call from any thread.
+     */
+    public void offer(String address, T result, int rssi) {
+        Device<T> device = mDevices.get(address);
+        if (device == null) {
+            device = mDevices.computeIfAbsent(address, Device::new);
+        }
+
+        synchronized (device) {
+            device.mRssi = device.mResultCount == 0 ? rssi : device.mRssi + mRssiSmoothing * (rssi - device.mRssi);
+            device.mResult = result;
+            device.mResultCount++;
+        }
+
+        // Only queue the device once per frame, however many results it sends.
+        if (device.mDirty.compareAndSet(false, true)) {
+            mDirtyDevices.add(device);
+        }
+    }
+
+    /**
+     * Hands the devices updated since the previous call to the publisher.
+     *
+     * @return The number of devices published.
+     */
+    public int publish(Publisher<T> publisher) {
+        // Devices updated again while we publish are queued again. Stop after one round so a
+        // frame never publishes more rows than there are devices, whatever the scan rate.
+        int limit = mDevices.size();
+        int published = 0;
+        Device<T> device;
+        while (published < limit && (device = mDirtyDevices.poll()) != null) {
+            device.mDirty.set(false);
+            T result;
+            int rssi;
+            synchronized (device) {
+                result = device.mResult;
+                rssi = Math.round(device.mRssi);
+            }
+            publisher.publish(device.mAddress, result, rssi);
+            published++;
+        }
+        return published;
+    }
+
+    public int size() {
+        return mDevices.size();
+    }
+
+    public void clear() {
+        mDevices.clear();
+        mDirtyDevices.clear();
+    }
+}
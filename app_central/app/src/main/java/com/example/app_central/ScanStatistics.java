@@ -0,0 +1,49 @@
+package com.example.app_central;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts scan callbacks and the results they carried. Without batching every result costs a
+ * callback, so the difference is the number of wakeups batching saved.
+ */
+public class ScanStatistics {
+
+    private final AtomicLong mCallbacks = new AtomicLong();
+    private final AtomicLong mResults = new AtomicLong();
+    private volatile long mStartMs;
+
+    public void start(long nowMs) {
+        mCallbacks.set(0);
+        mResults.set(0);
+        mStartMs = nowMs;
+    }
+
+    public void onCallback(int resultCount) {
+        mCallbacks.incrementAndGet();
+        mResults.addAndGet(resultCount);
+    }
+
+    public long getCallbackCount() {
+        return mCallbacks.get();
+    }
+
+    public long getResultCount() {
+        return mResults.get();
+    }
+
+    public double getCallbacksPerMinute(long nowMs) {
+        return perMinute(mCallbacks.get(), nowMs);
+    }
+
+    /**
+     * @return The callbacks per minute saved compared to one callback per result.
+     */
+    public double getSavedCallbacksPerMinute(long nowMs) {
+        return perMinute(mResults.get() - mCallbacks.get(), nowMs);
+    }
+
+    private double perMinute(long count, long nowMs) {
+        long elapsedMs = nowMs - mStartMs;
+        return elapsedMs <= 0 ? 0 : count * 60000.0 / elapsedMs;
+    }
+}
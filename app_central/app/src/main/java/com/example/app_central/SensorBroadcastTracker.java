@@ -0,0 +1,74 @@
+package com.example.app_central;
+
+import java.util.HashMap;
+
+/**
+ * Tells new sensor broadcasts from repeats of the same advertisement.
+ *
+ * A peripheral advertises the same payload many times per second until its value changes, so
+ * the scan delivers every reading over and over. The last sequence number of each device is
+ * kept; a result only counts as a reading when its sequence number moved on, and the numbers
+ * skipped in between are readings that were missed while not scanning.
+ */
+public class SensorBroadcastTracker {
+
+    private static class Device {
+        int mSequence;
+    }
+
+    private final HashMap<String, Device> mDevices = new HashMap<>();
+    private long mReadingCount;
+    private long mDuplicateCount;
+    private long mMissedCount;
+
+    /**
+     * @param payload A payload accepted by {@link SensorBroadcastCodec#isBroadcast(byte[])}.
+     * @return true if it is a new reading of the device.
+     */
+    public synchronized boolean offer(String address, byte[] payload) {
+        int sequence = SensorBroadcastCodec.sequence(payload);
+        Device device = mDevices.get(address);
+        if (device == null) {
+            device = new Device();
+            mDevices.put(address, device);
+        } else {
+            int distance = SensorBroadcastCodec.distance(device.mSequence, sequence);
+            if (distance == 0) {
+                mDuplicateCount++;
+                return false;
+            }
+            // Going back means the peripheral started counting again, nothing was missed.
+            if (distance < 0x8000) {
+                mMissedCount += distance - 1;
+            }
+        }
+        device.mSequence = sequence;
+        mReadingCount++;
+        return true;
+    }
+
+    public synchronized long getReadingCount() {
+        return mReadingCount;
+    }
+
+    /**
+     * Results that repeated a reading already received.
+     */
+    public synchronized long getDuplicateCount() {
+        return mDuplicateCount;
+    }
+
+    /**
+     * Readings skipped between two received ones.
+     */
+    public synchronized long getMissedCount() {
+        return mMissedCount;
+    }
+
+    public synchronized void clear() {
+        mDevices.clear();
+        mReadingCount = 0;
+        mDuplicateCount = 0;
+        mMissedCount = 0;
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.app_central;
+
+/**
+ * Measures the bytes moved over a link during the last second, in ten 100 ms buckets.
+ */
+public class ThroughputMeter {
+
+    private static final int BUCKETS = 10;
+    private static final long BUCKET_NS = 100_000_000L;
+
+    private final long[] mBuckets = new long[BUCKETS];
+    private long mCurrentBucket;
+    private long mTotalBytes;
+
+    public synchronized void record(int bytes, long nowNs) {
+        advance(nowNs);
+        mBuckets[(int) (mCurrentBucket % BUCKETS)] += bytes;
+        mTotalBytes += bytes;
+    }
+
+    /**
+     * @return The bytes per second over the last second.
+     */
+    public synchronized long getBytesPerSecond(long nowNs) {
+        advance(nowNs);
+        long bytes = 0;
+        for (long bucket : mBuckets) {
+            bytes += bucket;
+        }
+        return bytes;
+    }
+
+    public synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    private void advance(long nowNs) {
+        long bucket = nowNs / BUCKET_NS;
+        if (bucket <= mCurrentBucket) {
+            return;
+        }
+        // Empty the buckets skipped since the last sample.
+        long skipped = Math.min(bucket - mCurrentBucket, BUCKETS);
+        for (long i = 1; i <= skipped; i++) {
+            mBuckets[(int) ((mCurrentBucket + i) % BUCKETS)] = 0;
+        }
+        mCurrentBucket = bucket;
+    }
+}
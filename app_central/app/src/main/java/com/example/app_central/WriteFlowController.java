@@ -0,0 +1,123 @@
+package com.example.app_central;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Credit based flow control for writes without response.
+ *
+ * The stack reports {@code onCharacteristicWrite} for a write without response once the packet
+ * left for the controller, which frees a buffer there. Each write takes a credit and gets it back
+ * on that completion. Without credit {@link #tryWrite} refuses instead of queueing, and the
+ * writable listener is called as soon as a credit comes back, so callers push as fast as the link
+ * drains without sleeping. Writes the stack refuses are retried by the {@link GattOperationQueue}.
+ *
+ * @param <C> The write target, {@code BluetoothGattCharacteristic} on the phone.
+ */
+public class WriteFlowController<C> {
+
+    public static final int DEFAULT_CREDITS = 8;
+
+    /**
+     * Issues one write without response.
+     */
+    public interface Writer<C> {
+        /**
+         * @return A future completed by the write callback, or null if the link is gone.
+         */
+        CompletableFuture<byte[]> write(C target, byte[] value);
+    }
+
+    private final Writer<C> mWriter;
+    private final Runnable mWritableListener;
+    private final int mMaxCredits;
+    private final AtomicInteger mCredits;
+    private final AtomicBoolean mBlocked = new AtomicBoolean();
+    private final AtomicLong mWrittenCount = new AtomicLong();
+    private final AtomicLong mFailedCount = new AtomicLong();
+    private final ThroughputMeter mWriteRate = new ThroughputMeter();
+
+    /**
+     * @param writableListener Called, on the thread of the write callback, when a credit comes
+     *                         back after {@link #tryWrite} was refused.
+     */
+    public WriteFlowController(Writer<C> writer, int credits, Runnable writableListener) {
+        mWriter = writer;
+        mMaxCredits = credits;
+        mCredits = new AtomicInteger(credits);
+        mWritableListener = writableListener;
+    }
+
+    /**
+     * Writes a value if the link has room for it.
+     *
+     * @return false if no credit is left; wait for the writable listener before trying again.
+     */
+    public boolean tryWrite(C target, byte[] value) {
+        if (!acquire()) {
+            mBlocked.set(true);
+            // A credit may have come back between the failed acquire and the flag.
+            if (!acquire()) {
+                return false;
+            }
+            mBlocked.set(false);
+        }
+
+        CompletableFuture<byte[]> future = mWriter.write(target, value);
+        if (future == null) {
+            mCredits.incrementAndGet();
+            return false;
+        }
+        future.whenComplete((result, error) -> onWriteComplete(error == null));
+        return true;
+    }
+
+    public int getCredits() {
+        return mCredits.get();
+    }
+
+    public int getMaxCredits() {
+        return mMaxCredits;
+    }
+
+    public long getWrittenCount() {
+        return mWrittenCount.get();
+    }
+
+    public long getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    /**
+     * @return The writes completed during the last second.
+     */
+    public long getWritesPerSecond() {
+        return mWriteRate.getBytesPerSecond(System.nanoTime());
+    }
+
+    private boolean acquire() {
+        int credits;
+        do {
+            credits = mCredits.get();
+            if (credits == 0) {
+                return false;
+            }
+        } while (!mCredits.compareAndSet(credits, credits - 1));
+        return true;
+    }
+
+    private void onWriteComplete(boolean success) {
+        if (success) {
+            mWrittenCount.incrementAndGet();
+            mWriteRate.record(1, System.nanoTime());
+        } else {
+            mFailedCount.incrementAndGet();
+        }
+        mCredits.incrementAndGet();
+        if (mBlocked.compareAndSet(true, false) && mWritableListener != null) {
+            mWritableListener.run();
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package com.example.app_central;
+
+/**
+ * JUnit category of the timed benchmarks. Their bounds depend on the machine, so the unit test
+ * task leaves them out; run them with {@code ./gradlew test -Pbenchmarks}.
+ */
+public interface Benchmark {
+}
@@ -0,0 +1,302 @@
+package com.example.app_central;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BulkTransferSenderTest {
+
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    /**
+     * The peripheral side of the protocol, kept to what the sender relies on: in-order delivery,
+     * one gap report per loss, cumulative acks, resume on START and the CRC check on END.
+     */
+    private static class LoopbackReceiver {
+        byte[] mBuffer;
+        int mId = -1;
+        long mCrc;
+        int mOffset;
+        int mExpectedSeq;
+        int mAckEvery;
+        int mUnacked;
+        boolean mGapReported;
+        boolean mDone;
+        int mFrames;
+        long mFrameBytes;
+
+        byte[] onFrame(byte[] frame) {
+            mFrames++;
+            mFrameBytes += frame.length;
+            switch (BulkTransferCodec.type(frame)) {
+                case BulkTransferCodec.TYPE_START: {
+                    int id = BulkTransferCodec.startId(frame);
+                    int length = BulkTransferCodec.startLength(frame);
+                    long crc = BulkTransferCodec.startCrc(frame);
+                    mExpectedSeq = 0;
+                    mGapReported = false;
+                    if (id == mId && mBuffer.length == length && crc == mCrc) {
+                        return ack(mDone ? BulkTransferCodec.STATUS_DONE : BulkTransferCodec.STATUS_RESUMED);
+                    }
+                    mId = id;
+                    mCrc = crc;
+                    mBuffer = new byte[length];
+                    mOffset = 0;
+                    mDone = false;
+                    mAckEvery = Math.max(1, BulkTransferCodec.startWindow(frame) / 2);
+                    return ack(BulkTransferCodec.STATUS_OK);
+                }
+                case BulkTransferCodec.TYPE_DATA: {
+                    if (BulkTransferCodec.dataSeq(frame) != mExpectedSeq) {
+                        if (mGapReported) {
+                            return null;
+                        }
+                        mGapReported = true;
+                        return ack(BulkTransferCodec.STATUS_GAP);
+                    }
+                    int length = frame.length - BulkTransferCodec.DATA_HEADER_LENGTH;
+                    System.arraycopy(frame, BulkTransferCodec.DATA_HEADER_LENGTH, mBuffer, mOffset, length);
+                    mOffset += length;
+                    mExpectedSeq = (mExpectedSeq + 1) & 0xFFFF;
+                    mGapReported = false;
+                    if (++mUnacked >= mAckEvery || mOffset == mBuffer.length) {
+                        return ack(BulkTransferCodec.STATUS_OK);
+                    }
+                    return null;
+                }
+                case BulkTransferCodec.TYPE_END:
+                    mDone = mOffset == mBuffer.length && BulkTransferCodec.crc32(mBuffer, 0, mOffset) == mCrc;
+                    return ack(mDone ? BulkTransferCodec.STATUS_DONE : BulkTransferCodec.STATUS_CRC_ERROR);
+                default:
+                    return null;
+            }
+        }
+
+        byte[] ack(int status) {
+            mUnacked = 0;
+            return BulkTransferCodec.encodeAck(mId, status, mExpectedSeq, mOffset);
+        }
+    }
+
+    /**
+     * Connects a sender to a receiver through two in-memory queues. Every lossEvery-th DATA frame
+     * is dropped, none if 0.
+     */
+    private static class Loopback {
+        final ConcurrentLinkedQueue<byte[]> mToReceiver = new ConcurrentLinkedQueue<>();
+        final LoopbackReceiver mReceiver;
+        final int mLossEvery;
+        int mDataFrames;
+        boolean mConnected = true;
+
+        Loopback(LoopbackReceiver receiver, int lossEvery) {
+            mReceiver = receiver;
+            mLossEvery = lossEvery;
+        }
+
+        void send(byte[] frame) {
+            if (mConnected) {
+                mToReceiver.add(frame);
+            }
+        }
+
+        /**
+         * Delivers frames until the transfer ends, or until maxFrames frames were delivered.
+         */
+        void run(BulkTransferSender sender, int maxFrames) throws Exception {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+            int delivered = 0;
+            while (!sender.getFuture().isDone() && delivered < maxFrames) {
+                assertTrue(System.nanoTime() < deadline);
+                byte[] frame = mToReceiver.poll();
+                if (frame == null) {
+                    Thread.sleep(1);
+                    continue;
+                }
+                delivered++;
+                if (BulkTransferCodec.type(frame) == BulkTransferCodec.TYPE_DATA && mLossEvery > 0
+                        && ++mDataFrames % mLossEvery == 0) {
+                    continue;
+                }
+                byte[] ack = mReceiver.onFrame(frame);
+                if (ack != null) {
+                    sender.onAck(ack);
+                }
+            }
+        }
+    }
+
+    private static byte[] payload(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void codec_roundTripsFrames() {
+        byte[] start = BulkTransferCodec.encodeStart(7, 70000, 0xCAFEBABEL, 244, 16);
+        assertTrue(BulkTransferCodec.isWellFormed(start));
+        assertEquals(7, BulkTransferCodec.startId(start));
+        assertEquals(70000, BulkTransferCodec.startLength(start));
+        assertEquals(0xCAFEBABEL, BulkTransferCodec.startCrc(start));
+        assertEquals(244, BulkTransferCodec.startChunkSize(start));
+        assertEquals(16, BulkTransferCodec.startWindow(start));
+
+        byte[] ack = BulkTransferCodec.encodeAck(7, BulkTransferCodec.STATUS_GAP, 0xFFFF, 123456);
+        assertEquals(BulkTransferCodec.STATUS_GAP, BulkTransferCodec.ackStatus(ack));
+        assertEquals(0xFFFF, BulkTransferCodec.ackSeq(ack));
+        assertEquals(123456, BulkTransferCodec.ackOffset(ack));
+
+        byte[] data = BulkTransferCodec.encodeData(300, new byte[]{1, 2, 3}, 1, 2);
+        assertEquals(300, BulkTransferCodec.dataSeq(data));
+        assertEquals(BulkTransferCodec.DATA_HEADER_LENGTH + 2, data.length);
+        assertFalse(BulkTransferCodec.isWellFormed(new byte[]{BulkTransferCodec.TYPE_ACK, 1}));
+        assertFalse(BulkTransferCodec.isFrame(new byte[]{'R', 'E', 'D'}));
+    }
+
+    @Test
+    public void loopback_deliversPayload() throws Exception {
+        byte[] data = payload(10000);
+        LoopbackReceiver receiver = new LoopbackReceiver();
+        Loopback loopback = new Loopback(receiver, 0);
+        BulkTransferSender sender = new BulkTransferSender(1, data, BulkTransferCodec.chunkSize(23), loopback::send, mScheduler);
+        CompletableFuture<Void> future = sender.start();
+        loopback.run(sender, Integer.MAX_VALUE);
+
+        future.get(1, TimeUnit.SECONDS);
+        assertArrayEquals(data, receiver.mBuffer);
+        assertEquals(data.length, sender.getSentBytes());
+    }
+
+    @Test
+    public void loopback_recoversFromLostFrames() throws Exception {
+        byte[] data = payload(50000);
+        LoopbackReceiver receiver = new LoopbackReceiver();
+        Loopback loopback = new Loopback(receiver, 37);
+        BulkTransferSender sender = new BulkTransferSender(2, data, BulkTransferCodec.chunkSize(185), loopback::send, mScheduler);
+        CompletableFuture<Void> future = sender.start();
+        loopback.run(sender, Integer.MAX_VALUE);
+
+        future.get(1, TimeUnit.SECONDS);
+        assertArrayEquals(data, receiver.mBuffer);
+        assertTrue(sender.getSentBytes() > data.length);
+    }
+
+    @Test
+    public void newSender_resumesInterruptedTransfer() throws Exception {
+        byte[] data = payload(20000);
+        LoopbackReceiver receiver = new LoopbackReceiver();
+        Loopback first = new Loopback(receiver, 0);
+        BulkTransferSender interrupted = new BulkTransferSender(3, data, BulkTransferCodec.chunkSize(247), first::send, mScheduler);
+        interrupted.start();
+        first.run(interrupted, 40);
+        // The link drops: the frames still queued are lost.
+        first.mConnected = false;
+        interrupted.cancel();
+        int received = receiver.mOffset;
+        assertTrue(received > 0 && received < data.length);
+
+        Loopback second = new Loopback(receiver, 0);
+        BulkTransferSender resumed = new BulkTransferSender(3, data, BulkTransferCodec.chunkSize(247), second::send, mScheduler);
+        CompletableFuture<Void> future = resumed.start();
+        second.run(resumed, Integer.MAX_VALUE);
+
+        future.get(1, TimeUnit.SECONDS);
+        assertArrayEquals(data, receiver.mBuffer);
+        assertEquals(data.length - received, resumed.getSentBytes());
+    }
+
+    @Test
+    public void lostAcks_restartFromReceiverOffset() throws Exception {
+        byte[] data = payload(3000);
+        LoopbackReceiver receiver = new LoopbackReceiver();
+        ConcurrentLinkedQueue<byte[]> frames = new ConcurrentLinkedQueue<>();
+        BulkTransferSender sender = new BulkTransferSender(4, data, 100, 8, 50, frames::add, mScheduler);
+        CompletableFuture<Void> future = sender.start();
+
+        // Acks of the first exchange never come back; the sender times out and sends START again.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        int starts = 0;
+        while (!future.isDone()) {
+            assertTrue(System.nanoTime() < deadline);
+            byte[] frame = frames.poll();
+            if (frame == null) {
+                Thread.sleep(1);
+                continue;
+            }
+            byte[] ack = receiver.onFrame(frame);
+            if (BulkTransferCodec.type(frame) == BulkTransferCodec.TYPE_START && starts++ == 0) {
+                continue;
+            }
+            if (ack != null) {
+                sender.onAck(ack);
+            }
+        }
+        future.get();
+        assertEquals(2, starts);
+        assertArrayEquals(data, receiver.mBuffer);
+    }
+
+    @Test
+    public void corruptedPayload_failsTransfer() throws Exception {
+        byte[] data = payload(1000);
+        LoopbackReceiver receiver = new LoopbackReceiver();
+        Loopback loopback = new Loopback(receiver, 0) {
+            @Override
+            void send(byte[] frame) {
+                if (BulkTransferCodec.type(frame) == BulkTransferCodec.TYPE_DATA) {
+                    frame[frame.length - 1] ^= 0x01;
+                }
+                super.send(frame);
+            }
+        };
+        BulkTransferSender sender = new BulkTransferSender(5, data, 200, loopback::send, mScheduler);
+        CompletableFuture<Void> future = sender.start();
+        loopback.run(sender, Integer.MAX_VALUE);
+
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (java.util.concurrent.ExecutionException e) {
+            assertEquals(BulkTransferCodec.STATUS_CRC_ERROR, ((GattOperationException) e.getCause()).getStatus());
+        }
+    }
+
+    /**
+     * Sends 256 KB over the loopback at several MTUs and checks the share of the link used by
+     * payload, ATT headers included.
+     */
+    @Test
+    public void transfer_largerMtuCarriesMorePayload() throws Exception {
+        byte[] data = payload(256 * 1024);
+        long previousPercent = 0;
+        for (int mtu : new int[]{23, 185, 247, 517}) {
+            LoopbackReceiver receiver = new LoopbackReceiver();
+            Loopback loopback = new Loopback(receiver, 0);
+            BulkTransferSender sender = new BulkTransferSender(6, data, BulkTransferCodec.chunkSize(mtu), loopback::send, mScheduler);
+            CompletableFuture<Void> future = sender.start();
+            loopback.run(sender, Integer.MAX_VALUE);
+            future.get(5, TimeUnit.SECONDS);
+
+            assertArrayEquals(data, receiver.mBuffer);
+            long linkBytes = receiver.mFrameBytes + 3L * receiver.mFrames;
+            long percent = data.length * 100L / linkBytes;
+            assertTrue("MTU " + mtu + ", " + percent + "% payload", percent > previousPercent);
+            previousPercent = percent;
+        }
+        assertTrue(previousPercent + "% payload at MTU 517", previousPercent >= 95);
+    }
+}
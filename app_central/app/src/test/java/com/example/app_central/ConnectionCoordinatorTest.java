@@ -0,0 +1,87 @@
+package com.example.app_central;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ConnectionCoordinatorTest {
+
+    private static final String ADDRESS = "00:00:00:00:00:01";
+
+    @Test
+    public void claimForeground_onlyFirstCallerWins() {
+        ConnectionCoordinator coordinator = new ConnectionCoordinator();
+        assertTrue(coordinator.tryClaimForeground(ADDRESS));
+        assertFalse(coordinator.tryClaimForeground(ADDRESS));
+        assertFalse(coordinator.tryClaimForeground("00:00:00:00:00:02"));
+        assertEquals(ConnectionCoordinator.STATE_CONNECTING, coordinator.getState(ADDRESS));
+
+        coordinator.setState(ADDRESS, ConnectionCoordinator.STATE_CONNECTED);
+        coordinator.releaseForeground();
+        assertNull(coordinator.getForegroundDevice());
+        // Still connected: releasing the screen doesn't drop the link.
+        assertEquals(ConnectionCoordinator.STATE_CONNECTED, coordinator.getState(ADDRESS));
+        assertFalse(coordinator.tryClaimForeground(ADDRESS));
+        assertTrue(coordinator.tryClaimForeground("00:00:00:00:00:02"));
+    }
+
+    @Test
+    public void releaseForeground_resetsUnfinishedConnection() {
+        ConnectionCoordinator coordinator = new ConnectionCoordinator();
+        assertTrue(coordinator.tryClaimForeground(ADDRESS));
+        coordinator.releaseForeground();
+        assertEquals(ConnectionCoordinator.STATE_IDLE, coordinator.getState(ADDRESS));
+        assertTrue(coordinator.tryClaimForeground(ADDRESS));
+    }
+
+    @Test
+    public void restoreForeground_onlyWhileStillConnected() {
+        // A new process: the persisted device isn't connected any more.
+        ConnectionCoordinator coordinator = new ConnectionCoordinator();
+        coordinator.restoreForeground(ADDRESS);
+        assertNull(coordinator.getForegroundDevice());
+        assertTrue(coordinator.tryClaimForeground(ADDRESS));
+
+        // Only the activity was recreated, the connection survived.
+        coordinator.setState(ADDRESS, ConnectionCoordinator.STATE_CONNECTED);
+        coordinator.releaseForeground();
+        coordinator.restoreForeground(ADDRESS);
+        assertEquals(ADDRESS, coordinator.getForegroundDevice());
+    }
+
+    /**
+     * Eight scan threads see the same heart rate device at once; exactly one may launch the
+     * connection.
+     */
+    @Test
+    public void concurrentScanResults_launchOnce() throws Exception {
+        for (int round = 0; round < 200; round++) {
+            ConnectionCoordinator coordinator = new ConnectionCoordinator();
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicInteger launches = new AtomicInteger();
+            Thread[] threads = new Thread[8];
+            for (int t = 0; t < threads.length; t++) {
+                final String address = "00:00:00:00:00:0" + (t & 1);
+                threads[t] = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (coordinator.tryClaimForeground(address)) {
+                        launches.incrementAndGet();
+                    }
+                });
+                threads[t].start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(1, launches.get());
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package com.example.app_central;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConnectionStateMachineTest {
+
+    private static final int STATUS_CONNECTION_TIMEOUT = 8;
+    private static final int CONNECTED = ConnectionStateMachine.PROFILE_STATE_CONNECTED;
+    private static final int DISCONNECTED = ConnectionStateMachine.PROFILE_STATE_DISCONNECTED;
+
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+    private final BlockingQueue<String> mRequests = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<>();
+    // Connection requests to refuse before accepting them again.
+    private volatile int mRefusals;
+
+    private final ConnectionStateMachine.Link mLink = new ConnectionStateMachine.Link() {
+        @Override
+        public boolean connect(boolean reuseHandle) {
+            mRequests.add(reuseHandle ? "connect cached" : "connect new");
+            if (mRefusals > 0) {
+                mRefusals--;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+            mRequests.add("disconnect");
+        }
+
+        @Override
+        public void close() {
+            mRequests.add("close");
+        }
+    };
+
+    private final ConnectionStateMachine.Listener mListener = new ConnectionStateMachine.Listener() {
+        @Override
+        public void onConnected(long reconnectMs) {
+            mEvents.add(reconnectMs < 0 ? "connected" : "reconnected");
+        }
+
+        @Override
+        public void onReconnecting(int attempt, long delayMs, int status) {
+            mEvents.add("reconnecting " + attempt + " in " + delayMs + " after " + status);
+        }
+
+        @Override
+        public void onDisconnected(int status) {
+            mEvents.add("disconnected " + status);
+        }
+    };
+
+    // 10 ms initial backoff capped at 40 ms, 200 ms per attempt, 3 attempts.
+    private final ConnectionStateMachine mMachine = new ConnectionStateMachine(mLink, mListener, mScheduler,
+            10, 40, 200, 3);
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    private String nextRequest() throws InterruptedException {
+        return mRequests.poll(1, TimeUnit.SECONDS);
+    }
+
+    private String nextEvent() throws InterruptedException {
+        return mEvents.poll(1, TimeUnit.SECONDS);
+    }
+
+    private void connect() throws InterruptedException {
+        assertTrue(mMachine.connect());
+        assertEquals("connect new", nextRequest());
+        mMachine.onConnectionStateChange(ConnectionStateMachine.GATT_SUCCESS, CONNECTED);
+        assertEquals("connected", nextEvent());
+        assertEquals(ConnectionStateMachine.STATE_CONNECTED, mMachine.getState());
+    }
+
+    @Test
+    public void linkLoss_reconnectsAtOnceOnCachedHandle() throws Exception {
+        connect();
+
+        mMachine.onConnectionStateChange(STATUS_CONNECTION_TIMEOUT, DISCONNECTED);
+        assertEquals("reconnecting 1 in 0 after 8", nextEvent());
+        assertEquals("connect cached", nextRequest());
+        assertEquals(ConnectionStateMachine.STATE_CONNECTING, mMachine.getState());
+
+        mMachine.onConnectionStateChange(ConnectionStateMachine.GATT_SUCCESS, CONNECTED);
+        assertEquals("reconnected", nextEvent());
+        assertEquals(1, mMachine.getReconnectCount());
+        assertTrue(mMachine.getLastReconnectMs() >= 0);
+        assertTrue(mRequests.isEmpty());
+    }
+
+    @Test
+    public void gattError_closesHandleAndBacksOff() throws Exception {
+        assertTrue(mMachine.connect());
+        assertEquals("connect new", nextRequest());
+
+        mMachine.onConnectionStateChange(ConnectionStateMachine.GATT_ERROR, DISCONNECTED);
+        assertEquals("close", nextRequest());
+        assertEquals("reconnecting 1 in 10 after 133", nextEvent());
+        assertEquals(ConnectionStateMachine.STATE_WAITING_TO_RECONNECT, mMachine.getState());
+        assertEquals("connect new", nextRequest());
+
+        mMachine.onConnectionStateChange(ConnectionStateMachine.GATT_ERROR, DISCONNECTED);
+        assertEquals("close", nextRequest());
+        assertEquals("reconnecting 2 in 20 after 133", nextEvent());
+        assertEquals("connect new", nextRequest());
+
+        mMachine.onConnectionStateChange(ConnectionStateMachine.GATT_SUCCESS, CONNECTED);
+        assertEquals("connected", nextEvent());
+
+        // Success resets the attempts, and 133 on a live link also gets a fresh handle.
+        mMachine.onConnectionStateChange(ConnectionStateMachine.GATT_ERROR, DISCONNECTED);
+        assertEquals("close", nextRequest());
+        assertEquals("reconnecting 1 in 0 after 133", nextEvent());
+        assertEquals("connect new", nextRequest());
+    }
+
+    @Test
+    public void errorStorm_givesUpAfterMaxAttempts() throws Exception {
+        connect();
+
+        mMachine.onConnectionStateChange(STATUS_CONNECTION_TIMEOUT, DISCONNECTED);
+        assertEquals("reconnecting 1 in 0 after 8", nextEvent());
+        assertEquals("connect cached", nextRequest());
+        mMachine.onConnectionStateChange(ConnectionStateMachine.GATT_ERROR, DISCONNECTED);
+        assertEquals("reconnecting 2 in 10 after 133", nextEvent());
+        assertEquals("close", nextRequest());
+        assertEquals("connect new", nextRequest());
+        mMachine.onConnectionStateChange(ConnectionStateMachine.GATT_ERROR, DISCONNECTED);
+        assertEquals("reconnecting 3 in 20 after 133", nextEvent());
+        assertEquals("close", nextRequest());
+        assertEquals("connect new", nextRequest());
+        mMachine.onConnectionStateChange(ConnectionStateMachine.GATT_ERROR, DISCONNECTED);
+
+        assertEquals("disconnected 133", nextEvent());
+        assertEquals("close", nextRequest());
+        assertEquals(ConnectionStateMachine.STATE_DISCONNECTED, mMachine.getState());
+        assertEquals(1, mMachine.getGiveUpCount());
+        assertEquals(0, mMachine.getReconnectCount());
+
+        // Nothing is pending once given up, and a late report changes nothing.
+        mMachine.onConnectionStateChange(ConnectionStateMachine.GATT_SUCCESS, CONNECTED);
+        assertNull(mRequests.poll(100, TimeUnit.MILLISECONDS));
+        assertTrue(mEvents.isEmpty());
+
+        connect();
+    }
+
+    @Test
+    public void connectTimeout_countsAsFailedAttempt() throws Exception {
+        assertTrue(mMachine.connect());
+        assertEquals("connect new", nextRequest());
+
+        // No answer within 200 ms.
+        assertEquals("disconnect", nextRequest());
+        assertEquals("close", nextRequest());
+        assertEquals("reconnecting 1 in 10 after 133", nextEvent());
+        assertEquals("connect new", nextRequest());
+    }
+
+    @Test
+    public void refusedRequest_countsAsFailedAttempt() throws Exception {
+        mRefusals = 1;
+        assertFalse(mMachine.connect());
+        assertEquals("connect new", nextRequest());
+        assertEquals("close", nextRequest());
+        assertEquals("reconnecting 1 in 10 after 133", nextEvent());
+        assertEquals("connect new", nextRequest());
+        mMachine.onConnectionStateChange(ConnectionStateMachine.GATT_SUCCESS, CONNECTED);
+        assertEquals("connected", nextEvent());
+    }
+
+    @Test
+    public void disconnect_doesNotReconnect() throws Exception {
+        connect();
+
+        mMachine.disconnect();
+        assertEquals("disconnect", nextRequest());
+        assertEquals(ConnectionStateMachine.STATE_DISCONNECTING, mMachine.getState());
+        mMachine.onConnectionStateChange(ConnectionStateMachine.GATT_SUCCESS, DISCONNECTED);
+        assertEquals("disconnected 0", nextEvent());
+        assertEquals(ConnectionStateMachine.STATE_DISCONNECTED, mMachine.getState());
+        assertNull(mRequests.poll(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void disconnect_whileWaitingCancelsTheNextAttempt() throws Exception {
+        // Long enough a backoff to script the reports that arrive while waiting.
+        ConnectionStateMachine machine = new ConnectionStateMachine(mLink, mListener, mScheduler, 1000, 1000, 5000, 3);
+        assertTrue(machine.connect());
+        assertEquals("connect new", nextRequest());
+        machine.onConnectionStateChange(ConnectionStateMachine.GATT_SUCCESS, CONNECTED);
+        assertEquals("connected", nextEvent());
+
+        machine.onConnectionStateChange(STATUS_CONNECTION_TIMEOUT, DISCONNECTED);
+        assertEquals("connect cached", nextRequest());
+        machine.onConnectionStateChange(STATUS_CONNECTION_TIMEOUT, DISCONNECTED);
+        assertEquals("reconnecting 1 in 0 after 8", nextEvent());
+        assertEquals("reconnecting 2 in 1000 after 8", nextEvent());
+
+        // A failure reported while waiting is late, it doesn't count as an attempt.
+        machine.onConnectionStateChange(ConnectionStateMachine.GATT_ERROR, DISCONNECTED);
+        assertEquals(ConnectionStateMachine.STATE_WAITING_TO_RECONNECT, machine.getState());
+        assertTrue(mEvents.isEmpty());
+
+        machine.disconnect();
+        assertEquals("disconnected 0", nextEvent());
+        assertNull(mRequests.poll(1200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void disconnect_unansweredStillEnds() throws Exception {
+        assertTrue(mMachine.connect());
+        assertEquals("connect new", nextRequest());
+
+        mMachine.disconnect();
+        assertEquals("disconnect", nextRequest());
+        assertEquals("disconnected 0", nextEvent());
+        assertEquals(ConnectionStateMachine.STATE_DISCONNECTED, mMachine.getState());
+    }
+
+    @Test
+    public void backoff_isCappedAndBoundsReconnectTime() {
+        assertEquals(0, mMachine.getBackoffMs(1));
+        assertEquals(10, mMachine.getBackoffMs(2));
+        assertEquals(20, mMachine.getBackoffMs(3));
+        assertEquals(40, mMachine.getBackoffMs(4));
+        assertEquals(40, mMachine.getBackoffMs(40));
+        assertEquals(0 + 10 + 20 + 3 * 200, mMachine.getMaxReconnectTimeMs());
+    }
+
+    /**
+     * A peripheral that drops the link 100 times and answers each connection request after 2 ms,
+     * failing one attempt in ten with GATT_ERROR. The callbacks come from another thread than
+     * the link loss reports, as they do on a phone.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmark_reconnectTime() throws Exception {
+        int losses = 100;
+        ScheduledExecutorService peripheral = Executors.newSingleThreadScheduledExecutor();
+        CountDownLatch[] connected = new CountDownLatch[1];
+        int[] attempts = new int[1];
+        ConnectionStateMachine[] machine = new ConnectionStateMachine[1];
+
+        ConnectionStateMachine.Link link = new ConnectionStateMachine.Link() {
+            @Override
+            public boolean connect(boolean reuseHandle) {
+                boolean fail = attempts[0]++ % 10 == 9;
+                peripheral.schedule(() -> machine[0].onConnectionStateChange(
+                        fail ? ConnectionStateMachine.GATT_ERROR : ConnectionStateMachine.GATT_SUCCESS,
+                        fail ? DISCONNECTED : CONNECTED), 2, TimeUnit.MILLISECONDS);
+                return true;
+            }
+
+            @Override
+            public void disconnect() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        ConnectionStateMachine.Listener listener = new ConnectionStateMachine.Listener() {
+            @Override
+            public void onConnected(long reconnectMs) {
+                connected[0].countDown();
+            }
+
+            @Override
+            public void onReconnecting(int attempt, long delayMs, int status) {
+            }
+
+            @Override
+            public void onDisconnected(int status) {
+            }
+        };
+        machine[0] = new ConnectionStateMachine(link, listener, mScheduler);
+
+        try {
+            connected[0] = new CountDownLatch(1);
+            machine[0].connect();
+            assertTrue(connected[0].await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < losses; i++) {
+                connected[0] = new CountDownLatch(1);
+                machine[0].onConnectionStateChange(STATUS_CONNECTION_TIMEOUT, DISCONNECTED);
+                assertTrue(connected[0].await(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            peripheral.shutdownNow();
+        }
+
+        assertEquals(losses, machine[0].getReconnectCount());
+        assertEquals(0, machine[0].getGiveUpCount());
+        assertTrue(machine[0].getMaxReconnectMs() <= machine[0].getMaxReconnectTimeMs());
+    }
+}
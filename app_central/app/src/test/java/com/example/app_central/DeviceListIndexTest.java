@@ -0,0 +1,72 @@
+package com.example.app_central;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class DeviceListIndexTest {
+
+    private static String address(int device) {
+        return String.format("00:00:00:00:%02X:%02X", device >> 8, device & 0xFF);
+    }
+
+    @Test
+    public void updateAndAppend_keepPositionsStable() {
+        DeviceListIndex<String> index = new DeviceListIndex<>();
+        assertEquals(-1, index.update("A", "a1"));
+        assertEquals(0, index.append("A", "a1"));
+        assertEquals(1, index.append("B", "b1"));
+
+        assertEquals(0, index.update("A", "a2"));
+        assertEquals("a2", index.get(0));
+        assertEquals(1, index.indexOf("B"));
+        assertEquals(2, index.size());
+
+        index.clear();
+        assertEquals(-1, index.indexOf("A"));
+        assertEquals(0, index.size());
+    }
+
+    /**
+     * Feeds 1,000 devices advertising at 10 Hz for 10 simulated seconds through the index and
+     * through the linear address scan DeviceAdapter used before: both must agree on every
+     * position, before and after a clear.
+     */
+    @Test
+    public void thousandDevices_matchTheLinearScan() {
+        int devices = 1000;
+        int results = devices * 10 * 10;
+        String[] addresses = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            addresses[i] = address(i);
+        }
+
+        DeviceListIndex<String> index = new DeviceListIndex<>();
+        ArrayList<String> list = new ArrayList<>();
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < results; i++) {
+                // A different arrival order after the clear.
+                String address = addresses[(i * (round == 0 ? 7919 : 997)) % devices];
+                int position = index.update(address, address);
+                if (position < 0) {
+                    assertEquals(-1, list.indexOf(address));
+                    list.add(address);
+                    position = index.append(address, address);
+                }
+                assertEquals(address, list.get(position));
+            }
+
+            assertEquals(devices, index.size());
+            for (int i = 0; i < devices; i++) {
+                assertEquals(list.indexOf(addresses[i]), index.indexOf(addresses[i]));
+                assertEquals(list.get(i), index.get(i));
+            }
+            index.clear();
+            list.clear();
+            assertEquals(-1, index.indexOf(addresses[0]));
+            assertEquals(0, index.size());
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.app_central;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class GattAttributeCacheTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID HEART_RATE_SERVICE_UUID = UUID.fromString("0000180D-0000-1000-8000-00805f9b34fb");
+    private static final byte[] HASH = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+
+    private static class Characteristic {
+        final UUID mServiceUuid;
+        final UUID mUuid;
+
+        Characteristic(UUID serviceUuid, UUID uuid) {
+            mServiceUuid = serviceUuid;
+            mUuid = uuid;
+        }
+
+        UUID getUuid() {
+            return mUuid;
+        }
+    }
+
+    private static UUID uuid(int shortUuid) {
+        return UUID.fromString(String.format("0000%04X-0000-1000-8000-00805f9b34fb", shortUuid));
+    }
+
+    /**
+     * The Generic Attribute service with its Database Hash, then {@code services} services of
+     * {@code characteristicsPerService} characteristics each.
+     */
+    private static List<List<Characteristic>> database(int services, int characteristicsPerService) {
+        List<List<Characteristic>> database = new ArrayList<>();
+        database.add(Arrays.asList(new Characteristic(GattAttributeCache.GENERIC_ATTRIBUTE_SERVICE_UUID,
+                GattAttributeCache.DATABASE_HASH_UUID)));
+        for (int s = 0; s < services; s++) {
+            UUID serviceUuid = s == services - 1 ? HEART_RATE_SERVICE_UUID : uuid(0x1900 + s);
+            List<Characteristic> service = new ArrayList<>();
+            for (int c = 0; c < characteristicsPerService; c++) {
+                service.add(new Characteristic(serviceUuid, uuid(0x3000 + s * characteristicsPerService + c)));
+            }
+            database.add(service);
+        }
+        database.get(services).add(new Characteristic(HEART_RATE_SERVICE_UUID, HeartRateParser.BODY_SENSOR_LOCATION_UUID));
+        return database;
+    }
+
+    private static List<Characteristic> flatten(List<List<Characteristic>> database) {
+        List<Characteristic> characteristics = new ArrayList<>();
+        for (List<Characteristic> service : database) {
+            characteristics.addAll(service);
+        }
+        return characteristics;
+    }
+
+    @Test
+    public void put_indexesCharacteristicsByUuid() {
+        GattAttributeCache<Characteristic> cache = new GattAttributeCache<>();
+        List<Characteristic> characteristics = flatten(database(4, 3));
+        GattAttributeCache.Attributes<Characteristic> attributes = cache.put(ADDRESS, characteristics, Characteristic::getUuid);
+
+        assertEquals(characteristics.size(), attributes.size());
+        assertSame(characteristics.get(characteristics.size() - 1), attributes.get(HeartRateParser.BODY_SENSOR_LOCATION_UUID));
+        assertNotNull(attributes.get(GattAttributeCache.DATABASE_HASH_UUID));
+        assertNull(attributes.get(HeartRateParser.HEART_RATE_MEASUREMENT_UUID));
+        assertSame(attributes, cache.peek(ADDRESS));
+    }
+
+    @Test
+    public void get_onlyReturnsAttributesOfTheSameDatabase() {
+        GattAttributeCache<Characteristic> cache = new GattAttributeCache<>();
+        GattAttributeCache.Attributes<Characteristic> attributes = cache.put(ADDRESS, flatten(database(2, 2)), Characteristic::getUuid);
+
+        // Not known until the hash is read.
+        assertNull(cache.get(ADDRESS, HASH));
+        cache.setDatabaseHash(ADDRESS, HASH);
+        assertSame(attributes, cache.get(ADDRESS, HASH.clone()));
+
+        byte[] changed = HASH.clone();
+        changed[15]++;
+        assertNull(cache.get(ADDRESS, changed));
+        assertNull(cache.get(ADDRESS, null));
+        assertNull(cache.get("66:77:88:99:AA:BB", HASH));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(4, cache.getMissCount());
+
+        cache.remove(ADDRESS);
+        assertNull(cache.peek(ADDRESS));
+        assertNull(cache.get(ADDRESS, HASH));
+    }
+
+    /**
+     * Repeat connections to a device with 10 services of 8 characteristics. Each one either
+     * reads the same hash and is served from the cache, or finds the database changed and
+     * rediscovers. Either way it finds the characteristic that scanning the nested lists, as
+     * DeviceConnectionActivity did, finds.
+     */
+    @Test
+    public void repeatConnections_countHitsAndMisses() {
+        int connections = 1000;
+        List<List<Characteristic>> database = database(10, 8);
+        Characteristic scanned = null;
+        for (List<Characteristic> service : database) {
+            for (Characteristic characteristic : service) {
+                if (characteristic.mServiceUuid.equals(HEART_RATE_SERVICE_UUID)
+                        && characteristic.mUuid.equals(HeartRateParser.BODY_SENSOR_LOCATION_UUID)) {
+                    scanned = characteristic;
+                }
+            }
+        }
+        assertNotNull(scanned);
+
+        GattAttributeCache<Characteristic> cache = new GattAttributeCache<>();
+        // A first connection discovers without a hash to compare with.
+        assertNull(cache.get(ADDRESS, HASH));
+        cache.put(ADDRESS, flatten(database), Characteristic::getUuid);
+        cache.setDatabaseHash(ADDRESS, HASH);
+
+        int misses = 1;
+        for (int i = 0; i < connections; i++) {
+            byte[] hash = HASH.clone();
+            if (i % 10 == 9) {
+                // Every tenth connection the peripheral's database changed.
+                hash[0]++;
+                misses++;
+                assertNull(cache.get(ADDRESS, hash));
+                assertNull(cache.get(ADDRESS, null));
+                misses++;
+                cache.put(ADDRESS, flatten(database), Characteristic::getUuid);
+                cache.setDatabaseHash(ADDRESS, HASH);
+                continue;
+            }
+            GattAttributeCache.Attributes<Characteristic> attributes = cache.get(ADDRESS, hash);
+            assertNotNull(attributes);
+            assertSame(scanned, attributes.get(HeartRateParser.BODY_SENSOR_LOCATION_UUID));
+        }
+
+        assertEquals(connections - connections / 10, cache.getHitCount());
+        assertEquals(misses, cache.getMissCount());
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.app_central;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+public class GattConnectionPoolTest {
+
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+    private final List<GattSession> mEvicted = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    private GattSession connectedSession(String address) {
+        GattSession session = new GattSession(address, mScheduler);
+        session.setState(GattSession.STATE_CONNECTED);
+        return session;
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsedIdleSession() {
+        GattConnectionPool pool = new GattConnectionPool(2, mEvicted::add);
+        GattSession first = connectedSession("00:00:00:00:00:01");
+        GattSession second = connectedSession("00:00:00:00:00:02");
+        assertTrue(pool.put(first));
+        assertTrue(pool.put(second));
+
+        // Touch the first session so the second becomes the least recently used one.
+        pool.get(first.getAddress());
+        assertTrue(pool.put(connectedSession("00:00:00:00:00:03")));
+
+        assertEquals(1, mEvicted.size());
+        assertSame(second, mEvicted.get(0));
+        assertEquals(2, pool.size());
+        assertNull(pool.get(second.getAddress()));
+    }
+
+    @Test
+    public void put_neverEvictsBusySessions() {
+        GattConnectionPool pool = new GattConnectionPool(2, mEvicted::add);
+        GattSession connecting = new GattSession("00:00:00:00:00:01", mScheduler);
+        connecting.setState(GattSession.STATE_CONNECTING);
+        GattSession busy = connectedSession("00:00:00:00:00:02");
+        busy.getOperationQueue().enqueue(new GattOperationQueue.Operation(
+                GattOperationQueue.TYPE_READ, UUID.randomUUID(), true, () -> true));
+        pool.put(connecting);
+        pool.put(busy);
+
+        assertFalse(pool.put(connectedSession("00:00:00:00:00:03")));
+        assertTrue(mEvicted.isEmpty());
+        assertEquals(2, pool.size());
+    }
+
+    @Test
+    public void setMaxConnections_evictsDownToCap() {
+        GattConnectionPool pool = new GattConnectionPool(GattConnectionPool.DEFAULT_MAX_CONNECTIONS, mEvicted::add);
+        for (int i = 0; i < 24; i++) {
+            pool.put(connectedSession(String.format("00:00:00:00:01:%02X", i)));
+        }
+        assertEquals(GattConnectionPool.DEFAULT_MAX_CONNECTIONS, pool.size());
+
+        pool.setMaxConnections(3);
+        assertEquals(3, pool.size());
+        assertEquals(24 - 3, mEvicted.size());
+    }
+}
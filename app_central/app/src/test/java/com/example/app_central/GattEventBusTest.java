@@ -0,0 +1,158 @@
+package com.example.app_central;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class GattEventBusTest {
+
+    private static final String ADDRESS = "00:00:00:00:00:01";
+    private static final UUID CHARACTERISTIC_UUID = UUID.fromString("00002A38-0000-1000-8000-00805f9b34fb");
+
+    private static class RecordingListener implements GattEventListener {
+        final List<String> mEvents = new ArrayList<>();
+
+        @Override
+        public void onConnected(String address) {
+            mEvents.add("connected " + address);
+        }
+
+        @Override
+        public void onServicesDiscovered(String address) {
+            mEvents.add("discovered " + address);
+        }
+
+        @Override
+        public void onDataAvailable(String address, UUID characteristicUuid, int value) {
+            mEvents.add("data " + value);
+        }
+    }
+
+    @Test
+    public void dispatch_honoursAddressFilter() {
+        GattEventBus bus = new GattEventBus();
+        RecordingListener ours = new RecordingListener();
+        RecordingListener all = new RecordingListener();
+        bus.subscribe(ours, Runnable::run, ADDRESS);
+        bus.subscribe(all, Runnable::run, null);
+
+        bus.dispatchConnected(ADDRESS);
+        bus.dispatchConnected("00:00:00:00:00:02");
+        bus.dispatchServicesDiscovered(ADDRESS);
+        bus.dispatchDataAvailable(ADDRESS, CHARACTERISTIC_UUID, 72);
+
+        assertEquals(Arrays.asList("connected " + ADDRESS, "discovered " + ADDRESS, "data 72"), ours.mEvents);
+        assertEquals(4, all.mEvents.size());
+
+        bus.unsubscribe(ours);
+        bus.dispatchDataAvailable(ADDRESS, CHARACTERISTIC_UUID, 73);
+        assertEquals(3, ours.mEvents.size());
+    }
+
+    @Test
+    public void slowSubscriber_dropsDataButKeepsConnectionEvents() {
+        GattEventBus bus = new GattEventBus();
+        RecordingListener listener = new RecordingListener();
+        List<Runnable> backlog = new ArrayList<>();
+        bus.subscribe(listener, backlog::add, null, 4);
+
+        for (int i = 0; i < 10; i++) {
+            bus.dispatchDataAvailable(ADDRESS, CHARACTERISTIC_UUID, i);
+        }
+        bus.dispatchConnected(ADDRESS);
+
+        assertEquals(6, bus.getDroppedCount(listener));
+        assertEquals(5, backlog.size());
+        for (Runnable event : backlog) {
+            event.run();
+        }
+        assertEquals(Arrays.asList("data 0", "data 1", "data 2", "data 3", "connected " + ADDRESS), listener.mEvents);
+    }
+
+    @Test
+    public void dispatch_deliversEveryEventInOrderOnTheExecutor() throws Exception {
+        int events = 1000;
+        ExecutorService subscriberThread = Executors.newSingleThreadExecutor(
+                runnable -> new Thread(runnable, "subscriber"));
+        List<Integer> values = new ArrayList<>();
+        List<String> threads = new ArrayList<>();
+        CountDownLatch delivered = new CountDownLatch(events);
+
+        GattEventListener listener = new GattEventListener() {
+            @Override
+            public void onDataAvailable(String address, UUID characteristicUuid, int value) {
+                values.add(value);
+                threads.add(Thread.currentThread().getName());
+                delivered.countDown();
+            }
+        };
+        GattEventBus bus = new GattEventBus();
+        // Room for every event, so none is dropped however far the subscriber falls behind.
+        bus.subscribe(listener, subscriberThread, ADDRESS, events);
+
+        for (int i = 0; i < events; i++) {
+            bus.dispatchDataAvailable(ADDRESS, CHARACTERISTIC_UUID, i);
+        }
+        assertTrue(delivered.await(10, TimeUnit.SECONDS));
+        subscriberThread.shutdown();
+        assertTrue(subscriberThread.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(0, bus.getDroppedCount(listener));
+        for (int i = 0; i < events; i++) {
+            assertEquals(i, (int) values.get(i));
+            assertEquals("subscriber", threads.get(i));
+        }
+    }
+
+    /**
+     * Measures the delivery latency of data events to a subscriber running on its own thread,
+     * the equivalent of the main thread receiving a broadcast. Events are sent one at a time so
+     * the figure doesn't include queueing behind earlier events.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmark_deliveryLatency() throws Exception {
+        GattEventBus bus = new GattEventBus();
+        ExecutorService subscriberThread = Executors.newSingleThreadExecutor();
+        int events = 20000;
+        long[] latencies = new long[events];
+        long[] sentAt = new long[events];
+        AtomicInteger delivered = new AtomicInteger();
+
+        bus.subscribe(new GattEventListener() {
+            @Override
+            public void onDataAvailable(String address, UUID characteristicUuid, int value) {
+                latencies[value] = System.nanoTime() - sentAt[value];
+                delivered.incrementAndGet();
+            }
+        }, subscriberThread, ADDRESS);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        for (int i = 0; i < events; i++) {
+            sentAt[i] = System.nanoTime();
+            bus.dispatchDataAvailable(ADDRESS, CHARACTERISTIC_UUID, i);
+            while (delivered.get() <= i) {
+                assertTrue(System.nanoTime() < deadline);
+                Thread.yield();
+            }
+        }
+        subscriberThread.shutdownNow();
+
+        Arrays.sort(latencies);
+        long p50Us = latencies[events / 2] / 1000;
+        long p99Us = latencies[events * 99 / 100] / 1000;
+        assertTrue("p50 " + p50Us + " us", p50Us < 1000);
+        assertTrue("p99 " + p99Us + " us", p99Us < 10000);
+    }
+}
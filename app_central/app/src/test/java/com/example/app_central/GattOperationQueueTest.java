@@ -0,0 +1,213 @@
+package com.example.app_central;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the {@link GattOperationQueue} against a fake GATT handle that completes every request
+ * asynchronously, the way {@code BluetoothGattCallback} does.
+ */
+public class GattOperationQueueTest {
+
+    private static final UUID CHARACTERISTIC_UUID = UUID.fromString("00002A38-0000-1000-8000-00805f9b34fb");
+
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Stand-in for {@code BluetoothGatt}: accepts one request at a time and reports it on a
+     * separate thread. Requests issued while one is in flight are dropped, like on a real stack.
+     */
+    private static class FakeGatt {
+        final ExecutorService mCallbackThread = Executors.newSingleThreadExecutor();
+        final AtomicInteger mInFlight = new AtomicInteger();
+        final AtomicInteger mDropped = new AtomicInteger();
+        final AtomicInteger mMaxInFlight = new AtomicInteger();
+        GattOperationQueue mQueue;
+        boolean mRespond = true;
+
+        boolean read(UUID uuid) {
+            int inFlight = mInFlight.incrementAndGet();
+            mMaxInFlight.accumulateAndGet(inFlight, Math::max);
+            if (inFlight > 1) {
+                mInFlight.decrementAndGet();
+                mDropped.incrementAndGet();
+                return false;
+            }
+            if (mRespond) {
+                mCallbackThread.execute(() -> {
+                    mInFlight.decrementAndGet();
+                    mQueue.onComplete(GattOperationQueue.TYPE_READ, uuid, 0, new byte[]{1});
+                });
+            } else {
+                mInFlight.decrementAndGet();
+            }
+            return true;
+        }
+
+        void shutdown() {
+            mCallbackThread.shutdownNow();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    private GattOperationQueue.Operation read(FakeGatt gatt) {
+        return new GattOperationQueue.Operation(GattOperationQueue.TYPE_READ, CHARACTERISTIC_UUID, true,
+                () -> gatt.read(CHARACTERISTIC_UUID));
+    }
+
+    @Test
+    public void operations_areIssuedOneAtATime() throws Exception {
+        FakeGatt gatt = new FakeGatt();
+        GattOperationQueue queue = new GattOperationQueue(mScheduler, 64, 1000, 0);
+        gatt.mQueue = queue;
+
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[50];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = queue.enqueue(read(gatt));
+        }
+        CompletableFuture.allOf(futures).get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, gatt.mMaxInFlight.get());
+        assertEquals(0, gatt.mDropped.get());
+        assertEquals(50, queue.getCompletedCount());
+        assertTrue(queue.isIdle());
+        gatt.shutdown();
+    }
+
+    @Test
+    public void synchronousOperation_completesWithoutCallback() throws Exception {
+        GattOperationQueue queue = new GattOperationQueue(mScheduler);
+        CompletableFuture<byte[]> future = queue.enqueue(new GattOperationQueue.Operation(
+                GattOperationQueue.TYPE_NOTIFY, CHARACTERISTIC_UUID, false, () -> true));
+
+        assertNull(future.get(1, TimeUnit.SECONDS));
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void timedOutOperation_isRetriedThenFails() throws Exception {
+        FakeGatt gatt = new FakeGatt();
+        gatt.mRespond = false;
+        GattOperationQueue queue = new GattOperationQueue(mScheduler, 8, 20, 2);
+        gatt.mQueue = queue;
+
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<byte[]> future = queue.enqueue(new GattOperationQueue.Operation(
+                GattOperationQueue.TYPE_READ, CHARACTERISTIC_UUID, true, () -> {
+                    attempts.incrementAndGet();
+                    return gatt.read(CHARACTERISTIC_UUID);
+                }));
+
+        try {
+            future.get(2, TimeUnit.SECONDS);
+            fail("expected a timeout");
+        } catch (ExecutionException e) {
+            assertEquals(GattOperationException.STATUS_TIMEOUT, ((GattOperationException) e.getCause()).getStatus());
+        }
+        assertEquals(3, attempts.get());
+        gatt.shutdown();
+    }
+
+    @Test
+    public void rejectedStart_isRetried() throws Exception {
+        GattOperationQueue queue = new GattOperationQueue(mScheduler, 8, 1000, 2);
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<byte[]> future = queue.enqueue(new GattOperationQueue.Operation(
+                GattOperationQueue.TYPE_NOTIFY, CHARACTERISTIC_UUID, false, () -> attempts.incrementAndGet() > 1));
+
+        future.get(1, TimeUnit.SECONDS);
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    public void gattError_failsFutureAndMovesOn() throws Exception {
+        GattOperationQueue queue = new GattOperationQueue(mScheduler);
+        CompletableFuture<byte[]> first = queue.enqueue(new GattOperationQueue.Operation(
+                GattOperationQueue.TYPE_READ, CHARACTERISTIC_UUID, true, () -> true));
+        CompletableFuture<byte[]> second = queue.enqueue(new GattOperationQueue.Operation(
+                GattOperationQueue.TYPE_READ, CHARACTERISTIC_UUID, true, () -> true));
+
+        assertFalse(queue.onComplete(GattOperationQueue.TYPE_WRITE, CHARACTERISTIC_UUID, 0, null));
+        assertTrue(queue.onComplete(GattOperationQueue.TYPE_READ, CHARACTERISTIC_UUID, 5, null));
+        assertTrue(first.isCompletedExceptionally());
+        assertFalse(second.isDone());
+
+        queue.onComplete(GattOperationQueue.TYPE_READ, CHARACTERISTIC_UUID, 0, new byte[]{7});
+        assertArrayEquals(new byte[]{7}, second.get());
+    }
+
+    @Test
+    public void fullQueue_rejectsAndClearCancels() {
+        GattOperationQueue queue = new GattOperationQueue(mScheduler, 2, 1000, 0);
+        CompletableFuture<byte[]> inFlight = queue.enqueue(new GattOperationQueue.Operation(
+                GattOperationQueue.TYPE_READ, CHARACTERISTIC_UUID, true, () -> true));
+        queue.enqueue(new GattOperationQueue.Operation(GattOperationQueue.TYPE_READ, CHARACTERISTIC_UUID, true, () -> true));
+        queue.enqueue(new GattOperationQueue.Operation(GattOperationQueue.TYPE_READ, CHARACTERISTIC_UUID, true, () -> true));
+        CompletableFuture<byte[]> rejected = queue.enqueue(new GattOperationQueue.Operation(
+                GattOperationQueue.TYPE_READ, CHARACTERISTIC_UUID, true, () -> true));
+
+        assertTrue(rejected.isCompletedExceptionally());
+        assertEquals(3, queue.size());
+
+        queue.clear();
+        assertTrue(inFlight.isCompletedExceptionally());
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void enqueue_completesEveryOperationOfAFullQueue() throws Exception {
+        readThroughFullQueue(20000);
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmark_throughput() throws Exception {
+        int operations = 20000;
+        long elapsedNs = readThroughFullQueue(operations);
+        long operationsPerSecond = operations * 1_000_000_000L / elapsedNs;
+        assertTrue(operationsPerSecond + " ops/s", operationsPerSecond > 10000);
+    }
+
+    /**
+     * Reads through a queue kept full and checks every read completed.
+     *
+     * @return The time the reads took.
+     */
+    private long readThroughFullQueue(int operations) throws Exception {
+        FakeGatt gatt = new FakeGatt();
+        GattOperationQueue queue = new GattOperationQueue(mScheduler, 1024, 1000, 0);
+        gatt.mQueue = queue;
+
+        long start = System.nanoTime();
+        CompletableFuture<byte[]> last = null;
+        for (int i = 0; i < operations; i++) {
+            last = queue.enqueue(read(gatt));
+            if (queue.size() >= 1024) {
+                last.get(5, TimeUnit.SECONDS);
+            }
+        }
+        last.get(5, TimeUnit.SECONDS);
+        long elapsedNs = System.nanoTime() - start;
+
+        assertEquals(operations, queue.getCompletedCount());
+        assertTrue(queue.isIdle());
+        gatt.shutdown();
+        return elapsedNs;
+    }
+}
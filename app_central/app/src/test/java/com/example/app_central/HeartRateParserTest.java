@@ -0,0 +1,145 @@
+package com.example.app_central;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import static org.junit.Assert.*;
+
+public class HeartRateParserTest {
+
+    // Flags 0x00: uint8 heart rate, no contact support.
+    private static final byte[] UINT8_RATE = {0x00, 0x48};
+    // Flags 0x16: uint8 heart rate, contact supported and detected, two RR intervals.
+    private static final byte[] CONTACT_AND_RR = {0x16, 0x4C, 0x1C, 0x03, (byte) 0xF4, 0x02};
+    // Flags 0x19: uint16 heart rate, energy expended, one RR interval.
+    private static final byte[] UINT16_ENERGY_RR = {0x19, 0x2C, 0x01, (byte) 0xE8, 0x03, 0x00, 0x02};
+    // Flags 0x04: contact supported but not detected.
+    private static final byte[] NO_CONTACT = {0x04, 0x00};
+    // Flags 0x09: uint16 heart rate and energy expended, but the energy field is cut short.
+    private static final byte[] TRUNCATED = {0x09, 0x50, 0x00, 0x10};
+
+    private final NotificationDecoder mDecoder = new NotificationDecoder();
+    private final HeartRateParser.Measurement mMeasurement = new HeartRateParser.Measurement();
+    private final RrIntervalBuffer mRrIntervals = new RrIntervalBuffer(8);
+
+    private boolean parse(byte[] packet) {
+        mDecoder.copy(packet);
+        return HeartRateParser.parseMeasurement(mDecoder, mMeasurement, mRrIntervals);
+    }
+
+    @Test
+    public void parse_uint8HeartRate() {
+        assertTrue(parse(UINT8_RATE));
+        assertEquals(72, mMeasurement.heartRate);
+        assertFalse(mMeasurement.sensorContactSupported);
+        assertFalse(mMeasurement.sensorContactDetected);
+        assertEquals(-1, mMeasurement.energyExpended);
+        assertEquals(0, mMeasurement.rrIntervalCount);
+    }
+
+    @Test
+    public void parse_sensorContactAndRrIntervals() {
+        assertTrue(parse(CONTACT_AND_RR));
+        assertEquals(76, mMeasurement.heartRate);
+        assertTrue(mMeasurement.sensorContactSupported);
+        assertTrue(mMeasurement.sensorContactDetected);
+        assertEquals(2, mMeasurement.rrIntervalCount);
+
+        int[] intervals = new int[4];
+        assertEquals(2, mRrIntervals.drain(intervals));
+        assertEquals(0x031C, intervals[0]);
+        assertEquals(0x02F4, intervals[1]);
+        assertEquals(777, RrIntervalBuffer.toMillis(intervals[0]));
+    }
+
+    @Test
+    public void parse_uint16HeartRateWithEnergyExpended() {
+        assertTrue(parse(UINT16_ENERGY_RR));
+        assertEquals(300, mMeasurement.heartRate);
+        assertEquals(1000, mMeasurement.energyExpended);
+        assertEquals(1, mMeasurement.rrIntervalCount);
+        assertEquals(1, mRrIntervals.size());
+    }
+
+    @Test
+    public void parse_reusesRecordBetweenPackets() {
+        assertTrue(parse(UINT16_ENERGY_RR));
+        assertTrue(parse(NO_CONTACT));
+        assertEquals(0, mMeasurement.heartRate);
+        assertTrue(mMeasurement.sensorContactSupported);
+        assertFalse(mMeasurement.sensorContactDetected);
+        assertEquals(-1, mMeasurement.energyExpended);
+        assertEquals(0, mMeasurement.rrIntervalCount);
+    }
+
+    @Test
+    public void parse_rejectsTruncatedPackets() {
+        assertFalse(parse(TRUNCATED));
+        assertFalse(parse(new byte[0]));
+        assertFalse(parse(new byte[]{0x01, 0x50}));
+    }
+
+    @Test
+    public void parse_bodySensorLocation() {
+        mDecoder.copy(new byte[]{0x01});
+        assertEquals(HeartRateParser.BODY_SENSOR_LOCATION_CHEST, HeartRateParser.parseBodySensorLocation(mDecoder));
+        mDecoder.copy(new byte[0]);
+        assertEquals(-1, HeartRateParser.parseBodySensorLocation(mDecoder));
+    }
+
+    @Test
+    public void rrIntervalBuffer_overwritesOldestWhenFull() {
+        RrIntervalBuffer buffer = new RrIntervalBuffer(4);
+        for (int i = 1; i <= 6; i++) {
+            buffer.add(i);
+        }
+        assertEquals(2, buffer.getOverwrittenCount());
+
+        int[] intervals = new int[3];
+        assertEquals(3, buffer.drain(intervals));
+        assertArrayEquals(new int[]{3, 4, 5}, intervals);
+        assertEquals(1, buffer.drain(intervals));
+        assertEquals(6, intervals[0]);
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void parseMeasurement_reusesTheDecoderAcrossPackets() {
+        parseAlternating(100000);
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmark_parseThroughput() {
+        int packets = 2000000;
+        long elapsedNs = parseAlternating(packets);
+        long packetsPerSecond = packets * 1_000_000_000L / elapsedNs;
+        assertTrue(packetsPerSecond + " packets/s", packetsPerSecond > 500000);
+    }
+
+    /**
+     * Parses two packet layouts in turn through the same decoder and measurement, and checks
+     * every heart rate was read.
+     *
+     * @return The time the parsing took.
+     */
+    private long parseAlternating(int packets) {
+        RrIntervalBuffer rrIntervals = new RrIntervalBuffer();
+        int[] drained = new int[RrIntervalBuffer.DEFAULT_CAPACITY];
+        long heartRates = 0;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < packets; i++) {
+            mDecoder.copy((i & 1) == 0 ? CONTACT_AND_RR : UINT16_ENERGY_RR);
+            HeartRateParser.parseMeasurement(mDecoder, mMeasurement, rrIntervals);
+            heartRates += mMeasurement.heartRate;
+            if (rrIntervals.size() > 128) {
+                rrIntervals.drain(drained);
+            }
+        }
+        long elapsedNs = System.nanoTime() - start;
+
+        assertEquals((76L + 300L) * packets / 2, heartRates);
+        return elapsedNs;
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.app_central;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class LatencyTracerTest {
+
+    private static final long MS = 1_000_000L;
+
+    private static String address(int device) {
+        return String.format("00:00:00:00:%02X:%02X", device >> 8, device & 0xFF);
+    }
+
+    /**
+     * Walks a trace through every phase, phase i taking i milliseconds.
+     */
+    private static void trace(LatencyTracer tracer, String address, long startNs) {
+        tracer.begin(address, startNs);
+        long now = startNs;
+        for (int phase = LatencyTracer.PHASE_SCAN_CALLBACK; phase <= LatencyTracer.PHASE_FIRST_DATA; phase++) {
+            now += phase * MS;
+            tracer.mark(address, phase, now);
+        }
+    }
+
+    @Test
+    public void mark_recordsTimeSincePreviousPhase() {
+        LatencyTracer tracer = new LatencyTracer(64);
+        trace(tracer, "A", 1000 * MS);
+
+        assertEquals(3 * MS, tracer.getPercentileNs(LatencyTracer.PHASE_SERVICE_BOUND, 50));
+        assertEquals(7 * MS, tracer.getPercentileNs(LatencyTracer.PHASE_FIRST_DATA, 99));
+        assertEquals(28 * MS, tracer.getPercentileNs(LatencyTracer.TOTAL, 50));
+        assertEquals(1, tracer.getSampleCount(LatencyTracer.TOTAL));
+
+        // The trace is complete, later events of the device are not traced.
+        tracer.mark("A", LatencyTracer.PHASE_FIRST_DATA, 2000 * MS);
+        assertEquals(1, tracer.getSampleCount(LatencyTracer.PHASE_FIRST_DATA));
+    }
+
+    @Test
+    public void mark_ignoresUntracedDevicesAndRepeatedPhases() {
+        LatencyTracer tracer = new LatencyTracer(64);
+        tracer.mark("A", LatencyTracer.PHASE_CONNECT, 10 * MS);
+        assertEquals(0, tracer.getSampleCount(LatencyTracer.PHASE_CONNECT));
+
+        tracer.begin("A", 0);
+        tracer.mark(null, LatencyTracer.PHASE_CONNECT, 10 * MS);
+        tracer.mark("A", LatencyTracer.PHASE_CONNECTED, 10 * MS);
+        // Reconnected: the phase is already past.
+        tracer.mark("A", LatencyTracer.PHASE_CONNECTED, 50 * MS);
+        tracer.mark("A", LatencyTracer.PHASE_CONNECT, 60 * MS);
+        assertEquals(1, tracer.getSampleCount(LatencyTracer.PHASE_CONNECTED));
+        assertEquals(10 * MS, tracer.getPercentileNs(LatencyTracer.PHASE_CONNECTED, 50));
+        assertEquals(-1, tracer.getPercentileNs(LatencyTracer.PHASE_CONNECT, 50));
+
+        tracer.cancel("A");
+        tracer.mark("A", LatencyTracer.PHASE_FIRST_DATA, 70 * MS);
+        assertEquals(0, tracer.getSampleCount(LatencyTracer.TOTAL));
+    }
+
+    @Test
+    public void begin_evictsOldestTraceWhenFull() {
+        LatencyTracer tracer = new LatencyTracer(64);
+        for (int i = 0; i <= LatencyTracer.MAX_TRACES; i++) {
+            tracer.begin(address(i), i * MS);
+        }
+        assertEquals(1, tracer.getDroppedCount());
+
+        tracer.mark(address(0), LatencyTracer.PHASE_FIRST_DATA, 100 * MS);
+        tracer.mark(address(1), LatencyTracer.PHASE_FIRST_DATA, 100 * MS);
+        assertEquals(1, tracer.getSampleCount(LatencyTracer.TOTAL));
+        assertEquals(99 * MS, tracer.getPercentileNs(LatencyTracer.TOTAL, 50));
+    }
+
+    @Test
+    public void percentiles_coverTheLatestSamples() {
+        LatencyTracer tracer = new LatencyTracer(100);
+        for (int i = 1; i <= 200; i++) {
+            tracer.begin("A", 0);
+            tracer.mark("A", LatencyTracer.PHASE_CONNECTED, i * MS);
+        }
+        // Only samples 101 to 200 are left in the ring.
+        assertEquals(100, tracer.getSampleCount(LatencyTracer.PHASE_CONNECTED));
+        assertEquals(150 * MS, tracer.getPercentileNs(LatencyTracer.PHASE_CONNECTED, 50));
+        assertEquals(199 * MS, tracer.getPercentileNs(LatencyTracer.PHASE_CONNECTED, 99));
+        assertEquals(200 * MS, tracer.getPercentileNs(LatencyTracer.PHASE_CONNECTED, 100));
+    }
+
+    @Test
+    public void dump_printsEveryPhase() {
+        LatencyTracer tracer = new LatencyTracer(64);
+        trace(tracer, "A", 0);
+        StringWriter out = new StringWriter();
+        tracer.dump(new PrintWriter(out));
+
+        String dump = out.toString();
+        for (int phase = 0; phase < LatencyTracer.PHASE_COUNT; phase++) {
+            assertTrue(dump.contains(LatencyTracer.getPhaseName(phase)));
+        }
+        assertTrue(dump.contains("p50=28.0"));
+    }
+
+    /**
+     * Marks one million events, most of them for devices without a trace as data events are, and
+     * checks how much the marking thread allocated.
+     */
+    @Test
+    public void mark_isAllocationFree() {
+        LatencyTracer tracer = new LatencyTracer();
+        String[] addresses = new String[16];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = address(i);
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int events = 1000000;
+
+        // Warm up so that class loading isn't counted.
+        trace(tracer, addresses[0], 0);
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < events; i++) {
+            String address = addresses[i & 15];
+            int phase = 1 + (i >> 4) % (LatencyTracer.PHASE_COUNT - 1);
+            if (phase == 1) {
+                tracer.begin(address, i);
+            }
+            tracer.mark(address, phase, i);
+        }
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+        assertTrue(tracer.getSampleCount(LatencyTracer.TOTAL) > 0);
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.app_central;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LinkOptimizerTest {
+
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+    private final GattOperationQueue mQueue = new GattOperationQueue(mScheduler);
+    private final List<String> mRequests = new CopyOnWriteArrayList<>();
+
+    private final LinkOptimizer.Link mLink = new LinkOptimizer.Link() {
+        @Override
+        public boolean requestMtu(int mtu) {
+            mRequests.add("mtu " + mtu);
+            return true;
+        }
+
+        @Override
+        public void setPreferredPhy2M() {
+            mRequests.add("phy 2M");
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            mRequests.add("priority " + priority);
+            return true;
+        }
+    };
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void start_negotiatesMtuThenPhy() throws Exception {
+        LinkOptimizer optimizer = new LinkOptimizer(mLink, mQueue, mScheduler, true);
+        optimizer.start();
+        assertEquals(1, mRequests.size());
+        assertEquals("mtu " + LinkOptimizer.MAX_MTU, mRequests.get(0));
+
+        optimizer.onMtuChanged(247, 0);
+        assertEquals(247, optimizer.getMtu());
+        assertEquals(244, optimizer.getMaxPayload());
+        assertEquals("phy 2M", mRequests.get(1));
+        assertTrue(mQueue.isIdle());
+
+        optimizer.onPhyUpdate(LinkOptimizer.PHY_LE_2M, LinkOptimizer.PHY_LE_2M, 0);
+        assertEquals(LinkOptimizer.PHY_LE_2M, optimizer.getTxPhy());
+    }
+
+    @Test
+    public void start_skipsPhyWithout2MSupportAndKeepsMtuOnFailure() {
+        LinkOptimizer optimizer = new LinkOptimizer(mLink, mQueue, mScheduler, false);
+        optimizer.start();
+        optimizer.onMtuChanged(517, 0x85);
+        assertEquals(LinkOptimizer.DEFAULT_MTU, optimizer.getMtu());
+        assertEquals(1, mRequests.size());
+        assertTrue(mQueue.isIdle());
+    }
+
+    @Test
+    public void traffic_raisesPriorityUntilIdle() throws Exception {
+        LinkOptimizer optimizer = new LinkOptimizer(mLink, mQueue, mScheduler, false, 50);
+        for (int i = 0; i < 10; i++) {
+            optimizer.onTraffic(244);
+        }
+        assertEquals(LinkOptimizer.PRIORITY_HIGH, optimizer.getPriority());
+        assertEquals(1, mRequests.size());
+        assertEquals("priority " + LinkOptimizer.PRIORITY_HIGH, mRequests.get(0));
+
+        Thread.sleep(30);
+        optimizer.onTraffic(244);
+        Thread.sleep(30);
+        // Traffic 30 ms ago: still bursting.
+        assertEquals(LinkOptimizer.PRIORITY_HIGH, optimizer.getPriority());
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (optimizer.getPriority() != LinkOptimizer.PRIORITY_BALANCED) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+        assertEquals("priority " + LinkOptimizer.PRIORITY_BALANCED, mRequests.get(1));
+        assertEquals(244 * 11, optimizer.getTotalBytes());
+    }
+
+    @Test
+    public void close_cancelsTheIdleCheck() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        scheduler.setRemoveOnCancelPolicy(true);
+        try {
+            LinkOptimizer optimizer = new LinkOptimizer(mLink, mQueue, scheduler, false, 60000);
+            optimizer.onTraffic(244);
+            assertEquals(1, scheduler.getQueue().size());
+
+            optimizer.close();
+            assertTrue(scheduler.getQueue().isEmpty());
+            // A closed optimizer leaves the priority of the handle alone.
+            optimizer.onTraffic(244);
+            assertTrue(scheduler.getQueue().isEmpty());
+            assertEquals(1, mRequests.size());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void throughputMeter_measuresLastSecond() {
+        ThroughputMeter meter = new ThroughputMeter();
+        long ms = 1_000_000L;
+        // 20 byte payloads every 5 ms, the default MTU on a short connection interval...
+        for (long t = 0; t < 1000; t += 5) {
+            meter.record(20, t * ms);
+        }
+        long defaultMtu = meter.getBytesPerSecond(999 * ms);
+        // ...then 244 byte payloads at the same rate once the MTU is 247.
+        for (long t = 1000; t < 2000; t += 5) {
+            meter.record(244, t * ms);
+        }
+        long largeMtu = meter.getBytesPerSecond(1999 * ms);
+
+        assertEquals(200 * 20, defaultMtu);
+        assertEquals(200 * 244, largeMtu);
+        assertEquals(0, meter.getBytesPerSecond(5000 * ms));
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.app_central;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class NotificationDecoderTest {
+
+    private static final byte[] NOTIFICATION = {0x16, 0x48, 0x00, (byte) 0xFF, 0x01, 0x02, 0x7F, (byte) 0x80,
+            0x10, 0x20, 0x30, 0x40, 0x50, 0x60, 0x70, (byte) 0x90, (byte) 0xA0, (byte) 0xB0, (byte) 0xC0, (byte) 0xD0};
+
+    @Test
+    public void accessors_decodeLittleEndianValues() {
+        NotificationDecoder decoder = new NotificationDecoder();
+        assertEquals(NOTIFICATION.length, decoder.copy(NOTIFICATION));
+
+        assertEquals(0x16, decoder.uint8(0));
+        assertEquals(0x0048, decoder.uint16(1));
+        assertEquals(0x01FF, decoder.uint16(3));
+        assertEquals(0xD0, decoder.uint8(NOTIFICATION.length - 1));
+        assertEquals(-1, decoder.uint8(NOTIFICATION.length));
+        assertEquals(-1, decoder.uint16(NOTIFICATION.length - 1));
+
+        decoder.copy(null);
+        assertEquals(0, decoder.length());
+        assertEquals(-1, decoder.uint8(0));
+    }
+
+    @Test
+    public void formatHex_matchesStringFormat() {
+        NotificationDecoder decoder = new NotificationDecoder();
+        decoder.copy(NOTIFICATION);
+
+        assertEquals(legacyHex(NOTIFICATION), new String(decoder.getHexChars(), 0, decoder.formatHex()));
+    }
+
+    @Test
+    public void copy_truncatesOversizedValues() {
+        NotificationDecoder decoder = new NotificationDecoder();
+        assertEquals(NotificationDecoder.MAX_ATTRIBUTE_LENGTH, decoder.copy(new byte[1024]));
+    }
+
+    /**
+     * Compares the bytes allocated per notification by the previous String.format based decoding
+     * and by the decoder. Only runs where the JVM can report per-thread allocations.
+     */
+    @Test
+    public void decode_allocatesLessThanStringFormat() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threadBean.isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+        int notifications = 100000;
+        NotificationDecoder decoder = new NotificationDecoder();
+
+        // Warm up both paths so class loading and JIT don't count.
+        long sink = 0;
+        for (int i = 0; i < 10000; i++) {
+            sink += legacyDecode(NOTIFICATION);
+            sink += decode(decoder, NOTIFICATION);
+        }
+
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < notifications; i++) {
+            sink += legacyDecode(NOTIFICATION);
+        }
+        long legacyBytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < notifications; i++) {
+            sink += decode(decoder, NOTIFICATION);
+        }
+        long decoderBytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(sink != 0);
+        assertTrue(decoderBytes / notifications + " B/notification", decoderBytes / notifications < 8);
+        assertTrue(legacyBytes / notifications + " B/notification before", decoderBytes < legacyBytes);
+    }
+
+    private static long decode(NotificationDecoder decoder, byte[] value) {
+        decoder.copy(value);
+        return decoder.uint16(0) + decoder.formatHex();
+    }
+
+    private static long legacyDecode(byte[] value) {
+        Integer msg = (value[0] & 0xFF) | ((value[1] & 0xFF) << 8);
+        String message = String.format("message: %d", msg);
+        return message.length() + legacyHex(value).length();
+    }
+
+    private static String legacyHex(byte[] data) {
+        StringBuilder stringBuilder = new StringBuilder(data.length);
+        for (byte byteChar : data) {
+            stringBuilder.append(String.format("%02X ", byteChar));
+        }
+        return stringBuilder.toString();
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.app_central;
+
+import android.bluetooth.le.ScanSettings;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScanProfileTest {
+
+    @Test
+    public void resolve_keepsSupportedProfile() {
+        assertSame(ScanProfile.BATCHED, ScanProfile.BATCHED.resolve(true, false));
+        assertSame(ScanProfile.INTERACTIVE, ScanProfile.INTERACTIVE.resolve(false, false));
+    }
+
+    @Test
+    public void resolve_fallsBackWithoutBatching() {
+        ScanProfile resolved = ScanProfile.BATCHED.resolve(false, true);
+        assertFalse(resolved.isBatched());
+        assertEquals(ScanProfile.BATCHED.getScanMode(), resolved.getScanMode());
+    }
+
+    @Test
+    public void resolve_fallsBackWithoutFilterOffload() {
+        ScanProfile profile = new ScanProfile.Builder()
+                .setCallbackType(ScanSettings.CALLBACK_TYPE_FIRST_MATCH)
+                .setMatchMode(ScanSettings.MATCH_MODE_STICKY)
+                .setNumOfMatches(ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT)
+                .build();
+
+        ScanProfile resolved = profile.resolve(true, false);
+        assertEquals(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, resolved.getCallbackType());
+        assertEquals(ScanSettings.MATCH_MODE_STICKY, resolved.getMatchMode());
+        assertEquals(ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT, resolved.getNumOfMatches());
+        assertSame(profile, profile.resolve(true, true));
+    }
+
+    /**
+     * 50 devices advertising at 10 Hz for a minute: one callback per result without batching,
+     * against one callback per report delay with it.
+     */
+    @Test
+    public void statistics_reportCallbacksSavedPerMinute() {
+        int resultsPerSecond = 50 * 10;
+
+        ScanStatistics immediate = new ScanStatistics();
+        immediate.start(0);
+        for (int i = 0; i < resultsPerSecond * 60; i++) {
+            immediate.onCallback(1);
+        }
+
+        ScanStatistics batched = new ScanStatistics();
+        batched.start(0);
+        long reportDelayMs = ScanProfile.BATCHED.getReportDelayMs();
+        for (long t = 0; t < 60000; t += reportDelayMs) {
+            batched.onCallback((int) (resultsPerSecond * reportDelayMs / 1000));
+        }
+
+        assertEquals(30000, immediate.getCallbacksPerMinute(60000), 0.1);
+        assertEquals(0, immediate.getSavedCallbacksPerMinute(60000), 0.1);
+        assertEquals(60, batched.getCallbacksPerMinute(60000), 0.1);
+        assertEquals(30000 - 60, batched.getSavedCallbacksPerMinute(60000), 0.1);
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.app_central;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ScanResultCoalescerTest {
+
+    @Test
+    public void publish_coalescesResultsPerDevice() {
+        ScanResultCoalescer<String> coalescer = new ScanResultCoalescer<>(100, 1f);
+        coalescer.offer("A", "a1", -50);
+        coalescer.offer("B", "b1", -60);
+        coalescer.offer("A", "a2", -55);
+
+        Map<String, String> published = new HashMap<>();
+        assertEquals(2, coalescer.publish((address, result, rssi) -> published.put(address, result)));
+        assertEquals("a2", published.get("A"));
+        assertEquals("b1", published.get("B"));
+
+        // Nothing changed since the last frame.
+        assertEquals(0, coalescer.publish((address, result, rssi) -> fail()));
+    }
+
+    @Test
+    public void offer_smoothsRssi() {
+        ScanResultCoalescer<String> coalescer = new ScanResultCoalescer<>(100, 0.5f);
+        coalescer.offer("A", "a", -40);
+        coalescer.offer("A", "a", -80);
+        coalescer.offer("A", "a", -80);
+
+        int[] rssi = new int[1];
+        coalescer.publish((address, result, smoothedRssi) -> rssi[0] = smoothedRssi);
+        assertEquals(-70, rssi[0]);
+    }
+
+    /**
+     * Four scanner threads flood 500 devices with results while the "UI" publishes at a fixed
+     * frame rate. The work per frame must stay bounded by the number of devices.
+     */
+    @Test
+    public void scanStorm_keepsUiWorkConstant() throws Exception {
+        int devices = 500;
+        int resultsPerThread = 250000;
+        ScanResultCoalescer<Integer> coalescer = new ScanResultCoalescer<>(5, ScanResultCoalescer.DEFAULT_RSSI_SMOOTHING);
+        AtomicBoolean scanning = new AtomicBoolean(true);
+
+        Thread[] scanners = new Thread[4];
+        for (int t = 0; t < scanners.length; t++) {
+            final int seed = t;
+            scanners[t] = new Thread(() -> {
+                for (int i = 0; i < resultsPerThread; i++) {
+                    int device = (i * 31 + seed) % devices;
+                    coalescer.offer("device" + device, i, -60 - (i & 7));
+                }
+            });
+            scanners[t].start();
+        }
+
+        int frames = 0;
+        int maxPerFrame = 0;
+        long published = 0;
+        Thread joiner = new Thread(() -> {
+            for (Thread scanner : scanners) {
+                try {
+                    scanner.join();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            scanning.set(false);
+        });
+        joiner.start();
+
+        while (scanning.get()) {
+            int count = coalescer.publish((address, result, rssi) -> { });
+            maxPerFrame = Math.max(maxPerFrame, count);
+            published += count;
+            frames++;
+            Thread.sleep(coalescer.getPublishIntervalMs());
+        }
+        published += coalescer.publish((address, result, rssi) -> { });
+
+        assertEquals(devices, coalescer.size());
+        assertTrue(maxPerFrame <= devices);
+        assertTrue(published <= (long) (frames + 1) * devices);
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.app_central;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SensorBroadcastTrackerTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    @Test
+    public void encode_fitsInTheLegacyAdvertisement() {
+        byte[] value = new byte[40];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) i;
+        }
+        byte[] payload = SensorBroadcastCodec.encode(0x1234, value);
+
+        assertEquals(SensorBroadcastCodec.MAX_PAYLOAD_LENGTH, payload.length);
+        assertTrue(SensorBroadcastCodec.isBroadcast(payload));
+        assertTrue(SensorBroadcastCodec.isTruncated(payload));
+        assertEquals(0x1234, SensorBroadcastCodec.sequence(payload));
+        assertEquals(SensorBroadcastCodec.MAX_VALUE_LENGTH, SensorBroadcastCodec.value(payload).length);
+        assertEquals(16, SensorBroadcastCodec.value(payload)[16]);
+
+        payload = SensorBroadcastCodec.encode(0xFFFF, new byte[]{2});
+        assertFalse(SensorBroadcastCodec.isTruncated(payload));
+        assertArrayEquals(new byte[]{2}, SensorBroadcastCodec.value(payload));
+        assertEquals(0, SensorBroadcastCodec.next(SensorBroadcastCodec.sequence(payload)));
+    }
+
+    @Test
+    public void isBroadcast_rejectsOtherServiceData() {
+        assertFalse(SensorBroadcastCodec.isBroadcast(null));
+        assertFalse(SensorBroadcastCodec.isBroadcast(new byte[]{SensorBroadcastCodec.VERSION, 0}));
+        assertFalse(SensorBroadcastCodec.isBroadcast(new byte[]{2, 0, 0, 1}));
+    }
+
+    @Test
+    public void encode_usesTheRoomOfAnExtendedAdvertisement() {
+        byte[] value = new byte[100];
+        int maxValueLength = SensorBroadcastCodec.maxValueLength(251, 10);
+        byte[] payload = SensorBroadcastCodec.encode(1, value, maxValueLength);
+
+        assertEquals(100, SensorBroadcastCodec.valueLength(payload));
+        assertTrue(SensorBroadcastCodec.isBroadcast(payload));
+        assertFalse(SensorBroadcastCodec.isTruncated(payload));
+        assertEquals(SensorBroadcastCodec.MAX_VALUE_LENGTH, SensorBroadcastCodec.maxValueLength(31, 0));
+    }
+
+    @Test
+    public void encode_cutsALongWriteToOneAdStructure() {
+        byte[] value = new byte[512];
+        byte[] payload = SensorBroadcastCodec.encode(1, value, SensorBroadcastCodec.maxValueLength(1650, 0));
+
+        assertEquals(SensorBroadcastCodec.MAX_EXTENDED_VALUE_LENGTH, SensorBroadcastCodec.valueLength(payload));
+        assertTrue(SensorBroadcastCodec.isTruncated(payload));
+        // The type and UUID bytes and the payload fit in the one byte length field.
+        assertTrue(1 + 2 + payload.length <= 255);
+
+        int connectable = SensorBroadcastCodec.maxValueLength(SensorBroadcastCodec.MAX_CONNECTABLE_EXTENDED_DATA_LENGTH, 0);
+        payload = SensorBroadcastCodec.encode(2, value, connectable);
+        assertTrue(SensorBroadcastCodec.ADVERTISING_OVERHEAD + payload.length <= SensorBroadcastCodec.MAX_CONNECTABLE_EXTENDED_DATA_LENGTH);
+        assertTrue(SensorBroadcastCodec.isTruncated(payload));
+    }
+
+    @Test
+    public void offer_countsNewRepeatedAndMissedReadings() {
+        SensorBroadcastTracker tracker = new SensorBroadcastTracker();
+        byte[] value = {1};
+
+        assertTrue(tracker.offer(ADDRESS, SensorBroadcastCodec.encode(0xFFFE, value)));
+        assertFalse(tracker.offer(ADDRESS, SensorBroadcastCodec.encode(0xFFFE, value)));
+        // Wraps, 0xFFFF was missed.
+        assertTrue(tracker.offer(ADDRESS, SensorBroadcastCodec.encode(0, value)));
+        assertTrue(tracker.offer("66:77:88:99:AA:BB", SensorBroadcastCodec.encode(0, value)));
+
+        assertEquals(3, tracker.getReadingCount());
+        assertEquals(1, tracker.getDuplicateCount());
+        assertEquals(1, tracker.getMissedCount());
+    }
+
+    @Test
+    public void offer_acceptsAPeripheralThatStartedAgain() {
+        SensorBroadcastTracker tracker = new SensorBroadcastTracker();
+        tracker.offer(ADDRESS, SensorBroadcastCodec.encode(500, new byte[]{1}));
+
+        assertTrue(tracker.offer(ADDRESS, SensorBroadcastCodec.encode(0, new byte[]{1})));
+        assertTrue(tracker.offer(ADDRESS, SensorBroadcastCodec.encode(1, new byte[]{1})));
+        assertEquals(0, tracker.getMissedCount());
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.app_central;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WriteFlowControllerTest {
+
+    private static final UUID CHARACTERISTIC_UUID = UUID.fromString("00002A38-0000-1000-8000-00805f9b34fb");
+
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void tryWrite_refusesWithoutCreditAndSignalsWritable() {
+        List<CompletableFuture<byte[]>> inFlight = new ArrayList<>();
+        AtomicInteger writable = new AtomicInteger();
+        WriteFlowController<String> flow = new WriteFlowController<>((target, value) -> {
+            CompletableFuture<byte[]> future = new CompletableFuture<>();
+            inFlight.add(future);
+            return future;
+        }, 2, writable::incrementAndGet);
+
+        assertTrue(flow.tryWrite("c", new byte[]{1}));
+        assertTrue(flow.tryWrite("c", new byte[]{2}));
+        assertFalse(flow.tryWrite("c", new byte[]{3}));
+        assertEquals(0, flow.getCredits());
+
+        inFlight.get(0).complete(null);
+        assertEquals(1, writable.get());
+        assertEquals(1, flow.getCredits());
+        // Not blocked any more: further completions don't signal again.
+        inFlight.get(1).completeExceptionally(new GattOperationException("failed", 133));
+        assertEquals(1, writable.get());
+        assertEquals(1, flow.getWrittenCount());
+        assertEquals(1, flow.getFailedCount());
+    }
+
+    @Test
+    public void tryWrite_givesCreditBackWhenLinkIsGone() {
+        WriteFlowController<String> flow = new WriteFlowController<>((target, value) -> null, 1, null);
+        assertFalse(flow.tryWrite("c", new byte[]{1}));
+        assertEquals(1, flow.getCredits());
+    }
+
+    @Test
+    public void tryWrite_sustainedWritesAllComplete() throws Exception {
+        streamWrites(2000);
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmark_sustainedWrites() throws Exception {
+        int writes = 10000;
+        long elapsedNs = streamWrites(writes);
+        long writesPerSecond = writes * 1_000_000_000L / elapsedNs;
+        assertTrue(writesPerSecond + " writes/s", writesPerSecond > 1000);
+    }
+
+    /**
+     * Streams writes through the operation queue to a simulated controller. The controller
+     * refuses every 200th attempt as a full buffer would, and confirms the others from its own
+     * thread like onCharacteristicWrite. The writer pushes whenever it has credit and never sleeps.
+     *
+     * @return The time until every write was confirmed.
+     */
+    private long streamWrites(int writes) throws Exception {
+        GattOperationQueue queue = new GattOperationQueue(mScheduler);
+        LinkedBlockingQueue<Boolean> controller = new LinkedBlockingQueue<>();
+        AtomicInteger attempts = new AtomicInteger();
+        AtomicBoolean running = new AtomicBoolean(true);
+
+        Thread radio = new Thread(() -> {
+            while (running.get()) {
+                try {
+                    if (controller.poll(10, TimeUnit.MILLISECONDS) != null) {
+                        queue.onComplete(GattOperationQueue.TYPE_WRITE, CHARACTERISTIC_UUID, 0, null);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        radio.start();
+
+        Semaphore writable = new Semaphore(0);
+        WriteFlowController<UUID> flow = new WriteFlowController<>((target, value) -> queue.enqueue(
+                new GattOperationQueue.Operation(GattOperationQueue.TYPE_WRITE, target, true, () -> {
+                    if (attempts.incrementAndGet() % 200 == 0) {
+                        return false;
+                    }
+                    controller.add(Boolean.TRUE);
+                    return true;
+                })), WriteFlowController.DEFAULT_CREDITS, writable::release);
+
+        long start = System.nanoTime();
+        byte[] value = {0x01};
+        int issued = 0;
+        while (issued < writes) {
+            if (flow.tryWrite(CHARACTERISTIC_UUID, value)) {
+                issued++;
+            } else {
+                assertTrue(writable.tryAcquire(5, TimeUnit.SECONDS));
+            }
+        }
+        while (flow.getCredits() < WriteFlowController.DEFAULT_CREDITS) {
+            Thread.yield();
+        }
+        long elapsedNs = System.nanoTime() - start;
+        running.set(false);
+        radio.join();
+
+        assertEquals(writes, flow.getWrittenCount());
+        assertEquals(0, flow.getFailedCount());
+        assertTrue(queue.isIdle());
+        assertEquals(writes / 200, attempts.get() - writes);
+        return elapsedNs;
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.app_peripheral;
+
+/**
+ * Paces the updates of the data of a running advertising set.
+ *
+ * A change only marks the data dirty; the latest data is built when the update is issued. At most
+ * one {@code setAdvertisingData} is in flight, and two are issued at least the minimum interval
+ * apart, so a value changing at any rate costs the controller a bounded number of updates and
+ * the last change is never lost. Times are passed in, the caller owns the clock and the timer.
+ * Used on the main thread only.
+ */
+class AdvertisingDataThrottle {
+
+    static final long DEFAULT_MIN_INTERVAL_MS = 1000;
+
+    private final long mMinIntervalMs;
+    private boolean mDirty;
+    private boolean mScheduled;
+    private boolean mInFlight;
+    private long mLastIssuedMs = Long.MIN_VALUE / 2;
+    private long mRequestCount;
+    private long mIssuedCount;
+
+    AdvertisingDataThrottle() {
+        this(DEFAULT_MIN_INTERVAL_MS);
+    }
+
+    /**
+     * @param minIntervalMs Minimum time between two updates issued.
+     */
+    AdvertisingDataThrottle(long minIntervalMs) {
+        mMinIntervalMs = minIntervalMs;
+    }
+
+    /**
+     * Records that the data changed.
+     *
+     * @return The delay after which {@link #take(long)} must be called, or -1 if an update is
+     *         already scheduled or in flight and will pick the change up.
+     */
+    long request(long nowMs) {
+        mDirty = true;
+        mRequestCount++;
+        return schedule(nowMs);
+    }
+
+    /**
+     * Called when the delay returned by {@link #request(long)} or {@link #onComplete(long)}
+     * elapsed.
+     *
+     * @return true if the caller must issue an update with the latest data now.
+     */
+    boolean take(long nowMs) {
+        mScheduled = false;
+        if (!mDirty || mInFlight) {
+            return false;
+        }
+        mDirty = false;
+        mInFlight = true;
+        mLastIssuedMs = nowMs;
+        mIssuedCount++;
+        return true;
+    }
+
+    /**
+     * Called when the controller reported the update issued, whether it succeeded or not.
+     *
+     * @return The delay after which {@link #take(long)} must be called, or -1 if nothing changed
+     *         meanwhile.
+     */
+    long onComplete(long nowMs) {
+        mInFlight = false;
+        return schedule(nowMs);
+    }
+
+    /**
+     * Forgets everything but the counts, when the advertising set is stopped. The data of the
+     * next set is built when it starts.
+     */
+    void reset() {
+        mDirty = false;
+        mScheduled = false;
+        mInFlight = false;
+    }
+
+    long getRequestCount() {
+        return mRequestCount;
+    }
+
+    long getIssuedCount() {
+        return mIssuedCount;
+    }
+
+    private long schedule(long nowMs) {
+        if (!mDirty || mScheduled || mInFlight) {
+            return -1;
+        }
+        mScheduled = true;
+        return Math.max(0, mLastIssuedMs + mMinIntervalMs - nowMs);
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.app_peripheral;
+
+/**
+ * Decides how hard the peripheral advertises, from how long ago it started or lost its last
+ * central.
+ *
+ * Right after advertising starts, or the last central disconnects, a central is most likely
+ * looking for it: it advertises {@link #MODE_FAST}. With nobody connecting it backs off to
+ * {@link #MODE_BALANCED} after {@link #DEFAULT_FAST_MS}, then to {@link #MODE_LOW_POWER} after
+ * {@link #DEFAULT_IDLE_MS}, and stays there instead of stopping. Once a central is connected,
+ * advertising only serves further centrals: balanced for {@link #DEFAULT_CONNECTED_BALANCED_MS},
+ * then low power. The service maps each mode to an interval and a TX power.
+ *
+ * Times are passed in, in the {@code SystemClock.elapsedRealtime()} base, so the decisions can be
+ * replayed with any clock. Every change is reported to the listener and the time spent in each
+ * mode is kept.
+ */
+public class AdvertisingPowerController {
+
+    public static final int MODE_FAST = 0;
+    public static final int MODE_BALANCED = 1;
+    public static final int MODE_LOW_POWER = 2;
+    public static final int MODE_COUNT = 3;
+
+    private static final String[] MODE_NAMES = {"fast", "balanced", "low power"};
+
+    public static final long DEFAULT_FAST_MS = 30000;
+    public static final long DEFAULT_IDLE_MS = 180000;
+    public static final long DEFAULT_CONNECTED_BALANCED_MS = 10000;
+
+    public interface Listener {
+        /**
+         * Called on the thread that caused the change, without the controller lock held.
+         */
+        void onModeChanged(int mode);
+    }
+
+    private static class Holder {
+        static final AdvertisingPowerController INSTANCE = new AdvertisingPowerController();
+    }
+
+    /**
+     * The controller of the advertising service, told about connections by the GATT server.
+     */
+    public static AdvertisingPowerController getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private final long mFastMs;
+    private final long mIdleMs;
+    private final long mConnectedBalancedMs;
+    private volatile Listener mListener;
+
+    private boolean mStarted;
+    private int mConnectionCount;
+    // When the current schedule began: advertising started, the first central connected or the
+    // last one disconnected.
+    private long mAnchorMs;
+    private int mMode = MODE_FAST;
+    private long mModeSinceMs;
+    private final long[] mTimeInModeMs = new long[MODE_COUNT];
+    private long mChangeCount;
+
+    public AdvertisingPowerController() {
+        this(DEFAULT_FAST_MS, DEFAULT_IDLE_MS, DEFAULT_CONNECTED_BALANCED_MS);
+    }
+
+    /**
+     * @param fastMs How long to advertise fast without a central.
+     * @param idleMs How long without a central before advertising at low power.
+     * @param connectedBalancedMs How long to stay balanced once a central connected.
+     */
+    public AdvertisingPowerController(long fastMs, long idleMs, long connectedBalancedMs) {
+        mFastMs = fastMs;
+        mIdleMs = idleMs;
+        mConnectedBalancedMs = connectedBalancedMs;
+    }
+
+    public static String getModeName(int mode) {
+        return MODE_NAMES[mode];
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Advertising starts: fast if no central is connected.
+     */
+    public void start(long nowMs) {
+        int mode;
+        synchronized (this) {
+            mStarted = true;
+            mAnchorMs = nowMs;
+            mModeSinceMs = nowMs;
+            mMode = target(nowMs);
+            mode = mMode;
+        }
+        notifyListener(mode);
+    }
+
+    public synchronized void stop(long nowMs) {
+        if (mStarted) {
+            mTimeInModeMs[mMode] += nowMs - mModeSinceMs;
+            mStarted = false;
+        }
+    }
+
+    /**
+     * Tracks the connected centrals even while not advertising. The schedule restarts when the
+     * first one connects and when the last one disconnects.
+     */
+    public void onConnectionCountChanged(int connectionCount, long nowMs) {
+        synchronized (this) {
+            boolean wasConnected = mConnectionCount > 0;
+            mConnectionCount = connectionCount;
+            if (wasConnected == connectionCount > 0) {
+                return;
+            }
+            mAnchorMs = nowMs;
+        }
+        update(nowMs);
+    }
+
+    /**
+     * Moves to the mode due now. Call it when the delay returned by
+     * {@link #getNextUpdateDelayMs(long)} elapsed.
+     */
+    public void update(long nowMs) {
+        int mode;
+        synchronized (this) {
+            mode = target(nowMs);
+            if (!mStarted || mode == mMode) {
+                return;
+            }
+            mTimeInModeMs[mMode] += nowMs - mModeSinceMs;
+            mMode = mode;
+            mModeSinceMs = nowMs;
+            mChangeCount++;
+        }
+        notifyListener(mode);
+    }
+
+    /**
+     * @return The time until the next mode change is due, or -1 if the mode won't change before a
+     *         central connects or disconnects.
+     */
+    public synchronized long getNextUpdateDelayMs(long nowMs) {
+        if (!mStarted) {
+            return -1;
+        }
+        long elapsedMs = nowMs - mAnchorMs;
+        if (mConnectionCount > 0) {
+            return elapsedMs < mConnectedBalancedMs ? mConnectedBalancedMs - elapsedMs : -1;
+        }
+        if (elapsedMs < mFastMs) {
+            return mFastMs - elapsedMs;
+        }
+        return elapsedMs < mIdleMs ? mIdleMs - elapsedMs : -1;
+    }
+
+    public synchronized int getMode() {
+        return mMode;
+    }
+
+    public synchronized int getConnectionCount() {
+        return mConnectionCount;
+    }
+
+    /**
+     * @return The time spent advertising in the mode, the current stretch included.
+     */
+    public synchronized long getTimeInModeMs(int mode, long nowMs) {
+        long timeMs = mTimeInModeMs[mode];
+        if (mStarted && mode == mMode) {
+            timeMs += nowMs - mModeSinceMs;
+        }
+        return timeMs;
+    }
+
+    /**
+     * Mode changes since the controller was created, the ones at start excluded.
+     */
+    public synchronized long getChangeCount() {
+        return mChangeCount;
+    }
+
+    private int target(long nowMs) {
+        long elapsedMs = nowMs - mAnchorMs;
+        if (mConnectionCount > 0) {
+            return elapsedMs < mConnectedBalancedMs ? MODE_BALANCED : MODE_LOW_POWER;
+        }
+        if (elapsedMs < mFastMs) {
+            return MODE_FAST;
+        }
+        return elapsedMs < mIdleMs ? MODE_BALANCED : MODE_LOW_POWER;
+    }
+
+    private void notifyListener(int mode) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onModeChanged(mode);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.app_peripheral;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Receives payloads sent with the {@link BulkTransferCodec} protocol, one transfer per device.
+ *
+ * A transfer interrupted by a timeout or a disconnection is kept, so a START for the same id,
+ * length and CRC resumes it where it stopped. Each holds a buffer of its full length, so only the
+ * transfers of the last {@link #DEFAULT_MAX_RESUMABLE} devices that left are kept.
+ *
+ * @param <D> The device type, {@code BluetoothDevice} on the phone.
+ */
+class BulkTransferReceiver<D> {
+
+    static final int DEFAULT_MAX_LENGTH = 1 << 20;
+    static final int DEFAULT_MAX_RESUMABLE = 4;
+
+    interface Listener<D> {
+        void onTransferComplete(D device, byte[] data);
+    }
+
+    private static class Transfer {
+        final int mId;
+        final int mLength;
+        final long mCrc;
+        final int mAckEvery;
+        byte[] mBuffer;
+        int mOffset;
+        int mExpectedSeq;
+        int mUnacked;
+        boolean mGapReported;
+        boolean mCompleted;
+
+        Transfer(int id, int length, long crc, int window) {
+            mId = id;
+            mLength = length;
+            mCrc = crc;
+            mAckEvery = Math.max(1, window / 2);
+            mBuffer = new byte[length];
+        }
+
+        boolean matches(int id, int length, long crc) {
+            return mId == id && mLength == length && mCrc == crc;
+        }
+
+        byte[] ack(int status) {
+            mUnacked = 0;
+            return BulkTransferCodec.encodeAck(mId, status, mExpectedSeq, mOffset);
+        }
+    }
+
+    private final ConcurrentHashMap<D, Transfer> mTransfers = new ConcurrentHashMap<>();
+    // Devices that left with an unfinished transfer, the oldest first.
+    private final ArrayDeque<D> mResumable = new ArrayDeque<>();
+    private final Listener<D> mListener;
+    private final int mMaxLength;
+    private final int mMaxResumable;
+
+    BulkTransferReceiver(Listener<D> listener) {
+        this(listener, DEFAULT_MAX_LENGTH, DEFAULT_MAX_RESUMABLE);
+    }
+
+    BulkTransferReceiver(Listener<D> listener, int maxLength, int maxResumable) {
+        mListener = listener;
+        mMaxLength = maxLength;
+        mMaxResumable = maxResumable;
+    }
+
+    /**
+     * Handles a frame written by a central. Frames of one device arrive one at a time.
+     *
+     * @return The ACK to notify back, or null if none is due.
+     */
+    byte[] onFrame(D device, byte[] frame) {
+        if (!BulkTransferCodec.isWellFormed(frame)) {
+            return null;
+        }
+        switch (BulkTransferCodec.type(frame)) {
+            case BulkTransferCodec.TYPE_START:
+                return onStart(device, frame);
+            case BulkTransferCodec.TYPE_DATA:
+                return onData(device, frame);
+            case BulkTransferCodec.TYPE_END:
+                return onEnd(device, frame);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return The bytes received so far from a device, or -1 without a transfer.
+     */
+    int getReceivedLength(D device) {
+        Transfer transfer = mTransfers.get(device);
+        return transfer == null ? -1 : transfer.mOffset;
+    }
+
+    /**
+     * Forgets the completed transfer of a device. An unfinished one is kept to be resumed, and
+     * the one of the device that left first is dropped when too many are kept.
+     */
+    void onDisconnected(D device) {
+        Transfer transfer = mTransfers.get(device);
+        if (transfer == null) {
+            return;
+        }
+        if (transfer.mCompleted) {
+            mTransfers.remove(device, transfer);
+            return;
+        }
+        D dropped = null;
+        synchronized (mResumable) {
+            mResumable.remove(device);
+            mResumable.addLast(device);
+            if (mResumable.size() > mMaxResumable) {
+                dropped = mResumable.pollFirst();
+            }
+        }
+        if (dropped != null) {
+            mTransfers.remove(dropped);
+        }
+    }
+
+    private byte[] onStart(D device, byte[] frame) {
+        int id = BulkTransferCodec.startId(frame);
+        int length = BulkTransferCodec.startLength(frame);
+        long crc = BulkTransferCodec.startCrc(frame);
+        if (length < 0 || length > mMaxLength) {
+            return BulkTransferCodec.encodeAck(id, BulkTransferCodec.STATUS_TOO_LARGE, 0, 0);
+        }
+
+        // Back, its transfer is resumed or replaced below.
+        synchronized (mResumable) {
+            mResumable.remove(device);
+        }
+        Transfer transfer = mTransfers.get(device);
+        if (transfer != null && transfer.matches(id, length, crc)) {
+            // Only the answer to END was lost.
+            if (transfer.mCompleted) {
+                return transfer.ack(BulkTransferCodec.STATUS_DONE);
+            }
+            transfer.mExpectedSeq = 0;
+            transfer.mGapReported = false;
+            return transfer.ack(BulkTransferCodec.STATUS_RESUMED);
+        }
+
+        transfer = new Transfer(id, length, crc, BulkTransferCodec.startWindow(frame));
+        mTransfers.put(device, transfer);
+        return transfer.ack(BulkTransferCodec.STATUS_OK);
+    }
+
+    private byte[] onData(D device, byte[] frame) {
+        Transfer transfer = mTransfers.get(device);
+        if (transfer == null || transfer.mCompleted) {
+            return null;
+        }
+        if (BulkTransferCodec.dataSeq(frame) != transfer.mExpectedSeq) {
+            // Report a gap once; frames already in flight behind the lost one are dropped.
+            if (transfer.mGapReported) {
+                return null;
+            }
+            transfer.mGapReported = true;
+            return transfer.ack(BulkTransferCodec.STATUS_GAP);
+        }
+
+        int length = frame.length - BulkTransferCodec.DATA_HEADER_LENGTH;
+        if (length > transfer.mLength - transfer.mOffset) {
+            return transfer.ack(BulkTransferCodec.STATUS_GAP);
+        }
+        System.arraycopy(frame, BulkTransferCodec.DATA_HEADER_LENGTH, transfer.mBuffer, transfer.mOffset, length);
+        transfer.mOffset += length;
+        transfer.mExpectedSeq = (transfer.mExpectedSeq + 1) & 0xFFFF;
+        transfer.mGapReported = false;
+
+        if (++transfer.mUnacked >= transfer.mAckEvery || transfer.mOffset == transfer.mLength) {
+            return transfer.ack(BulkTransferCodec.STATUS_OK);
+        }
+        return null;
+    }
+
+    private byte[] onEnd(D device, byte[] frame) {
+        int id = BulkTransferCodec.startId(frame);
+        Transfer transfer = mTransfers.get(device);
+        if (transfer == null || transfer.mId != id) {
+            return BulkTransferCodec.encodeAck(id, BulkTransferCodec.STATUS_UNKNOWN_TRANSFER, 0, 0);
+        }
+        if (transfer.mCompleted) {
+            return transfer.ack(BulkTransferCodec.STATUS_DONE);
+        }
+        if (transfer.mOffset != transfer.mLength
+                || BulkTransferCodec.crc32(transfer.mBuffer, 0, transfer.mLength) != transfer.mCrc) {
+            mTransfers.remove(device);
+            return transfer.ack(BulkTransferCodec.STATUS_CRC_ERROR);
+        }
+
+        transfer.mCompleted = true;
+        mListener.onTransferComplete(device, transfer.mBuffer);
+        // Only kept to answer a repeated END or START.
+        transfer.mBuffer = null;
+        return transfer.ack(BulkTransferCodec.STATUS_DONE);
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.app_peripheral;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of fixed size byte arrays, so reassembling long writes doesn't allocate a buffer per
+ * write once the pool is warm.
+ */
+class BytePool {
+
+    private final ArrayBlockingQueue<byte[]> mBuffers;
+    private final int mBufferSize;
+    private final AtomicLong mAllocatedCount = new AtomicLong();
+
+    /**
+     * @param bufferSize Size of every buffer handed out.
+     * @param maxPooled Number of buffers kept when released; extra ones are left to the GC.
+     */
+    BytePool(int bufferSize, int maxPooled) {
+        mBufferSize = bufferSize;
+        mBuffers = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    byte[] acquire() {
+        byte[] buffer = mBuffers.poll();
+        if (buffer == null) {
+            buffer = new byte[mBufferSize];
+            mAllocatedCount.incrementAndGet();
+        }
+        return buffer;
+    }
+
+    void release(byte[] buffer) {
+        if (buffer != null && buffer.length == mBufferSize) {
+            mBuffers.offer(buffer);
+        }
+    }
+
+    int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Number of buffers allocated because the pool was empty.
+     */
+    long getAllocatedCount() {
+        return mAllocatedCount.get();
+    }
+}
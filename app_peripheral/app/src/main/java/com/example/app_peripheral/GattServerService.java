@@ -0,0 +1,398 @@
+package com.example.app_peripheral;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.core.app.NotificationCompat;
+
+import java.util.HashSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Foreground service owning the GATT server for its whole life: the server handle, the service
+ * table and the subscribers. Activities bind to it to follow writes; rotating or recreating them
+ * doesn't touch the connections.
+ *
+ * The server callbacks are moved off the binder threads onto one server thread, which owns the
+ * characteristic value and issues every notification: the callbacks never run concurrently and
+ * need no locks.
+ */
+public class GattServerService extends Service {
+
+    public static final UUID HEART_RATE_SERVICE_UUID = UUID.fromString("0000180D-0000-1000-8000-00805f9b34fb");
+    public static final UUID BODY_SENSOR_LOCATION_CHARACTERISTIC_UUID = UUID.fromString("00002A38-0000-1000-8000-00805f9b34fb");
+
+    private static final String NOTIFICATION_CHANNEL_ID = "gatt_server";
+    private static final int NOTIFICATION_ID = 1;
+    private static final int DEFAULT_MTU = 23;
+
+    /**
+     * Receives the events of the GATT server. Called on the server thread, hand anything slow
+     * over to another thread.
+     */
+    public interface Listener {
+        void onCharacteristicWritten(BluetoothDevice device, byte[] value);
+
+        void onDeviceDisconnected(BluetoothDevice device);
+
+        default void onBulkTransferReceived(BluetoothDevice device, byte[] data) {
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+    private final NotificationEngine<BluetoothDevice> mNotificationEngine = new NotificationEngine<>(this::notifySubscriber);
+    private final LongAttributeEngine<BluetoothDevice, BluetoothGattCharacteristic> mLongAttributes = new LongAttributeEngine<>();
+    private final BulkTransferReceiver<BluetoothDevice> mBulkTransfers = new BulkTransferReceiver<>(this::onBulkTransferReceived);
+
+    private final HandlerThread mServerThread = new HandlerThread("GattServer");
+    private Handler mServerHandler;
+    private volatile BluetoothGattServer mGattServer;
+    private BluetoothGattCharacteristic mSampleCharacteristic;
+    // The last value written, served to reads. The characteristic value is also the buffer of
+    // notifications before API 33, bulk transfer acks included. Only touched on the server thread.
+    private byte[] mCommittedValue;
+    private volatile Listener mListener;
+    private volatile boolean mLe2MPhySupported;
+    private final ConcurrentHashMap<BluetoothDevice, Integer> mMtus = new ConcurrentHashMap<>();
+    // Only touched on the server thread.
+    private final HashSet<BluetoothDevice> mConnectedDevices = new HashSet<>();
+
+    private final BluetoothGattServerCallback mGattServerCallback = new BluetoothGattServerCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
+            super.onConnectionStateChange(device, status, newState);
+            if (status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothGatt.STATE_CONNECTED) {
+                if (mConnectedDevices.add(device)) {
+                    AdvertisingPowerController.getInstance().onConnectionCountChanged(mConnectedDevices.size(),
+                            SystemClock.elapsedRealtime());
+                }
+                // The central may ask too; whichever comes first, the link settles on 2M when
+                // both sides support it.
+                if (mLe2MPhySupported && mGattServer != null) {
+                    mGattServer.setPreferredPhy(device, BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK,
+                            BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+                }
+                return;
+            }
+
+            if (mConnectedDevices.remove(device)) {
+                AdvertisingPowerController.getInstance().onConnectionCountChanged(mConnectedDevices.size(),
+                        SystemClock.elapsedRealtime());
+            }
+            mNotificationEngine.unsubscribe(device);
+            mMtus.remove(device);
+            mLongAttributes.cancel(device);
+            mBulkTransfers.onDisconnected(device);
+            Listener listener = mListener;
+            if (newState == BluetoothGatt.STATE_DISCONNECTED && listener != null) {
+                listener.onDeviceDisconnected(device);
+            }
+        }
+
+        @Override
+        public void onServiceAdded(int status, BluetoothGattService service) {
+            super.onServiceAdded(status, service);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(MainActivity.TAG, "Service " + service.getUuid() + " not added: " + status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
+                                                BluetoothGattCharacteristic characteristic) {
+            super.onCharacteristicReadRequest(device, requestId, offset, characteristic);
+
+            if (null == mGattServer) {
+                return;
+            }
+            byte[] value = LongAttributeEngine.read(characteristic == mSampleCharacteristic
+                    ? mCommittedValue : characteristic.getValue(), offset);
+            if (value == null) {
+                mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+                return;
+            }
+            mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
+        }
+
+        @Override
+        public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId,
+                                                 BluetoothGattCharacteristic characteristic,
+                                                 boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+            super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite, responseNeeded, offset, value);
+
+            if (preparedWrite) {
+                // The central checks the echoed part before executing the queue.
+                int status = mLongAttributes.prepareWrite(device, characteristic, offset, value);
+                if (responseNeeded) {
+                    mGattServer.sendResponse(device, requestId, status, offset, value);
+                }
+                return;
+            }
+
+            if (BulkTransferCodec.isFrame(value)) {
+                if (responseNeeded) {
+                    mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+                }
+                byte[] ack = mBulkTransfers.onFrame(device, value);
+                if (ack != null) {
+                    // Acks are cumulative, a newer one may replace an ack still waiting. They wait apart
+                    // from published values, which never replace them.
+                    mNotificationEngine.publishTo(device, ack);
+                }
+                return;
+            }
+
+            int status = offset == 0 ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_INVALID_OFFSET;
+            if (status == BluetoothGatt.GATT_SUCCESS && value != null && value.length > LongAttributeEngine.MAX_ATTRIBUTE_LENGTH) {
+                status = BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+            }
+            if (responseNeeded) {
+                mGattServer.sendResponse(device, requestId, status, offset, value);
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                commitWrite(device, characteristic, value);
+            }
+        }
+
+        @Override
+        public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattDescriptor descriptor) {
+            super.onDescriptorReadRequest(device, requestId, offset, descriptor);
+
+            if (null == mGattServer) {
+                return;
+            }
+            if (!NotificationEngine.CLIENT_CHARACTERISTIC_CONFIGURATION_UUID.equals(descriptor.getUuid())) {
+                mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_READ_NOT_PERMITTED, offset, null);
+                return;
+            }
+            // Each central reads its own configuration.
+            byte[] value = LongAttributeEngine.read(mNotificationEngine.getConfiguration(device), offset);
+            if (value == null) {
+                mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+                return;
+            }
+            mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
+        }
+
+        @Override
+        public void onDescriptorWriteRequest(BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor,
+                                             boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+            super.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite, responseNeeded, offset, value);
+
+            int status;
+            if (!NotificationEngine.CLIENT_CHARACTERISTIC_CONFIGURATION_UUID.equals(descriptor.getUuid())) {
+                status = BluetoothGatt.GATT_WRITE_NOT_PERMITTED;
+            } else if (preparedWrite || offset != 0) {
+                status = BluetoothGatt.GATT_INVALID_OFFSET;
+            } else if (!mNotificationEngine.configure(device, value)) {
+                status = BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+            } else {
+                status = BluetoothGatt.GATT_SUCCESS;
+                Log.i(MainActivity.TAG, device.getAddress() + (mNotificationEngine.isSubscribed(device)
+                        ? mNotificationEngine.isIndicating(device) ? " subscribed to indications" : " subscribed to notifications"
+                        : " unsubscribed"));
+            }
+            if (responseNeeded && mGattServer != null) {
+                mGattServer.sendResponse(device, requestId, status, offset, value);
+            }
+        }
+
+        @Override
+        public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+            super.onExecuteWrite(device, requestId, execute);
+            mLongAttributes.executeWrite(device, execute, (characteristic, value) -> commitWrite(device, characteristic, value));
+            if (mGattServer != null) {
+                mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothDevice device, int mtu) {
+            super.onMtuChanged(device, mtu);
+            mMtus.put(device, mtu);
+        }
+
+        @Override
+        public void onNotificationSent(BluetoothDevice device, int status) {
+            super.onNotificationSent(device, status);
+            mNotificationEngine.onNotificationSent(device, status == BluetoothGatt.GATT_SUCCESS);
+        }
+    };
+
+    public class LocalBinder extends Binder {
+        GattServerService getService() {
+            return GattServerService.this;
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mServerThread.start();
+        mServerHandler = new Handler(mServerThread.getLooper());
+        mSampleCharacteristic = new BluetoothGattCharacteristic(BODY_SENSOR_LOCATION_CHARACTERISTIC_UUID,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE
+                        | BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE,
+                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
+        // Centrals subscribe through it, its value is kept per central by the notification engine.
+        mSampleCharacteristic.addDescriptor(new BluetoothGattDescriptor(NotificationEngine.CLIENT_CHARACTERISTIC_CONFIGURATION_UUID,
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+    }
+
+    /**
+     * Starting an already running service only refreshes the foreground notification: the server
+     * is opened once and the service table added once.
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        startForeground(NOTIFICATION_ID, buildNotification());
+        if (!openGattServer()) {
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        // Closed on the server thread after the callbacks already queued; the handle is kept so
+        // they can still answer, the closed server ignores them.
+        final BluetoothGattServer gattServer = mGattServer;
+        mServerHandler.post(() -> {
+            mNotificationEngine.clear();
+            if (gattServer != null) {
+                gattServer.close();
+            }
+            // Closing the server drops every connection.
+            mConnectedDevices.clear();
+            AdvertisingPowerController.getInstance().onConnectionCountChanged(0, SystemClock.elapsedRealtime());
+        });
+        mServerThread.quitSafely();
+        stopForeground(true);
+        super.onDestroy();
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public int getSubscriberCount() {
+        return mNotificationEngine.getSubscriberCount();
+    }
+
+    /**
+     * @return The MTU negotiated by a central, 23 until it asks for more.
+     */
+    public int getMtu(BluetoothDevice device) {
+        Integer mtu = mMtus.get(device);
+        return mtu == null ? DEFAULT_MTU : mtu;
+    }
+
+    private boolean openGattServer() {
+        if (mGattServer == null) {
+            BluetoothManager bluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+            if (bluetoothManager == null) {
+                Log.e(MainActivity.TAG, "Unable to initialize BluetoothManager.");
+                return false;
+            }
+            BluetoothAdapter bluetoothAdapter = bluetoothManager.getAdapter();
+            mLe2MPhySupported = bluetoothAdapter != null && bluetoothAdapter.isLe2MPhySupported();
+            mGattServer = bluetoothManager.openGattServer(this,
+                    new SerializedGattServerCallback(mGattServerCallback, mServerHandler));
+            if (mGattServer == null) {
+                Log.e(MainActivity.TAG, "Unable to open the GATT server.");
+                return false;
+            }
+        }
+
+        if (mGattServer.getService(HEART_RATE_SERVICE_UUID) == null) {
+            BluetoothGattService sampleService = new BluetoothGattService(HEART_RATE_SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+            sampleService.addCharacteristic(mSampleCharacteristic);
+            mGattServer.addService(sampleService);
+        }
+        return true;
+    }
+
+    /**
+     * Stores a complete value, written at once or reassembled from prepared writes, and pushes it
+     * to the subscribers.
+     */
+    private void commitWrite(BluetoothDevice device, BluetoothGattCharacteristic characteristic, byte[] value) {
+        if (characteristic != mSampleCharacteristic) {
+            return;
+        }
+        mCommittedValue = value;
+        mSampleCharacteristic.setValue(value);
+        mNotificationEngine.publish(value);
+        SensorBroadcast.getInstance().publish(value);
+
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onCharacteristicWritten(device, value);
+        }
+    }
+
+    private void onBulkTransferReceived(BluetoothDevice device, byte[] data) {
+        Log.i(MainActivity.TAG, "Received " + data.length + " bytes from " + device.getAddress());
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onBulkTransferReceived(device, data);
+        }
+    }
+
+    /**
+     * The value is taken from the characteristic, which then gets the committed value back so
+     * reads don't see a bulk transfer ack. Setting it and notifying can't interleave with another
+     * update since both only happen on the server thread.
+     */
+    private boolean notifySubscriber(BluetoothDevice device, byte[] value, boolean confirm) {
+        BluetoothGattServer gattServer = mGattServer;
+        if (gattServer == null) {
+            return false;
+        }
+        mSampleCharacteristic.setValue(value);
+        boolean sent = gattServer.notifyCharacteristicChanged(device, mSampleCharacteristic, confirm);
+        mSampleCharacteristic.setValue(mCommittedValue);
+        return sent;
+    }
+
+    private Notification buildNotification() {
+        NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        if (notificationManager != null) {
+            notificationManager.createNotificationChannel(new NotificationChannel(NOTIFICATION_CHANNEL_ID,
+                    getString(R.string.gatt_server_channel_name), NotificationManager.IMPORTANCE_LOW));
+        }
+        return new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
+                .setContentTitle(getString(R.string.gatt_server_notification_title))
+                .setContentText(getString(R.string.gatt_server_notification_text))
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setOngoing(true)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .build();
+    }
+}
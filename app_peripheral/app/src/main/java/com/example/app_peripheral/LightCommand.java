@@ -0,0 +1,57 @@
+package com.example.app_peripheral;
+
+/**
+ * Decodes the light commands written by the central into {@link MainActivity.Light}.
+ *
+ * The compact form is a single byte: {@link #COMMAND_GREY}, {@link #COMMAND_RED} or
+ * {@link #COMMAND_GREEN}. The ASCII names written by older centrals ("RED", "GREEN") are still
+ * accepted, compared byte by byte so no String is built. Anything else turns the light grey.
+ */
+final class LightCommand {
+
+    static final byte COMMAND_GREY = 0x00;
+    static final byte COMMAND_RED = 0x01;
+    static final byte COMMAND_GREEN = 0x02;
+
+    private static final byte[] ASCII_RED = {'R', 'E', 'D'};
+    private static final byte[] ASCII_GREEN = {'G', 'R', 'E', 'E', 'N'};
+
+    private LightCommand() {
+    }
+
+    static MainActivity.Light decode(byte[] value) {
+        if (value == null || value.length == 0) {
+            return MainActivity.Light.GREY;
+        }
+        if (value.length == 1) {
+            switch (value[0]) {
+                case COMMAND_RED:
+                    return MainActivity.Light.RED;
+                case COMMAND_GREEN:
+                    return MainActivity.Light.GREEN;
+                case COMMAND_GREY:
+                default:
+                    return MainActivity.Light.GREY;
+            }
+        }
+        if (matches(value, ASCII_RED)) {
+            return MainActivity.Light.RED;
+        }
+        if (matches(value, ASCII_GREEN)) {
+            return MainActivity.Light.GREEN;
+        }
+        return MainActivity.Light.GREY;
+    }
+
+    private static boolean matches(byte[] value, byte[] expected) {
+        if (value.length != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (value[i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.app_peripheral;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the latest light state between the write thread and the UI.
+ *
+ * Writes only record the latest state; the UI takes it once per frame. However fast the central
+ * writes, at most one frame is requested at a time and a state equal to the one on screen is not
+ * applied again.
+ */
+class LightStateCoalescer {
+
+    private final AtomicReference<MainActivity.Light> mLatest = new AtomicReference<>();
+    private final AtomicBoolean mFrameRequested = new AtomicBoolean();
+    private final AtomicLong mOfferedCount = new AtomicLong();
+    private final AtomicLong mAppliedCount = new AtomicLong();
+    // Only touched by the UI thread.
+    private MainActivity.Light mApplied;
+
+    /**
+     * Records a new state. Safe to call from any thread.
+     *
+     * @return true if the caller has to request a frame.
+     */
+    boolean offer(MainActivity.Light light) {
+        mLatest.set(light);
+        mOfferedCount.incrementAndGet();
+        return !mFrameRequested.get() && mFrameRequested.compareAndSet(false, true);
+    }
+
+    /**
+     * Called once per frame on the UI thread.
+     *
+     * @return The state to apply, or null if the screen is already up to date.
+     */
+    MainActivity.Light takeForFrame() {
+        // Cleared before reading so a state offered from now on requests another frame.
+        mFrameRequested.set(false);
+        MainActivity.Light latest = mLatest.get();
+        if (latest == null || latest == mApplied) {
+            return null;
+        }
+        mApplied = latest;
+        mAppliedCount.incrementAndGet();
+        return latest;
+    }
+
+    long getOfferedCount() {
+        return mOfferedCount.get();
+    }
+
+    long getAppliedCount() {
+        return mAppliedCount.get();
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.app_peripheral;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Handles attribute values longer than one ATT packet.
+ *
+ * Prepared writes are reassembled per device, in buffers taken from a {@link BytePool}, and only
+ * committed when the central executes the queue. Cancelling, or disconnecting, drops them. Reads
+ * are sliced at the requested offset so a central can read a long value with read blob requests.
+ *
+ * @param <D> The device type, {@code BluetoothDevice} on the phone.
+ * @param <A> The attribute type, {@code BluetoothGattCharacteristic} on the phone.
+ */
+class LongAttributeEngine<D, A> {
+
+    /**
+     * Largest attribute value allowed by the ATT protocol.
+     */
+    static final int MAX_ATTRIBUTE_LENGTH = 512;
+
+    // Status codes, the values of BluetoothGatt.GATT_*.
+    static final int STATUS_SUCCESS = 0;
+    static final int STATUS_INVALID_OFFSET = 0x07;
+    static final int STATUS_INVALID_ATTRIBUTE_LENGTH = 0x0D;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * Receives the reassembled values when a queue is executed.
+     */
+    interface Committer<A> {
+        void commit(A attribute, byte[] value);
+    }
+
+    private static class PreparedValue<A> {
+        final A mAttribute;
+        final byte[] mBuffer;
+        int mLength;
+
+        PreparedValue(A attribute, byte[] buffer) {
+            mAttribute = attribute;
+            mBuffer = buffer;
+        }
+    }
+
+    // A central rarely queues more than one attribute; a list beats a map here.
+    private final ConcurrentHashMap<D, ArrayList<PreparedValue<A>>> mQueues = new ConcurrentHashMap<>();
+    private final BytePool mPool;
+
+    LongAttributeEngine() {
+        this(new BytePool(MAX_ATTRIBUTE_LENGTH, 8));
+    }
+
+    LongAttributeEngine(BytePool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Returns the part of a value starting at offset, as asked by a read blob request.
+     *
+     * @return null if the offset is past the end of the value.
+     */
+    static byte[] read(byte[] value, int offset) {
+        if (value == null) {
+            value = EMPTY;
+        }
+        if (offset < 0 || offset > value.length) {
+            return null;
+        }
+        if (offset == 0) {
+            return value;
+        }
+        return Arrays.copyOfRange(value, offset, value.length);
+    }
+
+    /**
+     * Queues part of a long write.
+     *
+     * @return One of the STATUS_ codes, to be sent back in the prepare write response.
+     */
+    int prepareWrite(D device, A attribute, int offset, byte[] value) {
+        int length = value == null ? 0 : value.length;
+        if (offset < 0) {
+            return STATUS_INVALID_OFFSET;
+        }
+        if (offset + length > MAX_ATTRIBUTE_LENGTH) {
+            return STATUS_INVALID_ATTRIBUTE_LENGTH;
+        }
+
+        ArrayList<PreparedValue<A>> queue = mQueues.get(device);
+        if (queue == null) {
+            queue = mQueues.computeIfAbsent(device, key -> new ArrayList<>(1));
+        }
+        // Requests of one device arrive one at a time, the lock is never contended.
+        synchronized (queue) {
+            PreparedValue<A> prepared = find(queue, attribute);
+            if (prepared == null) {
+                prepared = new PreparedValue<>(attribute, mPool.acquire());
+                queue.add(prepared);
+            }
+            // Parts may be rewritten but not leave a gap.
+            if (offset > prepared.mLength) {
+                return STATUS_INVALID_OFFSET;
+            }
+            if (length > 0) {
+                System.arraycopy(value, 0, prepared.mBuffer, offset, length);
+            }
+            prepared.mLength = Math.max(prepared.mLength, offset + length);
+        }
+        return STATUS_SUCCESS;
+    }
+
+    /**
+     * Executes or cancels the queue of a device, as asked by an execute write request. The
+     * buffers go back to the pool either way.
+     *
+     * @return The number of attributes committed.
+     */
+    int executeWrite(D device, boolean execute, Committer<A> committer) {
+        ArrayList<PreparedValue<A>> queue = mQueues.remove(device);
+        if (queue == null) {
+            return 0;
+        }
+        int committed = 0;
+        synchronized (queue) {
+            for (PreparedValue<A> prepared : queue) {
+                if (execute) {
+                    committer.commit(prepared.mAttribute, Arrays.copyOf(prepared.mBuffer, prepared.mLength));
+                    committed++;
+                }
+                mPool.release(prepared.mBuffer);
+            }
+            queue.clear();
+        }
+        return committed;
+    }
+
+    /**
+     * Drops the queue of a device, e.g. when it disconnects.
+     */
+    void cancel(D device) {
+        executeWrite(device, false, null);
+    }
+
+    boolean hasPreparedWrites(D device) {
+        return mQueues.containsKey(device);
+    }
+
+    private static <A> PreparedValue<A> find(ArrayList<PreparedValue<A>> queue, A attribute) {
+        for (int i = 0; i < queue.size(); i++) {
+            if (queue.get(i).mAttribute == attribute) {
+                return queue.get(i);
+            }
+        }
+        return null;
+    }
+}
@@ -6,31 +6,21 @@ import androidx.core.app.ActivityCompat;
 
 import android.Manifest;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattServer;
-import android.bluetooth.BluetoothGattServerCallback;
-import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothManager;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
+import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.os.Bundle;
-import android.util.Log;
+import android.os.IBinder;
 import android.view.View;
 import android.widget.Switch;
-import android.widget.Toast;
-
-import java.nio.charset.StandardCharsets;
-import java.util.HashSet;
-import java.util.UUID;
 
 public class MainActivity extends AppCompatActivity {
 
     public static final String TAG = "MainActivity";
-    private static final UUID HEART_RATE_SERVICE_UUID = UUID.fromString("0000180D-0000-1000-8000-00805f9b34fb");
-    private static final UUID BODY_SENSOR_LOCATION_CHARACTERISTIC_UUID = UUID.fromString("00002A38-0000-1000-8000-00805f9b34fb");
     private static final int PERMISSION_REQUEST_CODE = 2;
 
     enum Light {
@@ -39,65 +29,35 @@ public class MainActivity extends AppCompatActivity {
         GREY
     }
 
-    private BluetoothGattCharacteristic mSampleCharacteristic;
-
-    private HashSet<BluetoothDevice> mBluetoothDevices;
-    private BluetoothGattServer mGattServer;
     View mCircleView;
+    private Drawable mRedDrawable;
+    private Drawable mGreenDrawable;
+    private Drawable mGreyDrawable;
+    private final WritePipeline mWritePipeline = new WritePipeline(this::setLightCircle);
+    private GattServerService mGattServerService;
 
-    private final BluetoothGattServerCallback mGattServerCallback = new BluetoothGattServerCallback() {
+    private final GattServerService.Listener mGattServerListener = new GattServerService.Listener() {
         @Override
-        public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
-            super.onConnectionStateChange(device, status, newState);
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                if (newState == BluetoothGatt.STATE_CONNECTED) {
-                    mBluetoothDevices.add(device);
-                } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
-                    mBluetoothDevices.remove(device);
-                    setLightCircle(Light.GREY);
-                }
-            } else {
-                mBluetoothDevices.remove(device);
-            }
+        public void onCharacteristicWritten(BluetoothDevice device, byte[] value) {
+            mWritePipeline.submit(value);
         }
 
         @Override
-        public void onServiceAdded(int status, BluetoothGattService service) {
-            super.onServiceAdded(status, service);
-
+        public void onDeviceDisconnected(BluetoothDevice device) {
+            mWritePipeline.offer(Light.GREY);
         }
+    };
 
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
         @Override
-        public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
-                                                BluetoothGattCharacteristic characteristic) {
-            super.onCharacteristicReadRequest(device, requestId, offset, characteristic);
-
-            if (null == mGattServer) {
-                return;
-            }
-            mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, characteristic.getValue());
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            mGattServerService = ((GattServerService.LocalBinder) service).getService();
+            mGattServerService.setListener(mGattServerListener);
         }
 
         @Override
-        public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId,
-                                                 BluetoothGattCharacteristic characteristic,
-                                                 boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
-            super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite, responseNeeded, offset, value);
-            mSampleCharacteristic.setValue(value);
-            if (responseNeeded) {
-                mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, value);
-            }
-
-            String valueString = new String(value, StandardCharsets.UTF_8);
-            runOnUiThread(() -> {
-                if (valueString.equals("RED")) {
-                    setLightCircle(Light.RED);
-                } else if (valueString.equals("GREEN")) {
-                    setLightCircle(Light.GREEN);
-                } else {
-                    setLightCircle(Light.GREY);
-                }
-            });
+        public void onServiceDisconnected(ComponentName componentName) {
+            mGattServerService = null;
         }
     };
 
@@ -106,6 +66,10 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         mCircleView = findViewById(R.id.light_circle);
+        mRedDrawable = getDrawable(R.drawable.circle_red);
+        mGreenDrawable = getDrawable(R.drawable.circle_green);
+        mGreyDrawable = getDrawable(R.drawable.circle_grey);
+        mWritePipeline.start();
 
         Switch advertiseSwitch = findViewById(R.id.advertise_switch);
         advertiseSwitch.setOnClickListener(view -> {
@@ -115,6 +79,9 @@ public class MainActivity extends AppCompatActivity {
                 stopAdvertising();
             }
         });
+
+        // Doesn't create the service: it only connects once advertising has started it.
+        bindService(new Intent(this, GattServerService.class), mServiceConnection, 0);
     }
 
     @Override
@@ -124,8 +91,6 @@ public class MainActivity extends AppCompatActivity {
         if (PERMISSION_REQUEST_CODE == requestCode) {
             if (grantResults.length == 1) {
                 if (PackageManager.PERMISSION_GRANTED == grantResults[0]) {
-                    setGattServer();
-                    setBluetoothService();
                     startAdvertising();
                 } else {
                     requestPermission();
@@ -135,8 +100,6 @@ public class MainActivity extends AppCompatActivity {
                         && PackageManager.PERMISSION_GRANTED == grantResults[1]
                         && PackageManager.PERMISSION_GRANTED == grantResults[2]
                         && PackageManager.PERMISSION_GRANTED == grantResults[3]) {
-                    setGattServer();
-                    setBluetoothService();
                     startAdvertising();
                 } else {
                     requestPermission();
@@ -179,53 +142,24 @@ public class MainActivity extends AppCompatActivity {
                 == PackageManager.PERMISSION_GRANTED;
     }
 
-    private void setGattServer() {
-        mBluetoothDevices = new HashSet<>();
-        BluetoothManager mBluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
-        if (null != mBluetoothManager) {
-            mGattServer = mBluetoothManager.openGattServer(this, mGattServerCallback);
-        } else {
-            Toast.makeText(this, "mBluetoothManager Failure", Toast.LENGTH_LONG).show();
-        }
-    }
-
-    private void setBluetoothService() {
-
-        BluetoothGattService mSampleService = new BluetoothGattService(HEART_RATE_SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
-
-        mSampleCharacteristic = new BluetoothGattCharacteristic(BODY_SENSOR_LOCATION_CHARACTERISTIC_UUID,
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
-                BluetoothGattCharacteristic.PROPERTY_NOTIFY
-                        | BluetoothGattCharacteristic.PERMISSION_READ
-                        | BluetoothGattCharacteristic.PERMISSION_WRITE);
-
-        // add the Characteristic to the Service
-        mSampleService.addCharacteristic(mSampleCharacteristic);
-
-        // add the Service to the Server/Peripheral
-        if (null != mGattServer) {
-            mGattServer.addService(mSampleService);
-        }
-    }
-
     private void setLightCircle(Light value) {
         switch (value) {
             case RED:
-                mCircleView.setBackground(getDrawable(R.drawable.circle_red));
+                mCircleView.setBackground(mRedDrawable);
                 return;
             case GREEN:
-                mCircleView.setBackground(getDrawable(R.drawable.circle_green));
+                mCircleView.setBackground(mGreenDrawable);
                 return;
             case GREY:
             default:
-                mCircleView.setBackground(getDrawable(R.drawable.circle_grey));
+                mCircleView.setBackground(mGreyDrawable);
         }
     }
 
     private void startAdvertising() {
         if (isGrantedAllPermission()) {
-            setGattServer();
-            setBluetoothService();
+            // Cheap when already running: the server and its service table are kept.
+            startForegroundService(new Intent(this, GattServerService.class));
             startService(getServiceIntent(this));
         } else {
             requestPermission();
@@ -243,6 +177,15 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        stopAdvertising();
+        if (mGattServerService != null) {
+            mGattServerService.setListener(null);
+        }
+        unbindService(mServiceConnection);
+        mWritePipeline.quit();
+        // Connections survive a configuration change, only leaving the app closes the server.
+        if (isFinishing()) {
+            stopAdvertising();
+            stopService(new Intent(this, GattServerService.class));
+        }
     }
 }
\ No newline at end of file
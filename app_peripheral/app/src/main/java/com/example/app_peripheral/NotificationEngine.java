@@ -0,0 +1,242 @@
+package com.example.app_peripheral;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Pushes characteristic updates to every subscribed central.
+ *
+ * The stack accepts one notification per device until {@code onNotificationSent} comes back, so
+ * each subscriber has at most one notification in flight. A value published while the previous
+ * one is still in flight replaces any value waiting behind it: a slow central receives the latest
+ * value, never a backlog of stale ones, and doesn't hold back the other centrals. Values sent to
+ * one subscriber only, such as bulk transfer acks, wait in a slot of their own and go first, so
+ * a published value never replaces them or the other way round.
+ *
+ * Centrals subscribe by writing the Client Characteristic Configuration descriptor, with
+ * notifications or with indications, which the central confirms before the next one is sent.
+ *
+ * @param <D> The device type, {@code BluetoothDevice} on the phone.
+ */
+public class NotificationEngine<D> {
+
+    public static final UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    // Bits of the Client Characteristic Configuration value.
+    public static final int CONFIGURATION_NOTIFY = 0x01;
+    public static final int CONFIGURATION_INDICATE = 0x02;
+
+    /**
+     * Sends one notification. Implementations are called from the publishing thread and from the
+     * thread delivering {@link #onNotificationSent(Object, boolean)}.
+     */
+    public interface Transport<D> {
+        /**
+         * @param confirm Send an indication rather than a notification.
+         * @return false if the stack refused the notification.
+         */
+        boolean notify(D device, byte[] value, boolean confirm);
+    }
+
+    private static class Subscriber<D> {
+        final D mDevice;
+        volatile boolean mIndicate;
+        final AtomicBoolean mInFlight = new AtomicBoolean();
+        final AtomicReference<byte[]> mPending = new AtomicReference<>();
+        final AtomicReference<byte[]> mPendingDirect = new AtomicReference<>();
+        final AtomicLong mSentCount = new AtomicLong();
+        final AtomicLong mCoalescedCount = new AtomicLong();
+
+        Subscriber(D device) {
+            mDevice = device;
+        }
+    }
+
+    private final ConcurrentHashMap<D, Subscriber<D>> mSubscribers = new ConcurrentHashMap<>();
+    private final Transport<D> mTransport;
+    private final AtomicLong mFailedCount = new AtomicLong();
+    private volatile byte[] mLatestValue;
+
+    public NotificationEngine(Transport<D> transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Parses a value written to the Client Characteristic Configuration descriptor.
+     *
+     * @return The {@code CONFIGURATION_*} bits, or -1 if the value is malformed.
+     */
+    public static int parseConfiguration(byte[] value) {
+        if (value == null || value.length != 2 || value[1] != 0
+                || (value[0] & ~(CONFIGURATION_NOTIFY | CONFIGURATION_INDICATE)) != 0) {
+            return -1;
+        }
+        return value[0];
+    }
+
+    /**
+     * Applies a Client Characteristic Configuration value written by a central. Notifications
+     * win when both bits are set.
+     *
+     * @return false if the value is malformed.
+     */
+    public boolean configure(D device, byte[] value) {
+        int configuration = parseConfiguration(value);
+        if (configuration < 0) {
+            return false;
+        }
+        if (configuration == 0) {
+            unsubscribe(device);
+        } else {
+            subscribe(device, (configuration & CONFIGURATION_NOTIFY) == 0);
+        }
+        return true;
+    }
+
+    /**
+     * @return The Client Characteristic Configuration value of the device, for reads of the
+     *         descriptor.
+     */
+    public byte[] getConfiguration(D device) {
+        Subscriber<D> subscriber = mSubscribers.get(device);
+        int configuration = subscriber == null ? 0 : subscriber.mIndicate ? CONFIGURATION_INDICATE : CONFIGURATION_NOTIFY;
+        return new byte[]{(byte) configuration, 0};
+    }
+
+    public void subscribe(D device) {
+        subscribe(device, false);
+    }
+
+    /**
+     * Adds a subscriber, or switches an existing one between notifications and indications. A new
+     * subscriber immediately receives the latest published value, if any.
+     */
+    public void subscribe(D device, boolean indicate) {
+        Subscriber<D> subscriber = new Subscriber<>(device);
+        subscriber.mIndicate = indicate;
+        Subscriber<D> existing = mSubscribers.putIfAbsent(device, subscriber);
+        if (existing != null) {
+            existing.mIndicate = indicate;
+            return;
+        }
+        byte[] latestValue = mLatestValue;
+        if (latestValue != null) {
+            subscriber.mPending.set(latestValue);
+            drain(subscriber);
+        }
+    }
+
+    public void unsubscribe(D device) {
+        mSubscribers.remove(device);
+    }
+
+    public boolean isSubscribed(D device) {
+        return mSubscribers.containsKey(device);
+    }
+
+    public boolean isIndicating(D device) {
+        Subscriber<D> subscriber = mSubscribers.get(device);
+        return subscriber != null && subscriber.mIndicate;
+    }
+
+    public int getSubscriberCount() {
+        return mSubscribers.size();
+    }
+
+    /**
+     * Publishes a new value to every subscriber. The array must not be modified afterwards.
+     */
+    public void publish(byte[] value) {
+        mLatestValue = value;
+        for (Subscriber<D> subscriber : mSubscribers.values()) {
+            if (subscriber.mPending.getAndSet(value) != null) {
+                subscriber.mCoalescedCount.incrementAndGet();
+            }
+            drain(subscriber);
+        }
+    }
+
+    /**
+     * Sends a value to one subscriber only, with the same flow control. It goes before any
+     * published value waiting for that subscriber, and replaces the direct value still waiting.
+     *
+     * @return false if the device isn't subscribed.
+     */
+    public boolean publishTo(D device, byte[] value) {
+        Subscriber<D> subscriber = mSubscribers.get(device);
+        if (subscriber == null) {
+            return false;
+        }
+        if (subscriber.mPendingDirect.getAndSet(value) != null) {
+            subscriber.mCoalescedCount.incrementAndGet();
+        }
+        drain(subscriber);
+        return true;
+    }
+
+    /**
+     * To be called from {@code BluetoothGattServerCallback#onNotificationSent}.
+     */
+    public void onNotificationSent(D device, boolean success) {
+        Subscriber<D> subscriber = mSubscribers.get(device);
+        if (subscriber == null) {
+            return;
+        }
+        if (!success) {
+            mFailedCount.incrementAndGet();
+        }
+        subscriber.mInFlight.set(false);
+        drain(subscriber);
+    }
+
+    public long getSentCount(D device) {
+        Subscriber<D> subscriber = mSubscribers.get(device);
+        return subscriber == null ? 0 : subscriber.mSentCount.get();
+    }
+
+    public long getCoalescedCount(D device) {
+        Subscriber<D> subscriber = mSubscribers.get(device);
+        return subscriber == null ? 0 : subscriber.mCoalescedCount.get();
+    }
+
+    public long getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    public void clear() {
+        mSubscribers.clear();
+        mLatestValue = null;
+    }
+
+    private void drain(Subscriber<D> subscriber) {
+        // Whoever takes the in-flight slot sends the pending value, the direct one first. A value
+        // published between the send failing and the slot being released is picked up by the
+        // next loop.
+        while ((subscriber.mPendingDirect.get() != null || subscriber.mPending.get() != null)
+                && subscriber.mInFlight.compareAndSet(false, true)) {
+            AtomicReference<byte[]> slot = subscriber.mPendingDirect;
+            byte[] value = slot.getAndSet(null);
+            if (value == null) {
+                slot = subscriber.mPending;
+                value = slot.getAndSet(null);
+            }
+            if (value == null) {
+                subscriber.mInFlight.set(false);
+                continue;
+            }
+            if (mTransport.notify(subscriber.mDevice, value, subscriber.mIndicate)) {
+                subscriber.mSentCount.incrementAndGet();
+                return;
+            }
+            // Refused by the stack: keep the value unless a newer one arrived, and retry on the
+            // next publish or callback rather than spinning here.
+            mFailedCount.incrementAndGet();
+            slot.compareAndSet(null, value);
+            subscriber.mInFlight.set(false);
+            return;
+        }
+    }
+}
@@ -3,23 +3,39 @@ package com.example.app_peripheral;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
-import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
 import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.nio.charset.StandardCharsets;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
 
+/**
+ * Advertises the heart rate service with an advertising set, whose data is updated in place when
+ * the sensor value changes instead of restarting the advertisement.
+ *
+ * Legacy advertising is used as long as the value fits in 31 bytes, every scanner sees it. A
+ * longer value is advertised with extended advertising when the controller supports it, and cut
+ * to fit otherwise or if the controller refuses to start the extended set.
+ *
+ * How often and how loud it advertises follows the mode of the {@link AdvertisingPowerController}:
+ * the parameters of the running set are changed in place, and advertising never times out, it
+ * ends up at low power.
+ */
 public class PeripheralAdvertiseService extends Service {
 
     public static final UUID HEART_RATE_SERVICE_UUID = UUID.fromString("0000180D-0000-1000-8000-00805f9b34fb");
+    private static final ParcelUuid HEART_RATE_SERVICE_PARCEL_UUID = new ParcelUuid(HEART_RATE_SERVICE_UUID);
 
     /**
      * A global variable to let AdvertiserFragment check if the Service is running without needing
@@ -29,22 +45,57 @@ public class PeripheralAdvertiseService extends Service {
      */
     public static boolean running = false;
 
+    private BluetoothAdapter mBluetoothAdapter;
     private BluetoothLeAdvertiser mBluetoothLeAdvertiser;
-    private AdvertiseCallback mAdvertiseCallback;
-    private Handler mHandler;
-    private Runnable timeoutRunnable;
+    private boolean mExtendedAdvertisingSupported;
+    private int mMaxAdvertisingDataLength = SensorBroadcastCodec.ADVERTISING_DATA_LENGTH;
 
-    /**
-     * Length of time to allow advertising before automatically shutting off. (10 minutes)
-     */
-    private final long TIMEOUT = TimeUnit.MILLISECONDS.convert(10, TimeUnit.MINUTES);
+    // Set when startAdvertisingSet is called, the set itself once the controller started it.
+    private AdvertisingSetCallback mAdvertisingSetCallback;
+    private AdvertisingSet mAdvertisingSet;
+    private boolean mExtended;
+    private boolean mChangedWhileStarting;
+    private final AdvertisingPowerController mPowerController = AdvertisingPowerController.getInstance();
+    private int mAdvertisedMode;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final AdvertisingDataThrottle mDataUpdates = new AdvertisingDataThrottle();
+
+    private final Runnable mUpdateAdvertisingData = new Runnable() {
+        @Override
+        public void run() {
+            AdvertisingSet advertisingSet = mAdvertisingSet;
+            if (advertisingSet != null && mDataUpdates.take(SystemClock.elapsedRealtime())) {
+                advertisingSet.setAdvertisingData(buildAdvertiseData());
+            }
+        }
+    };
+
+    private final SensorBroadcast.Listener mBroadcastListener = () -> mHandler.post(this::onValueChanged);
+
+    /*
+    Runs when the next back off of the power controller is due.
+    */
+    private final Runnable mUpdateMode = new Runnable() {
+        @Override
+        public void run() {
+            mPowerController.update(SystemClock.elapsedRealtime());
+            scheduleModeUpdate();
+        }
+    };
+
+    // Connections are reported on the GATT server thread.
+    private final AdvertisingPowerController.Listener mModeListener = mode -> mHandler.post(this::onModeChanged);
 
     @Override
     public void onCreate() {
         running = true;
         initialize();
+        SensorBroadcast.getInstance().setListener(mBroadcastListener);
+        mPowerController.setListener(mModeListener);
+        mPowerController.start(SystemClock.elapsedRealtime());
         startAdvertising();
-        setTimeout();
+        scheduleModeUpdate();
         super.onCreate();
     }
 
@@ -56,8 +107,11 @@ public class PeripheralAdvertiseService extends Service {
          * is critical.
          */
         running = false;
+        SensorBroadcast.getInstance().setListener(null);
+        mPowerController.setListener(null);
+        mPowerController.stop(SystemClock.elapsedRealtime());
+        mHandler.removeCallbacks(mUpdateMode);
         stopAdvertising();
-        mHandler.removeCallbacks(timeoutRunnable);
         stopForeground(true);
         super.onDestroy();
     }
@@ -78,44 +132,65 @@ public class PeripheralAdvertiseService extends Service {
         if (mBluetoothLeAdvertiser == null) {
             BluetoothManager bluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
             if (bluetoothManager != null) {
-                BluetoothAdapter bluetoothAdapter = bluetoothManager.getAdapter();
-                if (bluetoothAdapter != null) {
-                    mBluetoothLeAdvertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
+                mBluetoothAdapter = bluetoothManager.getAdapter();
+                if (mBluetoothAdapter != null) {
+                    mBluetoothLeAdvertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
+                    mExtendedAdvertisingSupported = mBluetoothAdapter.isLeExtendedAdvertisingSupported();
+                    // The set is connectable, its extended data must fit in one PDU.
+                    mMaxAdvertisingDataLength = Math.min(mBluetoothAdapter.getLeMaximumAdvertisingDataLength(),
+                            SensorBroadcastCodec.MAX_CONNECTABLE_EXTENDED_DATA_LENGTH);
                 }
             }
         }
     }
 
+    private void scheduleModeUpdate() {
+        mHandler.removeCallbacks(mUpdateMode);
+        long delayMs = mPowerController.getNextUpdateDelayMs(SystemClock.elapsedRealtime());
+        if (delayMs >= 0) {
+            mHandler.postDelayed(mUpdateMode, delayMs);
+        }
+    }
+
     /**
-     * Starts a delayed Runnable that will cause the BLE Advertising to timeout and stop after a
-     * set amount of time.
+     * Applies the mode of the power controller to the running set. A set still starting gets it
+     * once started.
      */
-    private void setTimeout(){
-        mHandler = new Handler();
-        timeoutRunnable = new Runnable() {
-            @Override
-            public void run() {
-                stopSelf();
-            }
-        };
-        mHandler.postDelayed(timeoutRunnable, TIMEOUT);
+    private void onModeChanged() {
+        if (!running) {
+            return;
+        }
+        // A connection may have moved the next back off.
+        scheduleModeUpdate();
+        int mode = mPowerController.getMode();
+        AdvertisingSet advertisingSet = mAdvertisingSet;
+        if (advertisingSet == null || mode == mAdvertisedMode) {
+            return;
+        }
+        Log.d(MainActivity.TAG, "Advertising " + AdvertisingPowerController.getModeName(mode) + " after "
+                + mPowerController.getTimeInModeMs(mAdvertisedMode, SystemClock.elapsedRealtime()) + " ms "
+                + AdvertisingPowerController.getModeName(mAdvertisedMode) + " in total");
+        mAdvertisedMode = mode;
+        // The parameters of a set can only be changed while it is disabled.
+        advertisingSet.enableAdvertising(false, 0, 0);
+        advertisingSet.setAdvertisingParameters(buildAdvertisingSetParameters());
+        advertisingSet.enableAdvertising(true, 0, 0);
     }
 
     /**
-     * Starts BLE Advertising.
+     * Starts BLE Advertising, extended if the latest value needs it.
      */
     private void startAdvertising() {
 
         Log.d(MainActivity.TAG, "Service: Starting Advertising");
 
-        if (mAdvertiseCallback == null) {
-            AdvertiseSettings settings = buildAdvertiseSettings();
-            AdvertiseData data = buildAdvertiseData();
-            mAdvertiseCallback = new SampleAdvertiseCallback();
-
-            if (mBluetoothLeAdvertiser != null) {
-                mBluetoothLeAdvertiser.startAdvertising(settings, data, mAdvertiseCallback);
-            }
+        if (mAdvertisingSetCallback == null && mBluetoothLeAdvertiser != null) {
+            mChangedWhileStarting = false;
+            mExtended = needsExtendedAdvertising();
+            mAdvertisedMode = mPowerController.getMode();
+            mAdvertisingSetCallback = new SampleAdvertisingSetCallback();
+            mBluetoothLeAdvertiser.startAdvertisingSet(buildAdvertisingSetParameters(), buildAdvertiseData(),
+                    mExtended ? null : buildScanResponse(), null, null, mAdvertisingSetCallback);
         }
     }
 
@@ -123,66 +198,177 @@ public class PeripheralAdvertiseService extends Service {
      * Stops BLE Advertising.
      */
     private void stopAdvertising() {
-        if (mBluetoothLeAdvertiser != null) {
-            mBluetoothLeAdvertiser.stopAdvertising(mAdvertiseCallback);
-            mAdvertiseCallback = null;
+        mHandler.removeCallbacks(mUpdateAdvertisingData);
+        mDataUpdates.reset();
+        if (mBluetoothLeAdvertiser != null && mAdvertisingSetCallback != null) {
+            mBluetoothLeAdvertiser.stopAdvertisingSet(mAdvertisingSetCallback);
         }
+        mAdvertisingSetCallback = null;
+        mAdvertisingSet = null;
     }
 
     /**
-     * Returns an AdvertiseData object which includes the Service UUID and Device Name.
+     * Updates the advertised data in place, at most once per throttle interval. Only crossing
+     * between legacy and extended advertising restarts the set.
+     */
+    private void onValueChanged() {
+        if (!running || mAdvertisingSetCallback == null) {
+            return;
+        }
+        if (needsExtendedAdvertising() != mExtended) {
+            stopAdvertising();
+            startAdvertising();
+            return;
+        }
+        if (mAdvertisingSet == null) {
+            // Still starting, the data is set again once it started.
+            mChangedWhileStarting = true;
+            return;
+        }
+        scheduleDataUpdate(mDataUpdates.request(SystemClock.elapsedRealtime()));
+    }
+
+    private void scheduleDataUpdate(long delayMs) {
+        if (delayMs >= 0) {
+            mHandler.postDelayed(mUpdateAdvertisingData, delayMs);
+        }
+    }
+
+    private boolean needsExtendedAdvertising() {
+        return mExtendedAdvertisingSupported
+                && SensorBroadcast.getInstance().getValueLength() > SensorBroadcastCodec.MAX_VALUE_LENGTH;
+    }
+
+    /**
+     * Returns an AdvertiseData object which includes the Service UUID and, once a value was
+     * written, the latest value as service data. Centrals in broadcast mode read it from the scan
+     * record without connecting. An extended advertisement isn't scannable, it also carries the
+     * Device Name.
      */
     private AdvertiseData buildAdvertiseData() {
 
         /**
-         * Note: There is a strict limit of 31 Bytes on packets sent over BLE Advertisements.
+         * Note: There is a strict limit of 31 Bytes on packets sent over legacy BLE
+         *  Advertisements, and of getLeMaximumAdvertisingDataLength(), 191 when connectable, over
+         *  extended ones; a single AD structure holds 255 bytes at most.
          *  This includes everything put into AdvertiseData including UUIDs, device info, &
          *  arbitrary service or manufacturer data.
          *  Attempting to send packets over this limit will result in a failure with error code
-         *  AdvertiseCallback.ADVERTISE_FAILED_DATA_TOO_LARGE. Catch this error in the
-         *  onStartFailure() method of an AdvertiseCallback implementation.
+         *  AdvertisingSetCallback.ADVERTISE_FAILED_DATA_TOO_LARGE.
          */
 
         AdvertiseData.Builder dataBuilder = new AdvertiseData.Builder();
-        //dataBuilder.addServiceUuid(Constants.SERVICE_UUID);
-        dataBuilder.addServiceUuid(ParcelUuid.fromString(HEART_RATE_SERVICE_UUID.toString()));
-        dataBuilder.setIncludeDeviceName(true);
+        dataBuilder.addServiceUuid(HEART_RATE_SERVICE_PARCEL_UUID);
 
-        /* For example - this will cause advertising to fail (exceeds size limit) */
-        //String failureData = "asdghkajsghalkxcjhfa;sghtalksjcfhalskfjhasldkjfhdskf";
-        //dataBuilder.addServiceData(Constants.SERVICE_UUID, failureData.getBytes());
+        int maxValueLength = SensorBroadcastCodec.MAX_VALUE_LENGTH;
+        if (mExtended) {
+            dataBuilder.setIncludeDeviceName(true);
+            maxValueLength = SensorBroadcastCodec.maxValueLength(mMaxAdvertisingDataLength, getDeviceNameLength());
+        }
+        byte[] payload = SensorBroadcast.getInstance().getPayload(maxValueLength);
+        if (payload != null) {
+            dataBuilder.addServiceData(HEART_RATE_SERVICE_PARCEL_UUID, payload);
+        }
 
         return dataBuilder.build();
     }
 
     /**
-     * Returns an AdvertiseSettings object set to use low power (to help preserve battery life)
-     * and disable the built-in timeout since this code uses its own timeout runnable.
+     * Returns the scan response of legacy advertising, sent to scanners that ask for it: the
+     * Device Name doesn't fit next to the service data.
+     */
+    private AdvertiseData buildScanResponse() {
+        return new AdvertiseData.Builder()
+                .setIncludeDeviceName(true)
+                .build();
+    }
+
+    /**
+     * The name field, length and type included.
+     */
+    private int getDeviceNameLength() {
+        String name = mBluetoothAdapter == null ? null : mBluetoothAdapter.getName();
+        return name == null ? 0 : 2 + name.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Returns the parameters of the advertising set in the advertised mode, connectable. A legacy
+     * set is also scannable. Fast advertises about every 100 ms at high TX power so a central
+     * finds it at once and from afar, balanced every 250 ms at medium power, low power every
+     * second at low power.
      */
-    private AdvertiseSettings buildAdvertiseSettings() {
-        AdvertiseSettings.Builder settingsBuilder = new AdvertiseSettings.Builder();
-        settingsBuilder.setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY);
-        settingsBuilder.setTimeout(0);
-        return settingsBuilder.build();
+    private AdvertisingSetParameters buildAdvertisingSetParameters() {
+        int interval;
+        int txPowerLevel;
+        switch (mAdvertisedMode) {
+            case AdvertisingPowerController.MODE_FAST:
+                interval = AdvertisingSetParameters.INTERVAL_LOW;
+                txPowerLevel = AdvertisingSetParameters.TX_POWER_HIGH;
+                break;
+            case AdvertisingPowerController.MODE_BALANCED:
+                interval = AdvertisingSetParameters.INTERVAL_MEDIUM;
+                txPowerLevel = AdvertisingSetParameters.TX_POWER_MEDIUM;
+                break;
+            case AdvertisingPowerController.MODE_LOW_POWER:
+            default:
+                interval = AdvertisingSetParameters.INTERVAL_HIGH;
+                txPowerLevel = AdvertisingSetParameters.TX_POWER_LOW;
+        }
+        return new AdvertisingSetParameters.Builder()
+                .setLegacyMode(!mExtended)
+                .setConnectable(true)
+                .setScannable(!mExtended)
+                .setInterval(interval)
+                .setTxPowerLevel(txPowerLevel)
+                .build();
     }
 
     /**
-     * Custom callback after Advertising succeeds or fails to start. Broadcasts the error code
-     * in an Intent to be picked up by AdvertiserFragment and stops this Service.
+     * Custom callback of the advertising set. A failure to start an extended set falls back to
+     * legacy advertising, a failure to start a legacy one stops this Service.
      */
-    private class SampleAdvertiseCallback extends AdvertiseCallback {
+    private class SampleAdvertisingSetCallback extends AdvertisingSetCallback {
 
         @Override
-        public void onStartFailure(int errorCode) {
-            super.onStartFailure(errorCode);
-            Log.d(MainActivity.TAG, "Advertising failed");
-            stopSelf();
+        public void onAdvertisingSetStarted(AdvertisingSet advertisingSet, int txPower, int status) {
+            if (this != mAdvertisingSetCallback) {
+                // Stopped while starting.
+                return;
+            }
+            if (status == AdvertisingSetCallback.ADVERTISE_SUCCESS) {
+                Log.d(MainActivity.TAG, "Advertising successfully started, extended: " + mExtended + ", tx power: " + txPower);
+                mAdvertisingSet = advertisingSet;
+                if (mChangedWhileStarting) {
+                    scheduleDataUpdate(mDataUpdates.request(SystemClock.elapsedRealtime()));
+                }
+                // The mode may have changed while the set was starting.
+                onModeChanged();
+            } else if (mExtended) {
+                Log.w(MainActivity.TAG, "Extended advertising failed: " + status + ", falling back to legacy");
+                mAdvertisingSetCallback = null;
+                mExtendedAdvertisingSupported = false;
+                startAdvertising();
+            } else {
+                Log.d(MainActivity.TAG, "Advertising failed: " + status);
+                mAdvertisingSetCallback = null;
+                stopSelf();
+            }
+        }
+
+        @Override
+        public void onAdvertisingDataSet(AdvertisingSet advertisingSet, int status) {
+            if (this != mAdvertisingSetCallback) {
+                return;
+            }
+            if (status != AdvertisingSetCallback.ADVERTISE_SUCCESS) {
+                Log.w(MainActivity.TAG, "Advertising data update failed: " + status);
+            }
+            scheduleDataUpdate(mDataUpdates.onComplete(SystemClock.elapsedRealtime()));
         }
 
         @Override
-        public void onStartSuccess(AdvertiseSettings settingsInEffect) {
-            super.onStartSuccess(settingsInEffect);
-            Log.d(MainActivity.TAG, "Advertising successfully started");
+        public void onAdvertisingSetStopped(AdvertisingSet advertisingSet) {
+            Log.d(MainActivity.TAG, "Advertising stopped");
         }
     }
 }
@@ -0,0 +1,67 @@
+package com.example.app_peripheral;
+
+/**
+ * The latest sensor value, as advertised to centrals that don't connect.
+ *
+ * The GATT server publishes every committed value here and the advertiser encodes it in the
+ * service data of its advertisement, cut to what the advertisement has room for. Each value gets
+ * the next sequence number.
+ */
+public class SensorBroadcast {
+
+    /**
+     * Called on the thread that published the value.
+     */
+    public interface Listener {
+        void onValueChanged();
+    }
+
+    private static class Holder {
+        static final SensorBroadcast INSTANCE = new SensorBroadcast();
+    }
+
+    public static SensorBroadcast getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private byte[] mValue;
+    private int mSequence = -1;
+    private volatile Listener mListener;
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param value Not copied, the caller must not modify it afterwards.
+     */
+    public void publish(byte[] value) {
+        synchronized (this) {
+            mSequence = SensorBroadcastCodec.next(mSequence);
+            mValue = value;
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onValueChanged();
+        }
+    }
+
+    /**
+     * @return The length of the latest value, or -1 if none was published yet.
+     */
+    public synchronized int getValueLength() {
+        return mValue == null ? -1 : mValue.length;
+    }
+
+    /**
+     * @return The payload of the latest value, or null if none was published yet.
+     */
+    public synchronized byte[] getPayload(int maxValueLength) {
+        return mValue == null ? null : SensorBroadcastCodec.encode(mSequence, mValue, maxValueLength);
+    }
+
+    public synchronized void clear() {
+        mValue = null;
+        mSequence = -1;
+    }
+}
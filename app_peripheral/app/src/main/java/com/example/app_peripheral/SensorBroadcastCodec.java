@@ -0,0 +1,114 @@
+package com.example.app_peripheral;
+
+/**
+ * Service data of the heart rate service advertisement, carrying the latest sensor value so that
+ * a central can read it from the scan record without connecting.
+ *
+ * The peripheral encodes and the central decodes. The same codec lives in the central.
+ * <pre>
+ * [header][seq u16][value]
+ * </pre>
+ * The low nibble of the header is the format version, {@link #FLAG_TRUNCATED} is set when the
+ * value was cut to fit, {@link #MAX_VALUE_LENGTH} in a legacy advertisement and more in an
+ * extended one; the full value is then read over a connection. The sequence number is
+ * little-endian and wraps, it is incremented for every new value so a central can tell a new
+ * reading from the same advertisement received again, and count the readings it missed.
+ */
+public final class SensorBroadcastCodec {
+
+    public static final int VERSION = 1;
+    public static final int FLAG_TRUNCATED = 0x80;
+
+    // A legacy advertisement holds 31 bytes: the flags (3), the 16-bit service UUID list (4) and
+    // the service data header (length, type and 16-bit UUID) leave 20 bytes of service data. The
+    // device name goes in the scan response.
+    public static final int ADVERTISING_DATA_LENGTH = 31;
+    public static final int ADVERTISING_OVERHEAD = 3 + 4 + 4;
+    public static final int MAX_PAYLOAD_LENGTH = ADVERTISING_DATA_LENGTH - ADVERTISING_OVERHEAD;
+    public static final int HEADER_LENGTH = 3;
+    public static final int MAX_VALUE_LENGTH = MAX_PAYLOAD_LENGTH - HEADER_LENGTH;
+
+    // The length of an AD structure is one byte: 255 bytes for the type, the 16-bit UUID and the
+    // payload, whatever room the advertisement has.
+    public static final int MAX_EXTENDED_VALUE_LENGTH = 255 - 1 - 2 - HEADER_LENGTH;
+    // Connectable extended advertising data must fit in a single PDU.
+    public static final int MAX_CONNECTABLE_EXTENDED_DATA_LENGTH = 191;
+
+    private static final int VERSION_MASK = 0x0F;
+    private static final int SEQUENCE_MASK = 0xFFFF;
+
+    private SensorBroadcastCodec() {
+    }
+
+    /**
+     * @param advertisingDataLength The advertising data the controller accepts, 31 bytes for a
+     *                              legacy advertisement.
+     * @param otherLength What the other fields of the advertisement take, e.g. the device name.
+     * @return The longest value that fits, at most {@link #MAX_EXTENDED_VALUE_LENGTH}.
+     */
+    public static int maxValueLength(int advertisingDataLength, int otherLength) {
+        int length = advertisingDataLength - ADVERTISING_OVERHEAD - otherLength - HEADER_LENGTH;
+        return Math.max(0, Math.min(length, MAX_EXTENDED_VALUE_LENGTH));
+    }
+
+    /**
+     * @param value Cut to {@link #MAX_VALUE_LENGTH} bytes if longer.
+     */
+    public static byte[] encode(int sequence, byte[] value) {
+        return encode(sequence, value, MAX_VALUE_LENGTH);
+    }
+
+    /**
+     * @param value Cut to {@code maxValueLength} bytes if longer.
+     */
+    public static byte[] encode(int sequence, byte[] value, int maxValueLength) {
+        int length = Math.min(value.length, maxValueLength);
+        byte[] payload = new byte[HEADER_LENGTH + length];
+        payload[0] = (byte) (VERSION | (length < value.length ? FLAG_TRUNCATED : 0));
+        payload[1] = (byte) sequence;
+        payload[2] = (byte) (sequence >> 8);
+        System.arraycopy(value, 0, payload, HEADER_LENGTH, length);
+        return payload;
+    }
+
+    /**
+     * @return false if the service data is not a sensor broadcast of a known version.
+     */
+    public static boolean isBroadcast(byte[] payload) {
+        return payload != null && payload.length >= HEADER_LENGTH && (payload[0] & VERSION_MASK) == VERSION;
+    }
+
+    public static int sequence(byte[] payload) {
+        return (payload[1] & 0xFF) | (payload[2] & 0xFF) << 8;
+    }
+
+    public static boolean isTruncated(byte[] payload) {
+        return (payload[0] & FLAG_TRUNCATED) != 0;
+    }
+
+    public static int valueLength(byte[] payload) {
+        return payload.length - HEADER_LENGTH;
+    }
+
+    public static byte[] value(byte[] payload) {
+        byte[] value = new byte[valueLength(payload)];
+        System.arraycopy(payload, HEADER_LENGTH, value, 0, value.length);
+        return value;
+    }
+
+    /**
+     * @return The next sequence number, wrapped to 16 bits.
+     */
+    public static int next(int sequence) {
+        return (sequence + 1) & SEQUENCE_MASK;
+    }
+
+    /**
+     * @return How many sequence numbers {@code sequence} is ahead of {@code previous}, modulo
+     *         2^16: 0 for the same reading, 1 for the next one. Values past half the range mean
+     *         the reading is older, e.g. the peripheral restarted.
+     */
+    public static int distance(int previous, int sequence) {
+        return (sequence - previous) & SEQUENCE_MASK;
+    }
+}
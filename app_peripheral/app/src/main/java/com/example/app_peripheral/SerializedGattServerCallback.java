@@ -0,0 +1,82 @@
+package com.example.app_peripheral;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.os.Handler;
+
+/**
+ * Moves the callbacks of a GATT server off the binder threads.
+ *
+ * {@code openGattServer} takes no handler, so the stack calls back on whichever binder thread
+ * delivers the event and two callbacks can run at once. Every callback is posted here to one
+ * handler and run on its thread by the wrapped callback, in the order the stack delivered them.
+ * The request ids and value arrays belong to the call, so they are safe to hand over.
+ */
+class SerializedGattServerCallback extends BluetoothGattServerCallback {
+
+    private final BluetoothGattServerCallback mCallback;
+    private final Handler mHandler;
+
+    SerializedGattServerCallback(BluetoothGattServerCallback callback, Handler handler) {
+        mCallback = callback;
+        mHandler = handler;
+    }
+
+    @Override
+    public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
+        mHandler.post(() -> mCallback.onConnectionStateChange(device, status, newState));
+    }
+
+    @Override
+    public void onServiceAdded(int status, BluetoothGattService service) {
+        mHandler.post(() -> mCallback.onServiceAdded(status, service));
+    }
+
+    @Override
+    public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
+                                            BluetoothGattCharacteristic characteristic) {
+        mHandler.post(() -> mCallback.onCharacteristicReadRequest(device, requestId, offset, characteristic));
+    }
+
+    @Override
+    public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic,
+                                             boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+        mHandler.post(() -> mCallback.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite,
+                responseNeeded, offset, value));
+    }
+
+    @Override
+    public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattDescriptor descriptor) {
+        mHandler.post(() -> mCallback.onDescriptorReadRequest(device, requestId, offset, descriptor));
+    }
+
+    @Override
+    public void onDescriptorWriteRequest(BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor,
+                                         boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+        mHandler.post(() -> mCallback.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite,
+                responseNeeded, offset, value));
+    }
+
+    @Override
+    public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+        mHandler.post(() -> mCallback.onExecuteWrite(device, requestId, execute));
+    }
+
+    @Override
+    public void onNotificationSent(BluetoothDevice device, int status) {
+        mHandler.post(() -> mCallback.onNotificationSent(device, status));
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothDevice device, int mtu) {
+        mHandler.post(() -> mCallback.onMtuChanged(device, mtu));
+    }
+
+    @Override
+    public void onPhyUpdate(BluetoothDevice device, int txPhy, int rxPhy, int status) {
+        mHandler.post(() -> mCallback.onPhyUpdate(device, txPhy, rxPhy, status));
+    }
+}
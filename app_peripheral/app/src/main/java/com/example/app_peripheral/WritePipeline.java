@@ -0,0 +1,87 @@
+package com.example.app_peripheral;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.view.Choreographer;
+
+/**
+ * Handles the writes of the light characteristic off the binder and main threads.
+ *
+ * Writes are decoded on a dedicated handler thread into the latest light state. The renderer is
+ * called on the main thread at most once per frame, and only when the state changed.
+ */
+class WritePipeline {
+
+    /**
+     * Applies a light state. Called on the main thread.
+     */
+    interface Renderer {
+        void render(MainActivity.Light light);
+    }
+
+    private static final int MSG_WRITE = 1;
+
+    private final HandlerThread mThread = new HandlerThread("WritePipeline", Process.THREAD_PRIORITY_DISPLAY);
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final LightStateCoalescer mLightState = new LightStateCoalescer();
+    private final Renderer mRenderer;
+    private volatile Handler mHandler;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            MainActivity.Light light = mLightState.takeForFrame();
+            if (light != null) {
+                mRenderer.render(light);
+            }
+        }
+    };
+
+    // The Choreographer belongs to the main thread, frames are requested from there.
+    private final Runnable mRequestFrame = () -> Choreographer.getInstance().postFrameCallback(mFrameCallback);
+
+    WritePipeline(Renderer renderer) {
+        mRenderer = renderer;
+    }
+
+    void start() {
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper(), message -> {
+            if (message.what == MSG_WRITE) {
+                offer(LightCommand.decode((byte[]) message.obj));
+                return true;
+            }
+            return false;
+        });
+    }
+
+    void quit() {
+        mMainHandler.removeCallbacks(mRequestFrame);
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        mThread.quitSafely();
+    }
+
+    /**
+     * Queues a written value. Called on the binder thread delivering the write; the array must
+     * not be modified afterwards.
+     */
+    void submit(byte[] value) {
+        Handler handler = mHandler;
+        if (handler != null) {
+            // Messages come from a pool, nothing is allocated per write.
+            handler.sendMessage(handler.obtainMessage(MSG_WRITE, value));
+        }
+    }
+
+    /**
+     * Sets the light state directly, e.g. grey when the central disconnects.
+     */
+    void offer(MainActivity.Light light) {
+        if (mLightState.offer(light)) {
+            mMainHandler.post(mRequestFrame);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.app_peripheral;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdvertisingDataThrottleTest {
+
+    @Test
+    public void request_issuesTheFirstUpdateAtOnce() {
+        AdvertisingDataThrottle throttle = new AdvertisingDataThrottle(1000);
+
+        assertEquals(0, throttle.request(5000));
+        // Already scheduled.
+        assertEquals(-1, throttle.request(5000));
+        assertTrue(throttle.take(5000));
+        assertEquals(-1, throttle.onComplete(5020));
+        assertFalse(throttle.take(5020));
+        assertEquals(1, throttle.getIssuedCount());
+    }
+
+    @Test
+    public void request_coalescesChangesWhileAnUpdateIsInFlight() {
+        AdvertisingDataThrottle throttle = new AdvertisingDataThrottle(1000);
+        throttle.request(0);
+        assertTrue(throttle.take(0));
+
+        for (int i = 1; i <= 50; i++) {
+            assertEquals(-1, throttle.request(i * 10));
+        }
+        // The latest data goes out once the interval since the previous update elapsed.
+        assertEquals(700, throttle.onComplete(300));
+        assertTrue(throttle.take(1000));
+        assertEquals(-1, throttle.onComplete(1030));
+
+        assertEquals(51, throttle.getRequestCount());
+        assertEquals(2, throttle.getIssuedCount());
+    }
+
+    @Test
+    public void request_waitsForTheMinimumInterval() {
+        AdvertisingDataThrottle throttle = new AdvertisingDataThrottle(1000);
+        throttle.request(0);
+        throttle.take(0);
+        throttle.onComplete(50);
+
+        assertEquals(600, throttle.request(400));
+        assertTrue(throttle.take(1000));
+        throttle.onComplete(1040);
+        assertEquals(0, throttle.request(2500));
+    }
+
+    @Test
+    public void reset_dropsThePendingUpdate() {
+        AdvertisingDataThrottle throttle = new AdvertisingDataThrottle(1000);
+        throttle.request(0);
+        throttle.take(0);
+        throttle.request(10);
+        throttle.reset();
+
+        assertFalse(throttle.take(1000));
+        assertEquals(-1, throttle.onComplete(1000));
+        assertEquals(0, throttle.request(2000));
+    }
+}
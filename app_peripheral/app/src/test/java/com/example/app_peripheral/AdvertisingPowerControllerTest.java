@@ -0,0 +1,109 @@
+package com.example.app_peripheral;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AdvertisingPowerControllerTest {
+
+    private static final long FAST_MS = 30000;
+    private static final long IDLE_MS = 180000;
+    private static final long CONNECTED_BALANCED_MS = 10000;
+
+    private final List<Integer> mModes = new ArrayList<>();
+    // The fake clock, advanced by the tests.
+    private long mNowMs = 1000;
+
+    private AdvertisingPowerController startController() {
+        AdvertisingPowerController controller = new AdvertisingPowerController(FAST_MS, IDLE_MS, CONNECTED_BALANCED_MS);
+        controller.setListener(mModes::add);
+        controller.start(mNowMs);
+        return controller;
+    }
+
+    /**
+     * Advances the clock to the next decision, as the service timer does.
+     */
+    private void runNextUpdate(AdvertisingPowerController controller) {
+        long delayMs = controller.getNextUpdateDelayMs(mNowMs);
+        assertTrue(delayMs > 0);
+        mNowMs += delayMs;
+        controller.update(mNowMs);
+    }
+
+    @Test
+    public void start_backsOffWhileNobodyConnects() {
+        AdvertisingPowerController controller = startController();
+        assertEquals(AdvertisingPowerController.MODE_FAST, controller.getMode());
+        assertEquals(FAST_MS, controller.getNextUpdateDelayMs(mNowMs));
+
+        // Too early, nothing changes.
+        mNowMs += FAST_MS - 1;
+        controller.update(mNowMs);
+        assertEquals(AdvertisingPowerController.MODE_FAST, controller.getMode());
+
+        runNextUpdate(controller);
+        assertEquals(AdvertisingPowerController.MODE_BALANCED, controller.getMode());
+        runNextUpdate(controller);
+        assertEquals(AdvertisingPowerController.MODE_LOW_POWER, controller.getMode());
+        assertEquals(-1, controller.getNextUpdateDelayMs(mNowMs));
+
+        assertEquals(Arrays.asList(AdvertisingPowerController.MODE_FAST, AdvertisingPowerController.MODE_BALANCED,
+                AdvertisingPowerController.MODE_LOW_POWER), mModes);
+        assertEquals(FAST_MS, controller.getTimeInModeMs(AdvertisingPowerController.MODE_FAST, mNowMs));
+        assertEquals(IDLE_MS - FAST_MS, controller.getTimeInModeMs(AdvertisingPowerController.MODE_BALANCED, mNowMs));
+    }
+
+    @Test
+    public void onConnectionCountChanged_backsOffOnceConnected() {
+        AdvertisingPowerController controller = startController();
+        mNowMs += 5000;
+        controller.onConnectionCountChanged(1, mNowMs);
+        assertEquals(AdvertisingPowerController.MODE_BALANCED, controller.getMode());
+        assertEquals(CONNECTED_BALANCED_MS, controller.getNextUpdateDelayMs(mNowMs));
+
+        // Another central doesn't restart the schedule.
+        mNowMs += 4000;
+        controller.onConnectionCountChanged(2, mNowMs);
+        runNextUpdate(controller);
+        assertEquals(AdvertisingPowerController.MODE_LOW_POWER, controller.getMode());
+        assertEquals(5000, controller.getTimeInModeMs(AdvertisingPowerController.MODE_LOW_POWER, mNowMs + 5000));
+    }
+
+    @Test
+    public void onConnectionCountChanged_advertisesFastAfterTheLastDisconnection() {
+        AdvertisingPowerController controller = startController();
+        controller.onConnectionCountChanged(2, mNowMs);
+        mNowMs += 60000;
+        controller.update(mNowMs);
+        assertEquals(AdvertisingPowerController.MODE_LOW_POWER, controller.getMode());
+
+        controller.onConnectionCountChanged(1, mNowMs);
+        assertEquals(AdvertisingPowerController.MODE_LOW_POWER, controller.getMode());
+        controller.onConnectionCountChanged(0, mNowMs);
+        assertEquals(AdvertisingPowerController.MODE_FAST, controller.getMode());
+        assertEquals(FAST_MS, controller.getNextUpdateDelayMs(mNowMs));
+        assertEquals(3, controller.getChangeCount());
+    }
+
+    @Test
+    public void stop_freezesTheTimeInMode() {
+        AdvertisingPowerController controller = startController();
+        mNowMs += 2000;
+        controller.stop(mNowMs);
+
+        // Connections are still tracked, without changing modes.
+        controller.onConnectionCountChanged(1, mNowMs + 1000);
+        assertEquals(AdvertisingPowerController.MODE_FAST, controller.getMode());
+        assertEquals(-1, controller.getNextUpdateDelayMs(mNowMs + 1000));
+        assertEquals(2000, controller.getTimeInModeMs(AdvertisingPowerController.MODE_FAST, mNowMs + 50000));
+
+        // Starting again with a central connected skips the fast mode.
+        controller.start(mNowMs + 60000);
+        assertEquals(AdvertisingPowerController.MODE_BALANCED, controller.getMode());
+    }
+}
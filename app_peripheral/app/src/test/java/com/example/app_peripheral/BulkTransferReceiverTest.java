@@ -0,0 +1,126 @@
+package com.example.app_peripheral;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BulkTransferReceiverTest {
+
+    private static final String DEVICE = "00:00:00:00:00:01";
+    private static final int CHUNK = 20;
+
+    private final List<byte[]> mCompleted = new ArrayList<>();
+    private final BulkTransferReceiver<String> mReceiver = new BulkTransferReceiver<>((device, data) -> mCompleted.add(data), 4096, 2);
+
+    private static byte[] payload(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private byte[] start(int id, byte[] data, int window) {
+        return mReceiver.onFrame(DEVICE, BulkTransferCodec.encodeStart(id, data.length,
+                BulkTransferCodec.crc32(data, 0, data.length), CHUNK, window));
+    }
+
+    private byte[] data(int seq, byte[] data) {
+        int offset = seq * CHUNK;
+        return mReceiver.onFrame(DEVICE, BulkTransferCodec.encodeData(seq, data, offset, Math.min(CHUNK, data.length - offset)));
+    }
+
+    private static void assertAck(byte[] ack, int status, int seq, int offset) {
+        assertNotNull(ack);
+        assertEquals(status, BulkTransferCodec.ackStatus(ack));
+        assertEquals(seq, BulkTransferCodec.ackSeq(ack));
+        assertEquals(offset, BulkTransferCodec.ackOffset(ack));
+    }
+
+    @Test
+    public void transfer_acksEveryHalfWindowAndChecksCrc() {
+        byte[] payload = payload(100);
+        assertAck(start(1, payload, 4), BulkTransferCodec.STATUS_OK, 0, 0);
+        assertNull(data(0, payload));
+        assertAck(data(1, payload), BulkTransferCodec.STATUS_OK, 2, 40);
+        assertNull(data(2, payload));
+        assertAck(data(3, payload), BulkTransferCodec.STATUS_OK, 4, 80);
+        // The last chunk is acked right away.
+        assertAck(data(4, payload), BulkTransferCodec.STATUS_OK, 5, 100);
+
+        assertAck(mReceiver.onFrame(DEVICE, BulkTransferCodec.encodeEnd(1)), BulkTransferCodec.STATUS_DONE, 5, 100);
+        assertEquals(1, mCompleted.size());
+        assertArrayEquals(payload, mCompleted.get(0));
+
+        // A repeated START or END after a lost DONE is answered again, without a second delivery.
+        assertAck(start(1, payload, 4), BulkTransferCodec.STATUS_DONE, 5, 100);
+        assertAck(mReceiver.onFrame(DEVICE, BulkTransferCodec.encodeEnd(1)), BulkTransferCodec.STATUS_DONE, 5, 100);
+        assertEquals(1, mCompleted.size());
+    }
+
+    @Test
+    public void lostFrame_isReportedOnce() {
+        byte[] payload = payload(100);
+        start(1, payload, 16);
+        data(0, payload);
+        assertAck(data(2, payload), BulkTransferCodec.STATUS_GAP, 1, 20);
+        assertNull(data(3, payload));
+        assertNull(data(1, payload));
+        assertEquals(40, mReceiver.getReceivedLength(DEVICE));
+    }
+
+    @Test
+    public void start_resumesUnfinishedTransfer() {
+        byte[] payload = payload(100);
+        start(1, payload, 2);
+        data(0, payload);
+        data(1, payload);
+        mReceiver.onDisconnected(DEVICE);
+
+        assertAck(start(1, payload, 2), BulkTransferCodec.STATUS_RESUMED, 0, 40);
+        // Sequence numbers restart with the new START.
+        assertAck(mReceiver.onFrame(DEVICE, BulkTransferCodec.encodeData(0, payload, 40, CHUNK)),
+                BulkTransferCodec.STATUS_OK, 1, 60);
+
+        // Another payload with the same id starts over.
+        assertAck(start(1, payload(99), 2), BulkTransferCodec.STATUS_OK, 0, 0);
+    }
+
+    @Test
+    public void onDisconnected_keepsTheTransfersOfTheLastDevicesThatLeft() {
+        byte[] payload = payload(100);
+        String[] devices = {"00:00:00:00:00:0A", "00:00:00:00:00:0B", "00:00:00:00:00:0C"};
+        for (String device : devices) {
+            mReceiver.onFrame(device, BulkTransferCodec.encodeStart(1, payload.length,
+                    BulkTransferCodec.crc32(payload, 0, payload.length), CHUNK, 2));
+            mReceiver.onFrame(device, BulkTransferCodec.encodeData(0, payload, 0, CHUNK));
+        }
+        mReceiver.onDisconnected(devices[0]);
+        mReceiver.onDisconnected(devices[1]);
+        // Back and gone again: now the last to leave.
+        assertAck(mReceiver.onFrame(devices[0], BulkTransferCodec.encodeStart(1, payload.length,
+                BulkTransferCodec.crc32(payload, 0, payload.length), CHUNK, 2)), BulkTransferCodec.STATUS_RESUMED, 0, 20);
+        mReceiver.onDisconnected(devices[0]);
+        mReceiver.onDisconnected(devices[2]);
+
+        assertEquals(-1, mReceiver.getReceivedLength(devices[1]));
+        assertEquals(20, mReceiver.getReceivedLength(devices[0]));
+        assertEquals(20, mReceiver.getReceivedLength(devices[2]));
+    }
+
+    @Test
+    public void invalidTransfers_areRejected() {
+        assertAck(start(1, new byte[5000], 2), BulkTransferCodec.STATUS_TOO_LARGE, 0, 0);
+        assertEquals(BulkTransferCodec.STATUS_UNKNOWN_TRANSFER,
+                BulkTransferCodec.ackStatus(mReceiver.onFrame(DEVICE, BulkTransferCodec.encodeEnd(9))));
+
+        byte[] payload = payload(20);
+        mReceiver.onFrame(DEVICE, BulkTransferCodec.encodeStart(2, 20, 0, CHUNK, 2));
+        data(0, payload);
+        assertAck(mReceiver.onFrame(DEVICE, BulkTransferCodec.encodeEnd(2)), BulkTransferCodec.STATUS_CRC_ERROR, 1, 20);
+        assertTrue(mCompleted.isEmpty());
+        assertNull(mReceiver.onFrame(DEVICE, new byte[]{BulkTransferCodec.TYPE_START, 1}));
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.app_peripheral;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LongAttributeEngineTest {
+
+    private static final String DEVICE = "00:00:00:00:00:01";
+    private static final String ATTRIBUTE = "characteristic";
+    // Payload of a prepare write request and of a read blob response with the default MTU of 23.
+    private static final int PREPARE_WRITE_PAYLOAD = 18;
+    private static final int READ_BLOB_PAYLOAD = 22;
+
+    private static byte[] payload(int length) {
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = (byte) (i * 31 + 7);
+        }
+        return value;
+    }
+
+    private static int writeLong(LongAttributeEngine<String, String> engine, byte[] value) {
+        for (int offset = 0; offset < value.length; offset += PREPARE_WRITE_PAYLOAD) {
+            byte[] part = Arrays.copyOfRange(value, offset, Math.min(value.length, offset + PREPARE_WRITE_PAYLOAD));
+            int status = engine.prepareWrite(DEVICE, ATTRIBUTE, offset, part);
+            if (status != LongAttributeEngine.STATUS_SUCCESS) {
+                return status;
+            }
+        }
+        return LongAttributeEngine.STATUS_SUCCESS;
+    }
+
+    private static byte[] readLong(byte[] value) {
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        int offset = 0;
+        while (true) {
+            byte[] part = LongAttributeEngine.read(value, offset);
+            int length = Math.min(part.length, READ_BLOB_PAYLOAD);
+            read.write(part, 0, length);
+            offset += length;
+            // A short response ends the read, as on the central.
+            if (length < READ_BLOB_PAYLOAD) {
+                return read.toByteArray();
+            }
+        }
+    }
+
+    @Test
+    public void longWrite_roundTripsMaximumLength() {
+        LongAttributeEngine<String, String> engine = new LongAttributeEngine<>();
+        byte[] value = payload(LongAttributeEngine.MAX_ATTRIBUTE_LENGTH);
+        assertEquals(LongAttributeEngine.STATUS_SUCCESS, writeLong(engine, value));
+
+        List<byte[]> committed = new ArrayList<>();
+        assertEquals(1, engine.executeWrite(DEVICE, true, (attribute, v) -> committed.add(v)));
+        assertArrayEquals(value, committed.get(0));
+        assertArrayEquals(value, readLong(committed.get(0)));
+        assertFalse(engine.hasPreparedWrites(DEVICE));
+    }
+
+    @Test
+    public void cancel_dropsPreparedWrites() {
+        LongAttributeEngine<String, String> engine = new LongAttributeEngine<>();
+        writeLong(engine, payload(100));
+        assertEquals(0, engine.executeWrite(DEVICE, false, (attribute, v) -> fail()));
+        assertEquals(0, engine.executeWrite(DEVICE, true, (attribute, v) -> fail()));
+
+        writeLong(engine, payload(100));
+        engine.cancel(DEVICE);
+        assertFalse(engine.hasPreparedWrites(DEVICE));
+    }
+
+    @Test
+    public void prepareWrite_rejectsInvalidOffsetsAndLengths() {
+        LongAttributeEngine<String, String> engine = new LongAttributeEngine<>();
+        assertEquals(LongAttributeEngine.STATUS_INVALID_OFFSET, engine.prepareWrite(DEVICE, ATTRIBUTE, 10, payload(4)));
+        assertEquals(LongAttributeEngine.STATUS_INVALID_ATTRIBUTE_LENGTH,
+                engine.prepareWrite(DEVICE, ATTRIBUTE, 500, payload(13)));
+        assertEquals(LongAttributeEngine.STATUS_INVALID_ATTRIBUTE_LENGTH, writeLong(engine, payload(513)));
+    }
+
+    @Test
+    public void prepareWrite_keepsDevicesApart() {
+        LongAttributeEngine<String, String> engine = new LongAttributeEngine<>();
+        engine.prepareWrite("A", ATTRIBUTE, 0, new byte[]{1, 2});
+        engine.prepareWrite("B", ATTRIBUTE, 0, new byte[]{3});
+        engine.prepareWrite("A", ATTRIBUTE, 2, new byte[]{4});
+
+        List<byte[]> committed = new ArrayList<>();
+        engine.executeWrite("A", true, (attribute, v) -> committed.add(v));
+        assertArrayEquals(new byte[]{1, 2, 4}, committed.get(0));
+        assertTrue(engine.hasPreparedWrites("B"));
+    }
+
+    @Test
+    public void read_slicesAtOffset() {
+        byte[] value = payload(30);
+        assertSame(value, LongAttributeEngine.read(value, 0));
+        assertArrayEquals(Arrays.copyOfRange(value, 22, 30), LongAttributeEngine.read(value, 22));
+        assertEquals(0, LongAttributeEngine.read(value, 30).length);
+        assertNull(LongAttributeEngine.read(value, 31));
+        assertEquals(0, LongAttributeEngine.read(null, 0).length);
+    }
+
+    @Test
+    public void executeWrite_reusesOnePooledBuffer() {
+        writeFullLengthValues(1000);
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmark_longWriteRoundTrips() {
+        int roundTrips = 50000;
+        long elapsedNs = writeFullLengthValues(roundTrips);
+        long writesPerSecond = roundTrips * 1_000_000_000L / elapsedNs;
+        assertTrue(writesPerSecond + " 512 B writes/s", writesPerSecond > 20000);
+    }
+
+    /**
+     * Writes the longest value in prepared parts, again and again, and checks every write was
+     * executed from the same pooled buffer.
+     *
+     * @return The time the writes took.
+     */
+    private long writeFullLengthValues(int roundTrips) {
+        BytePool pool = new BytePool(LongAttributeEngine.MAX_ATTRIBUTE_LENGTH, 8);
+        LongAttributeEngine<String, String> engine = new LongAttributeEngine<>(pool);
+        byte[] value = payload(LongAttributeEngine.MAX_ATTRIBUTE_LENGTH);
+        byte[][] parts = new byte[(value.length + PREPARE_WRITE_PAYLOAD - 1) / PREPARE_WRITE_PAYLOAD][];
+        for (int i = 0; i < parts.length; i++) {
+            int offset = i * PREPARE_WRITE_PAYLOAD;
+            parts[i] = Arrays.copyOfRange(value, offset, Math.min(value.length, offset + PREPARE_WRITE_PAYLOAD));
+        }
+
+        long[] checksum = new long[1];
+        long start = System.nanoTime();
+        for (int i = 0; i < roundTrips; i++) {
+            for (int p = 0; p < parts.length; p++) {
+                engine.prepareWrite(DEVICE, ATTRIBUTE, p * PREPARE_WRITE_PAYLOAD, parts[p]);
+            }
+            engine.executeWrite(DEVICE, true, (attribute, v) -> checksum[0] += v[v.length - 1]);
+        }
+        long elapsedNs = System.nanoTime() - start;
+
+        assertEquals((long) value[value.length - 1] * roundTrips, checksum[0]);
+        assertEquals(1, pool.getAllocatedCount());
+        return elapsedNs;
+    }
+}
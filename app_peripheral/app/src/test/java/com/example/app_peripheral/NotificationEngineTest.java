@@ -0,0 +1,233 @@
+package com.example.app_peripheral;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class NotificationEngineTest {
+
+    /**
+     * Stands in for BluetoothGattServer: records what each device received and acknowledges
+     * notifications from a separate "radio" thread, like onNotificationSent on a binder thread.
+     */
+    private static class FakeGattServer implements NotificationEngine.Transport<String> {
+        final ConcurrentHashMap<String, AtomicInteger> mInFlight = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, byte[]> mLastReceived = new ConcurrentHashMap<>();
+        final LinkedBlockingQueue<String> mToAcknowledge = new LinkedBlockingQueue<>();
+        final AtomicBoolean mOverlap = new AtomicBoolean();
+        final AtomicInteger mReceived = new AtomicInteger();
+
+        @Override
+        public boolean notify(String device, byte[] value, boolean confirm) {
+            if (mInFlight.computeIfAbsent(device, key -> new AtomicInteger()).incrementAndGet() > 1) {
+                mOverlap.set(true);
+            }
+            mLastReceived.put(device, value);
+            mReceived.incrementAndGet();
+            mToAcknowledge.add(device);
+            return true;
+        }
+
+        Thread startRadio(NotificationEngine<String> engine, AtomicBoolean running) {
+            Thread radio = new Thread(() -> {
+                while (running.get() || !mToAcknowledge.isEmpty()) {
+                    String device;
+                    try {
+                        device = mToAcknowledge.poll(10, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (device != null) {
+                        mInFlight.get(device).decrementAndGet();
+                        engine.onNotificationSent(device, true);
+                    }
+                }
+            });
+            radio.start();
+            return radio;
+        }
+    }
+
+    private static byte[] value(int sequence) {
+        return new byte[]{(byte) sequence, (byte) (sequence >> 8), (byte) (sequence >> 16), (byte) (sequence >> 24)};
+    }
+
+    @Test
+    public void publish_waitsForNotificationSentAndCoalesces() {
+        List<byte[]> sent = new ArrayList<>();
+        NotificationEngine<String> engine = new NotificationEngine<>((device, value, confirm) -> sent.add(value));
+        engine.subscribe("A");
+
+        engine.publish(value(1));
+        engine.publish(value(2));
+        engine.publish(value(3));
+        assertEquals(1, sent.size());
+        assertEquals(1, engine.getCoalescedCount("A"));
+
+        // Only the latest value follows once the stack is ready again.
+        engine.onNotificationSent("A", true);
+        assertEquals(2, sent.size());
+        assertArrayEquals(value(3), sent.get(1));
+        engine.onNotificationSent("A", true);
+        assertEquals(2, sent.size());
+    }
+
+    @Test
+    public void publishTo_doesNotReplaceOrGetReplacedByPublishedValues() {
+        List<byte[]> sent = new ArrayList<>();
+        NotificationEngine<String> engine = new NotificationEngine<>((device, value, confirm) -> sent.add(value));
+        engine.subscribe("A");
+        engine.publish(value(1));
+
+        // An ack and a sensor value wait behind the one in flight, in either order.
+        engine.publishTo("A", value(100));
+        engine.publish(value(2));
+        engine.publishTo("A", value(101));
+        assertEquals(1, engine.getCoalescedCount("A"));
+
+        engine.onNotificationSent("A", true);
+        engine.onNotificationSent("A", true);
+        engine.onNotificationSent("A", true);
+        assertEquals(3, sent.size());
+        assertArrayEquals(value(101), sent.get(1));
+        assertArrayEquals(value(2), sent.get(2));
+    }
+
+    @Test
+    public void subscribe_receivesLatestValue() {
+        List<String> sent = new ArrayList<>();
+        NotificationEngine<String> engine = new NotificationEngine<>((device, value, confirm) -> sent.add(device));
+        engine.publish(value(1));
+        engine.subscribe("A");
+        assertEquals(1, sent.size());
+        engine.unsubscribe("A");
+        engine.publish(value(2));
+        assertEquals(1, sent.size());
+    }
+
+    @Test
+    public void configure_subscribesWithNotificationsOrIndications() {
+        List<String> sent = new ArrayList<>();
+        NotificationEngine<String> engine = new NotificationEngine<>((device, value, confirm) ->
+                sent.add(device + (confirm ? " indication" : " notification")));
+        assertArrayEquals(new byte[]{0, 0}, engine.getConfiguration("A"));
+
+        // Connected but not subscribed yet: nothing is pushed.
+        engine.publish(value(1));
+        assertTrue(sent.isEmpty());
+
+        assertTrue(engine.configure("A", new byte[]{0x02, 0x00}));
+        assertTrue(engine.isIndicating("A"));
+        assertArrayEquals(new byte[]{0x02, 0x00}, engine.getConfiguration("A"));
+        assertEquals("A indication", sent.get(0));
+
+        // Switching to notifications keeps the subscription and its flow control.
+        assertTrue(engine.configure("A", new byte[]{0x03, 0x00}));
+        assertFalse(engine.isIndicating("A"));
+        engine.onNotificationSent("A", true);
+        engine.publish(value(2));
+        assertEquals("A notification", sent.get(1));
+
+        assertTrue(engine.configure("A", new byte[]{0x00, 0x00}));
+        assertFalse(engine.isSubscribed("A"));
+        assertArrayEquals(new byte[]{0, 0}, engine.getConfiguration("A"));
+    }
+
+    @Test
+    public void parseConfiguration_rejectsMalformedValues() {
+        assertEquals(NotificationEngine.CONFIGURATION_NOTIFY, NotificationEngine.parseConfiguration(new byte[]{0x01, 0x00}));
+        assertEquals(-1, NotificationEngine.parseConfiguration(null));
+        assertEquals(-1, NotificationEngine.parseConfiguration(new byte[]{0x01}));
+        assertEquals(-1, NotificationEngine.parseConfiguration(new byte[]{0x01, 0x01}));
+        assertEquals(-1, NotificationEngine.parseConfiguration(new byte[]{0x04, 0x00}));
+
+        NotificationEngine<String> engine = new NotificationEngine<>((device, value, confirm) -> true);
+        assertFalse(engine.configure("A", new byte[]{0x01, 0x00, 0x00}));
+        assertFalse(engine.isSubscribed("A"));
+    }
+
+    @Test
+    public void refusedNotification_isRetriedOnNextPublish() {
+        AtomicBoolean accept = new AtomicBoolean(false);
+        List<byte[]> sent = new ArrayList<>();
+        NotificationEngine<String> engine = new NotificationEngine<>((device, value, confirm) -> accept.get() && sent.add(value));
+        engine.subscribe("A");
+        engine.publish(value(1));
+        assertEquals(1, engine.getFailedCount());
+
+        accept.set(true);
+        engine.publish(value(2));
+        assertEquals(1, sent.size());
+        assertArrayEquals(value(2), sent.get(0));
+    }
+
+    @Test
+    public void slowSubscriber_doesNotHoldBackOthers() {
+        List<String> sent = new ArrayList<>();
+        NotificationEngine<String> engine = new NotificationEngine<>((device, value, confirm) -> sent.add(device));
+        engine.subscribe("slow");
+        engine.subscribe("fast");
+
+        for (int i = 0; i < 10; i++) {
+            engine.publish(value(i));
+            engine.onNotificationSent("fast", true);
+        }
+        assertEquals(10, engine.getSentCount("fast"));
+        assertEquals(1, engine.getSentCount("slow"));
+        assertEquals(8, engine.getCoalescedCount("slow"));
+    }
+
+    /**
+     * Fans 20,000 values out to 50 simulated centrals. No central ever has two notifications in
+     * flight, and every central ends on the last value.
+     */
+    @Test
+    public void publish_fansOutToFiftySubscribers() throws Exception {
+        fanOut(50, 20000);
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmark_fiftySubscribers() throws Exception {
+        long notificationsPerSecond = fanOut(50, 20000);
+        assertTrue(notificationsPerSecond + " notifications/s", notificationsPerSecond > 2000);
+    }
+
+    /**
+     * @return The notifications sent per second.
+     */
+    private long fanOut(int subscribers, int values) throws Exception {
+        FakeGattServer server = new FakeGattServer();
+        NotificationEngine<String> engine = new NotificationEngine<>(server);
+        for (int i = 0; i < subscribers; i++) {
+            engine.subscribe("device" + i);
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread radio = server.startRadio(engine, running);
+        long start = System.nanoTime();
+        for (int i = 0; i < values; i++) {
+            engine.publish(value(i));
+        }
+        running.set(false);
+        radio.join();
+        long elapsedNs = System.nanoTime() - start;
+
+        assertFalse(server.mOverlap.get());
+        for (int i = 0; i < subscribers; i++) {
+            String device = "device" + i;
+            assertArrayEquals(value(values - 1), server.mLastReceived.get(device));
+            assertEquals(engine.getSentCount(device) + engine.getCoalescedCount(device), values);
+        }
+        return server.mReceived.get() * 1_000_000_000L / elapsedNs;
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.app_peripheral;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+public class WritePipelineTest {
+
+    private static final byte[] RED = {LightCommand.COMMAND_RED};
+    private static final byte[] GREEN = {LightCommand.COMMAND_GREEN};
+
+    @Test
+    public void decode_binaryAndAsciiCommands() {
+        assertEquals(MainActivity.Light.RED, LightCommand.decode(RED));
+        assertEquals(MainActivity.Light.GREEN, LightCommand.decode(GREEN));
+        assertEquals(MainActivity.Light.GREY, LightCommand.decode(new byte[]{LightCommand.COMMAND_GREY}));
+        assertEquals(MainActivity.Light.RED, LightCommand.decode("RED".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(MainActivity.Light.GREEN, LightCommand.decode("GREEN".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(MainActivity.Light.GREY, LightCommand.decode("BLUE".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(MainActivity.Light.GREY, LightCommand.decode(new byte[0]));
+        assertEquals(MainActivity.Light.GREY, LightCommand.decode(null));
+    }
+
+    @Test
+    public void coalescer_requestsOneFrameAndSkipsUnchangedStates() {
+        LightStateCoalescer coalescer = new LightStateCoalescer();
+        assertTrue(coalescer.offer(MainActivity.Light.RED));
+        assertFalse(coalescer.offer(MainActivity.Light.GREEN));
+        assertEquals(MainActivity.Light.GREEN, coalescer.takeForFrame());
+
+        assertTrue(coalescer.offer(MainActivity.Light.GREEN));
+        assertNull(coalescer.takeForFrame());
+        assertEquals(1, coalescer.getAppliedCount());
+        assertEquals(3, coalescer.getOfferedCount());
+    }
+
+    @Test
+    public void decode_doesNotAllocate() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        int writes = 100000;
+        // Warm up so class loading and JIT don't count.
+        for (int i = 0; i < 10000; i++) {
+            LightCommand.decode((i & 1) == 0 ? RED : GREEN);
+        }
+
+        int red = 0;
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < writes; i++) {
+            if (LightCommand.decode((i & 1) == 0 ? RED : GREEN) == MainActivity.Light.RED) {
+                red++;
+            }
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(writes / 2, red);
+        assertTrue(allocated / writes + " B/write", allocated / writes < 1);
+    }
+
+    /**
+     * Writes alternate between red and green at 1 kHz for one second while a 60 Hz "UI" applies
+     * the state. The UI work follows the frame rate, not the write rate, and decoding doesn't
+     * allocate.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmark_oneKilohertzWrites() throws Exception {
+        int writes = 1000;
+        long writePeriodNs = TimeUnit.MILLISECONDS.toNanos(1);
+        LightStateCoalescer coalescer = new LightStateCoalescer();
+        AtomicInteger frameRequests = new AtomicInteger();
+        AtomicInteger frames = new AtomicInteger();
+        ScheduledExecutorService ui = Executors.newSingleThreadScheduledExecutor();
+        ui.scheduleAtFixedRate(() -> {
+            if (coalescer.takeForFrame() != null) {
+                frames.incrementAndGet();
+            }
+        }, 0, 16, TimeUnit.MILLISECONDS);
+
+        // Warm up so class loading and JIT don't count.
+        for (int i = 0; i < 10000; i++) {
+            LightCommand.decode((i & 1) == 0 ? RED : GREEN);
+        }
+        com.sun.management.ThreadMXBean threadBean = null;
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        }
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threadBean == null ? 0 : threadBean.getThreadAllocatedBytes(threadId);
+
+        long decodeNs = 0;
+        long next = System.nanoTime();
+        for (int i = 0; i < writes; i++) {
+            long start = System.nanoTime();
+            if (coalescer.offer(LightCommand.decode((i & 1) == 0 ? RED : GREEN))) {
+                frameRequests.incrementAndGet();
+            }
+            decodeNs += System.nanoTime() - start;
+            next += writePeriodNs;
+            LockSupport.parkNanos(next - System.nanoTime());
+        }
+        long allocated = threadBean == null ? 0 : threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        Thread.sleep(50);
+        ui.shutdownNow();
+
+        assertEquals(writes, coalescer.getOfferedCount());
+        assertTrue(frameRequests.get() < writes / 4);
+        assertTrue(frames.get() <= frameRequests.get());
+        assertTrue(decodeNs / writes + " ns/write", decodeNs / writes < 100000);
+        assertTrue(allocated / writes + " B/write", allocated / writes < 64);
+    }
+}